@@ -0,0 +1,128 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * track() throughput when most failures come from trusted sources: 70% of the requests are from
+ * NAT gateways, health checkers (a few /24s) and a partner /16, the rest from the distribution.
+ * With the allow list those never reach the db, without it they're tracked like any other ip.
+ *
+ *   java -jar target/benchmarks.jar AllowListBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class AllowListBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+    private static final String[] ALLOWED = {"100.64.0.1", "100.64.0.2", "100.64.0.3", "100.64.0.4",
+        "192.0.2.0/24", "198.51.100.0/24", "203.0.113.0/24", "172.20.0.0/16"};
+
+    @Param({"true", "false"})
+    boolean allowList;
+
+    @Param({"70"})
+    int allowedPercent;
+
+    @Param({"ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"100000"})
+    int cardinality;
+
+    BlackListSvcImpl bl;
+    int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int seed = 0;
+        private int index;
+
+        @Setup
+        public synchronized void setUp() {
+            index = (seed++ * 0x9E3779B1) & (SAMPLES - 1);
+        }
+
+        int next(int[] samples) {
+            index = (index + 1) & (SAMPLES - 1);
+            return samples[index];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bl = new BlackListSvcImpl();
+        if (allowList) {
+            bl.setAllowList(AllowList.of(ALLOWED));
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+        Random random = new Random(42L);
+        for (int i = 0; i < SAMPLES; i++) {
+            if (random.nextInt(100) < allowedPercent) {
+                samples[i] = allowedSource(random);
+            }
+        }
+        for (int rank = 0; rank < cardinality; rank++) {
+            bl.track(IpDistribution.ip(rank));
+        }
+    }
+
+    /**
+     * Half from the gateways, the rest spread over the blocks.
+     */
+    static int allowedSource(Random random) {
+        if (random.nextBoolean()) {
+            return Ipv4.parse(ALLOWED[random.nextInt(4)]);
+        }
+        String block = ALLOWED[4 + random.nextInt(ALLOWED.length - 4)];
+        int slash = block.indexOf('/');
+        int hostBits = 32 - Integer.parseInt(block.substring(slash + 1));
+        return Ipv4.parse(block.substring(0, slash)) | random.nextInt(1 << hostBits);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    @Benchmark
+    public boolean track(Cursor cursor) {
+        return bl.track(cursor.next(samples));
+    }
+}
@@ -0,0 +1,123 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the caller (eg; an event loop) spends tracking a failed request: the synchronous
+ * ShardedBlackListSvc.track() against the queued AsyncBlackListSvcImpl, fire and forget
+ * (trackAsync), returning the stage (track) and waiting for it (roundTrip).
+ *
+ *   java -jar target/benchmarks.jar AsyncBenchmark -t 4
+ *
+ * The callers offer faster than the writers apply, so the queues stay full: with CALLER_RUNS the
+ * overflow is tracked by the callers, with DROP it's lost (see getDropped()); the percentiles of
+ * the async methods show both the cost of the offer and of the policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"CALLER_RUNS", "DROP"})
+    AsyncBlackListSvcImpl.Overflow overflow;
+
+    @Param({"ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"100000"})
+    int cardinality;
+
+    ShardedBlackListSvc sync;
+    AsyncBlackListSvcImpl async;
+    int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int seed = 0;
+        private int index;
+
+        @Setup
+        public synchronized void setUp() {
+            index = (seed++ * 0x9E3779B1) & (SAMPLES - 1);
+        }
+
+        int next(int[] samples) {
+            index = (index + 1) & (SAMPLES - 1);
+            return samples[index];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sync = new ShardedBlackListSvc();
+        async = new AsyncBlackListSvcImpl(new ShardedBlackListSvc(), AsyncBlackListSvcImpl.QUEUE_CAPACITY, overflow);
+        for (int rank = 0; rank < cardinality; rank++) {
+            sync.track(IpDistribution.ip(rank));
+            async.getSvc().track(IpDistribution.ip(rank));
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%,d dropped%n", async.getDropped());
+        async.shutdown();
+        sync.shutdown();
+    }
+
+    @Benchmark
+    public boolean sync(Cursor cursor) {
+        return sync.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean trackAsync(Cursor cursor) {
+        return async.trackAsync(cursor.next(samples));
+    }
+
+    @Benchmark
+    public CompletionStage<Boolean> track(Cursor cursor) {
+        return async.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean roundTrip(Cursor cursor) {
+        return async.track(cursor.next(samples)).toCompletableFuture().join();
+    }
+}
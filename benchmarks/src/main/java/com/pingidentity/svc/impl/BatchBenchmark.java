@@ -0,0 +1,112 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Ingesting batches of failures, eg; from an access log tailer, with trackAll() against a loop of track().
+ *
+ *   java -jar target/benchmarks.jar BatchBenchmark
+ *
+ * Scores are per tracked request.  A ZIPF batch has many requests of the same ips, which trackAll()
+ * applies in a single update per ip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int BATCH = 4096;
+    private static final int BATCHES = 256;
+
+    @Param({"UNIFORM", "ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"100000"})
+    int cardinality;
+
+    @Param({"single", "offheap"})
+    String impl;
+
+    BlackListSvcImpl bl;
+    OffHeapBlackListSvc offHeap;
+    int[][] batches;
+    int next;
+
+    @Setup
+    public void setUp() {
+        if ("offheap".equals(impl)) {
+            offHeap = new OffHeapBlackListSvc(256L << 20);
+        } else {
+            bl = new BlackListSvcImpl();
+        }
+        int[] samples = distribution.samples(cardinality, BATCH * BATCHES, 42L);
+        batches = new int[BATCHES][];
+        for (int i = 0; i < BATCHES; i++) {
+            batches[i] = Arrays.copyOfRange(samples, i * BATCH, (i + 1) * BATCH);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (bl != null) {
+            bl.shutdown();
+        }
+        if (offHeap != null) {
+            offHeap.shutdown();
+        }
+    }
+
+    private int[] nextBatch() {
+        next = (next + 1) & (BATCHES - 1);
+        return batches[next];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int[] trackAll() {
+        return bl != null ? bl.trackAll(nextBatch()) : offHeap.trackAll(nextBatch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void trackEach(Blackhole blackhole) {
+        for (int ip : nextBatch()) {
+            blackhole.consume(bl != null ? bl.track(ip) : offHeap.track(ip));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The BlackListSvcImpl operations under realistic source ip distributions.
+ *
+ *   java -jar target/benchmarks.jar BlackListSvcBenchmark -prof gc -t 8
+ *
+ * -prof gc adds the allocation rate (gc.alloc.rate.norm is bytes per operation) and -t the number of
+ * threads; percentiles come from the SampleTime mode.  The table is filled with every ip of the
+ * cardinality before measuring, the 10M case needs a few GB of heap (eg; -jvmArgs -Xmx8g).
+ *
+ * - track/isBlackListed/get: one operation on an ip drawn from the distribution.
+ * - mixed: readPercent of the calls are isBlackListed(), the rest track().
+ * - topNUnderLoad: 7 threads tracking while one polls getTopN(10), like the ops dashboard during a flood.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlackListSvcBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"UNIFORM", "ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"1000", "100000", "10000000"})
+    int cardinality;
+
+    @Param({"90"})
+    int readPercent;
+
+    BlackListSvcImpl bl;
+    int[] samples;
+
+    /**
+     * Each thread walks the shared samples from its own offset.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int seed = 0;
+        private int index;
+
+        @Setup
+        public synchronized void setUp() {
+            index = (seed++ * 0x9E3779B1) & (SAMPLES - 1);
+        }
+
+        int next(int[] samples) {
+            index = (index + 1) & (SAMPLES - 1);
+            return samples[index];
+        }
+
+        boolean read(int readPercent) {
+            return ((index * 0x9E3779B1) >>> 1) % 100 < readPercent;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bl = new BlackListSvcImpl();
+        for (int rank = 0; rank < cardinality; rank++) {
+            bl.track(IpDistribution.ip(rank));
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    @Benchmark
+    public boolean track(Cursor cursor) {
+        return bl.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean isBlackListed(Cursor cursor) {
+        return bl.isBlackListed(cursor.next(samples));
+    }
+
+    @Benchmark
+    public long get(Cursor cursor) {
+        return bl.get(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean mixed(Cursor cursor) {
+        int ip = cursor.next(samples);
+        return cursor.read(readPercent) ? bl.isBlackListed(ip) : bl.track(ip);
+    }
+
+    @Benchmark
+    @Group("topNUnderLoad")
+    @GroupThreads(7)
+    public boolean topNUnderLoadTrack(Cursor cursor) {
+        return bl.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    @Group("topNUnderLoad")
+    @GroupThreads(1)
+    public Map<String, Integer> topNUnderLoadGetTopN() {
+        return bl.getTopN(10);
+    }
+}
@@ -0,0 +1,91 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+/**
+ * Floods a service with a capacity (see BlackListSvcImpl's capacity constructor) with unique ips,
+ * all in the same window so nothing expires, among repeat offenders under the threshold and
+ * blacklisted ips: the db must stay within its capacity, the heap flat, and neither the offenders
+ * nor the blacklisted ips may be evicted.
+ *
+ * A plain main, as the unit is a whole flood:
+ *   java -Xmx2g -cp target/benchmarks.jar com.pingidentity.svc.impl.CapacityBenchmark [flood] [capacity]
+ *
+ * By default 100M unique ips against a capacity of 1M, with 10,000 offenders at half the threshold
+ * and 1,000 blacklisted ips, tracked before the flood and once more every 10,000 flood ips.
+ */
+public class CapacityBenchmark {
+
+    public static void main(String[] args) {
+        long flood = args.length > 0 ? Long.parseLong(args[0]) : 100_000_000L;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int max = BlackListSvcImpl.BAD_REQUEST_THRESHOLD;
+        BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.fixed(Instant.now(), ZoneOffset.UTC),
+            BlackListSvcImpl.BLACKLIST_DURATION_SEC, BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC,
+            WindowStrategy.buckets(BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC, BlackListSvcImpl.WINDOW_BUCKETS),
+            OffenderIndex.approximate(BlackListSvcImpl.TOP_OFFENDERS), max, BlackListSvcImpl.CLEANUP_INTERVAL_SECONDS,
+            BlackListSvcImpl.newCleanupExecutor(), PrefixLevels.none(), 0, capacity);
+        int[] offenders = new int[10_000];
+        int[] blackListed = new int[1_000];
+        for (int i = 0; i < offenders.length; i++) {
+            offenders[i] = 0x0A000000 + i; // outside the flood's ips
+            for (int j = 0; j < max / 2; j++) {
+                bl.track(offenders[i]);
+            }
+        }
+        for (int i = 0; i < blackListed.length; i++) {
+            blackListed[i] = 0x0B000000 + i;
+            for (int j = 0; j < max; j++) {
+                bl.track(blackListed[i]);
+            }
+        }
+        long before = FootprintBenchmark.usedHeap();
+        System.out.printf("%,d unique ips against a capacity of %,d, heap %,d bytes%n", flood, capacity, before);
+        int largest = 0;
+        long start = System.nanoTime();
+        for (long i = 0; i < flood; i++) {
+            bl.track((int) (0x80000000L + i % 0x76000000L)); // unique up to 1.9G
+            if (i % 10_000 == 0) {
+                bl.track(offenders[(int) (i / 10_000 % offenders.length)]);
+                largest = Math.max(largest, bl.getDb().size());
+            }
+            if ((i + 1) % (flood / 10) == 0) {
+                Map<String, Number> metrics = bl.getMetrics();
+                System.out.printf("%,13d: %,.0f failures/s, tracked %,d (largest %,d), evicted %,d, rejected %,d%n", i + 1,
+                    (i + 1) / ((System.nanoTime() - start) / 1e9d), metrics.get("ips.tracked"), largest,
+                    metrics.get("capacity.evicted"), metrics.get("capacity.rejected"));
+            }
+        }
+        long after = FootprintBenchmark.usedHeap();
+        int offendersKept = 0;
+        for (int ip : offenders) {
+            offendersKept += bl.get(ip) >= max / 2 ? 1 : 0;
+        }
+        int blackListedKept = 0;
+        for (int ip : blackListed) {
+            blackListedKept += bl.isBlackListed(ip) && bl.get(ip) == max ? 1 : 0;
+        }
+        System.out.printf("heap %,d bytes (%+,d), offenders kept %,d of %,d, blacklisted kept %,d of %,d%n", after,
+            after - before, offendersKept, offenders.length, blackListedKept, blackListed.length);
+        bl.shutdown();
+    }
+}
@@ -0,0 +1,63 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the epoch second: through an Instant of the system clock, as the services used to, against
+ * TickingClock.
+ *
+ *   java -jar target/benchmarks.jar ClockBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:-DoEscapeAnalysis") // the Instant as seen from a deep call chain
+public class ClockBenchmark {
+
+    Clock system = Clock.systemDefaultZone();
+    Clock ticking = TickingClock.systemUTC();
+
+    @Benchmark
+    public long instant() {
+        return system.instant().getEpochSecond();
+    }
+
+    @Benchmark
+    public long systemMillis() {
+        return TickingClock.epochSecond(system);
+    }
+
+    @Benchmark
+    public long ticking() {
+        return TickingClock.epochSecond(ticking);
+    }
+}
@@ -0,0 +1,169 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decaying score (WindowStrategy.decaying()) with the exact and bucketed windows on a
+ * trace of failures: the blacklist decisions, and the throughput of tracking the trace.
+ *
+ * A plain main, as the unit is a whole trace:
+ *   java -cp target/benchmarks.jar com.pingidentity.svc.impl.DecayingBenchmark [access.log]
+ *
+ * The trace is the failures of an access log (see LogReplay), or by default a generated day: 2M
+ * failures of a million ZIPF distributed ips, plus 2,000 slow attackers failing at a steady rate
+ * between a third and 3 times the threshold's rate, for a random part of the day.  Each mode tracks
+ * the trace at event time, and its track() results are compared with the exact window's: the
+ * requests it blacklists that the exact window doesn't, the ones it lets through, and the same for
+ * ips.  See FootprintBenchmark for the memory per ip.
+ */
+public class DecayingBenchmark {
+
+    private static final long START = 1_500_000_000_000L;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    public static void main(String[] args) throws IOException {
+        Trace trace = args.length > 0 ? Trace.read(args[0]) : Trace.generate(2_000_000, 2_000);
+        long window = BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC;
+        System.out.printf("%,d failures, window %ds, threshold %d%n", trace.size, window,
+            BlackListSvcImpl.BAD_REQUEST_THRESHOLD);
+        boolean[] exact = run("exact", trace, WindowStrategy.exact(), null);
+        run("buckets", trace, WindowStrategy.buckets(window, BlackListSvcImpl.WINDOW_BUCKETS), exact);
+        run("decaying", trace, WindowStrategy.decaying(window), exact);
+    }
+
+    /**
+     * Tracks the trace twice (the first run warms up), returns the second run's decisions.
+     */
+    static boolean[] run(String name, Trace trace, WindowStrategy windows, boolean[] expected) {
+        boolean[] decisions = new boolean[trace.size];
+        for (int run = 0; run < 2; run++) {
+            BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), new EventTimeClock(trace.millis[0]),
+                BlackListSvcImpl.BLACKLIST_DURATION_SEC, BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC, windows,
+                OffenderIndex.approximate(BlackListSvcImpl.TOP_OFFENDERS), BlackListSvcImpl.BAD_REQUEST_THRESHOLD,
+                BlackListSvcImpl.CLEANUP_INTERVAL_SECONDS, BlackListSvcImpl.newCleanupExecutor());
+            long start = System.nanoTime();
+            for (int i = 0; i < trace.size; i++) {
+                decisions[i] = bl.track(trace.ips[i], trace.millis[i]);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9d;
+            bl.shutdown();
+            if (run == 0) {
+                continue;
+            }
+            System.out.printf("%-9s %,.0f failures/s, %,d blacklisted", name, trace.size / seconds, count(decisions));
+            if (expected != null) {
+                Set<Integer> more = new HashSet<>();
+                Set<Integer> fewer = new HashSet<>();
+                long extra = 0L;
+                long missed = 0L;
+                for (int i = 0; i < trace.size; i++) {
+                    if (decisions[i] && !expected[i]) {
+                        extra++;
+                        more.add(trace.ips[i]);
+                    } else if (!decisions[i] && expected[i]) {
+                        missed++;
+                        fewer.add(trace.ips[i]);
+                    }
+                }
+                System.out.printf(", against exact: %,d more (%,d ips), %,d fewer (%,d ips)", extra, more.size(),
+                    missed, fewer.size());
+            }
+            System.out.println();
+        }
+        return decisions;
+    }
+
+    static long count(boolean[] decisions) {
+        long count = 0L;
+        for (boolean decision : decisions) {
+            count += decision ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Failures in time order, as ip and epoch millis.
+     */
+    static final class Trace {
+        int[] ips = new int[1 << 16];
+        long[] millis = new long[1 << 16];
+        int size;
+
+        void add(int ip, long time) {
+            if (size == ips.length) {
+                ips = Arrays.copyOf(ips, size << 1);
+                millis = Arrays.copyOf(millis, size << 1);
+            }
+            ips[size] = ip;
+            millis[size++] = time;
+        }
+
+        /**
+         * The failures of an access log, recorded by a service that only records them.
+         */
+        static Trace read(String file) throws IOException {
+            Trace trace = new Trace();
+            BlackListSvcImpl recorder = new BlackListSvcImpl(new EventTimeClock(0L)) {
+                @Override
+                public boolean track(int ip, long epochMillis) {
+                    trace.add(ip, epochMillis);
+                    return false;
+                }
+            };
+            new LogReplay(recorder).replay(Paths.get(file));
+            recorder.shutdown();
+            return trace;
+        }
+
+        static Trace generate(int background, int attackers) {
+            SplittableRandom random = new SplittableRandom(42);
+            int[] ips = IpDistribution.ZIPF.samples(1_000_000, background, 42);
+            long[] events = new long[background + attackers * 200];
+            int size = 0;
+            for (int i = 0; i < background; i++) {
+                events[size++] = (DAY_MILLIS * i / background) << 22 | i; // time, then index of the ip
+            }
+            double rate = BlackListSvcImpl.BAD_REQUEST_THRESHOLD / (double) BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC;
+            int[] attacker = new int[attackers];
+            int first = size;
+            for (int a = 0; a < attackers; a++) {
+                attacker[a] = 0x0B000000 + a; // outside the background's ips
+                double interval = 1000d / (rate * (1d / 3 + random.nextDouble() * (3d - 1d / 3)));
+                double time = random.nextDouble() * DAY_MILLIS;
+                for (int n = 0; n < 200 && time < DAY_MILLIS && size < events.length; n++, time += interval) {
+                    events[size++] = (long) time << 22 | (background + a);
+                }
+            }
+            Arrays.sort(events, 0, size);
+            Trace trace = new Trace();
+            for (int i = 0; i < size; i++) {
+                int index = (int) (events[i] & 0x3FFFFF);
+                trace.add(index < background ? ips[index] : attacker[index - background], START + (events[i] >>> 22));
+            }
+            System.out.printf("generated %,d background and %,d attacker failures%n", first, size - first);
+            return trace;
+        }
+    }
+}
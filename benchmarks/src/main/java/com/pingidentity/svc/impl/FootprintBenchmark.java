@@ -0,0 +1,142 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.pingidentity.svc.Ipv4;
+import com.pingidentity.svc.Ipv6;
+
+/**
+ * Measures the heap used per tracked ip.
+ *
+ * JMH isn't a good fit for footprint, so this is a plain main:
+ *   java -cp target/benchmarks.jar com.pingidentity.svc.impl.FootprintBenchmark [ips] [requestsPerIp]
+ *
+ * Each scenario fills a table with distinct ips (requestsPerIp failed requests each, one per second)
+ * and reports the retained heap divided by the number of ips.  "string-keys" is the original
+ * ConcurrentHashMap&lt;String, Tracking&gt; layout, "int-keys" is the BlackListSvcImpl table,
+ * "ipv6-strings" and "ipv6-keys" the same for IPv6 addresses (the latter is the table of Ipv6Table),
+ * all with exact windows, "buckets" is the int keyed table with the default bucketed windows,
+ * "decaying" with decaying scores, and "off-heap" is OffHeapBlackListSvc (whose 64 byte records are
+ * in direct memory, not counted here).
+ * Run with a fixed heap (eg; -Xms4g -Xmx4g) for stable numbers.
+ */
+public class FootprintBenchmark {
+
+    private static Object retained; // keeps the measured structure reachable
+
+    public static void main(String[] args) {
+        int ips = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long now = System.currentTimeMillis() / 1000L;
+        WindowStrategy exact = WindowStrategy.exact();
+        WindowStrategy buckets = WindowStrategy.buckets(BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC,
+            BlackListSvcImpl.WINDOW_BUCKETS);
+
+        measure("string-keys", ips, () -> {
+            ConcurrentMap<String, Tracking> db = new ConcurrentHashMap<>();
+            for (int i = 0; i < ips; i++) {
+                // a fresh String per ip, as it would come off the request
+                db.putIfAbsent(Ipv4.format(0x0A000000 + i), newTracking(now, requests, exact));
+            }
+            return db;
+        });
+        measure("int-keys", ips, () -> {
+            ConcurrentIntMap<Tracking> db = new ConcurrentIntMap<>();
+            for (int i = 0; i < ips; i++) {
+                db.putIfAbsent(0x0A000000 + i, newTracking(now, requests, exact));
+            }
+            return db;
+        });
+        measure("ipv6-strings", ips, () -> {
+            ConcurrentMap<String, Tracking> db = new ConcurrentHashMap<>();
+            for (int i = 0; i < ips; i++) {
+                db.putIfAbsent(Ipv6.format(0x20010DB800000000L + i, 0x0123456789ABCDEFL), newTracking(now, requests, exact));
+            }
+            return db;
+        });
+        measure("ipv6-keys", ips, () -> {
+            ConcurrentLongPairMap<Tracking> db = new ConcurrentLongPairMap<>();
+            for (int i = 0; i < ips; i++) {
+                db.putIfAbsent(0x20010DB800000000L + i, 0x0123456789ABCDEFL, newTracking(now, requests, exact));
+            }
+            return db;
+        });
+        measure("buckets", ips, () -> {
+            ConcurrentIntMap<Tracking> db = new ConcurrentIntMap<>();
+            for (int i = 0; i < ips; i++) {
+                db.putIfAbsent(0x0A000000 + i, newTracking(now, requests, buckets));
+            }
+            return db;
+        });
+        WindowStrategy decaying = WindowStrategy.decaying(BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC);
+        measure("decaying", ips, () -> {
+            ConcurrentIntMap<Tracking> db = new ConcurrentIntMap<>();
+            for (int i = 0; i < ips; i++) {
+                db.putIfAbsent(0x0A000000 + i, newTracking(now, requests, decaying));
+            }
+            return db;
+        });
+        measure("off-heap", ips, () -> {
+            OffHeapBlackListSvc bl = new OffHeapBlackListSvc(4L * ips * OffHeapBlackListSvc.RECORD_BYTES);
+            for (int i = 0; i < ips; i++) {
+                for (int r = 0; r < requests; r++) {
+                    bl.track(0x0A000000 + i);
+                }
+            }
+            bl.shutdown();
+            return bl;
+        });
+    }
+
+    static Tracking newTracking(long now, int requests, WindowStrategy windows) {
+        Tracking tracking = new Tracking(now, windows);
+        for (int i = 1; i < requests; i++) {
+            tracking.track(now + i % BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC);
+        }
+        return tracking;
+    }
+
+    interface Scenario {
+        Object fill();
+    }
+
+    static void measure(String name, int ips, Scenario scenario) {
+        retained = null;
+        long before = usedHeap();
+        retained = scenario.fill();
+        long after = usedHeap();
+        System.out.printf("%-14s %,d ips: %,d bytes, %.1f bytes/ip%n", name, ips, after - before,
+            (after - before) / (double) ips);
+        retained = null;
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,140 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source ip distributions for the benchmarks.
+ *
+ * Ips are picked by rank in [0, cardinality) and spread over the address space with an odd
+ * multiplier, so the popular ranks don't all end up in the same /24.
+ */
+public enum IpDistribution {
+
+    /**
+     * Every ip is as likely, eg; a spoofed source flood.
+     */
+    UNIFORM {
+        @Override
+        IntSampler sampler(int cardinality, SplittableRandom random) {
+            return () -> ip(random.nextInt(cardinality));
+        }
+    },
+
+    /**
+     * Zipf(s = 1): a few ips send most of the failures, eg; credential stuffing from a botnet
+     * with a handful of busy nodes.
+     */
+    ZIPF {
+        @Override
+        IntSampler sampler(int cardinality, SplittableRandom random) {
+            ZipfSampler zipf = new ZipfSampler(cardinality, 1.0d);
+            return () -> ip(zipf.sample(random) - 1);
+        }
+    };
+
+    @FunctionalInterface
+    interface IntSampler {
+        int next();
+    }
+
+    abstract IntSampler sampler(int cardinality, SplittableRandom random);
+
+    /**
+     * Fills an array with samples, the benchmarks cycle through it so sampling isn't measured.
+     */
+    int[] samples(int cardinality, int size, long seed) {
+        IntSampler sampler = sampler(cardinality, new SplittableRandom(seed));
+        int[] samples = new int[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = sampler.next();
+        }
+        return samples;
+    }
+
+    static int ip(int rank) {
+        return rank * 0x9E3779B1;
+    }
+
+    /**
+     * Rejection-inversion sampling (Hoermann and Derflinger), constant memory whatever the
+     * number of elements, returns ranks in [1, n].
+     */
+    static final class ZipfSampler {
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(int n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5d) - 1d;
+            this.hIntegralN = hIntegral(n + 0.5d);
+            this.s = 2d - hIntegralInverse(hIntegral(2.5d) - h(2d));
+        }
+
+        int sample(SplittableRandom random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5d);
+                if (k < 1) {
+                    k = 1;
+                } else if (k > n) {
+                    k = n;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5d) - h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1d - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1d - exponent);
+            if (t < -1d) {
+                t = -1d; // numerical safety
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        /**
+         * log(1 + x) / x, accurate near 0.
+         */
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1d - x * (0.5d - x * (1d / 3d - 0.25d * x));
+        }
+
+        /**
+         * (exp(x) - 1) / x, accurate near 0.
+         */
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1d + x * 0.5d * (1d + x / 3d * (1d + 0.25d * x));
+        }
+    }
+}
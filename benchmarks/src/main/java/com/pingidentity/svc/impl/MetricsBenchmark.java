@@ -0,0 +1,102 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of the metrics (see BlackListMetrics) on track() and isBlackListed().
+ *
+ *   java -jar target/benchmarks.jar MetricsBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MetricsBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"true", "false"})
+    boolean metrics;
+
+    @Param({"ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"100000"})
+    int cardinality;
+
+    BlackListSvcImpl bl;
+    int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int seed = 0;
+        private int index;
+
+        @Setup
+        public synchronized void setUp() {
+            index = (seed++ * 0x9E3779B1) & (SAMPLES - 1);
+        }
+
+        int next(int[] samples) {
+            index = (index + 1) & (SAMPLES - 1);
+            return samples[index];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bl = new BlackListSvcImpl();
+        bl.setMetrics(new BlackListMetrics(metrics));
+        for (int rank = 0; rank < cardinality; rank++) {
+            bl.track(IpDistribution.ip(rank));
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    @Benchmark
+    public boolean track(Cursor cursor) {
+        return bl.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean isBlackListed(Cursor cursor) {
+        return bl.isBlackListed(cursor.next(samples));
+    }
+}
@@ -0,0 +1,98 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the prefix levels: the flat table of ips against the same with /24 and /16 counters.
+ *
+ *   java -jar target/benchmarks.jar PrefixBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefixBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"UNIFORM", "ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"100000"})
+    int cardinality;
+
+    @Param({"none", "24,16"})
+    String prefixes;
+
+    BlackListSvcImpl bl;
+    int[] samples;
+    int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PrefixLevels levels = PrefixLevels.none();
+        if (!"none".equals(prefixes)) {
+            for (String length : prefixes.split(",")) {
+                levels = levels.with(Integer.parseInt(length), Integer.MAX_VALUE);
+            }
+        }
+        bl = new BlackListSvcImpl(WindowStrategy.buckets(BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC,
+            BlackListSvcImpl.WINDOW_BUCKETS), OffenderIndex.approximate(BlackListSvcImpl.TOP_OFFENDERS), levels);
+        for (int rank = 0; rank < cardinality; rank++) {
+            bl.track(IpDistribution.ip(rank));
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    private int next() {
+        index = (index + 1) & (SAMPLES - 1);
+        return samples[index];
+    }
+
+    @Benchmark
+    public boolean track() {
+        return bl.track(next());
+    }
+
+    @Benchmark
+    public boolean isBlackListed() {
+        return bl.isBlackListed(next());
+    }
+}
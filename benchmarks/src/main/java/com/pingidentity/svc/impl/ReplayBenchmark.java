@@ -0,0 +1,88 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Measures replaying an access log at event time, see LogReplay.
+ *
+ * A plain main, as the unit is a whole file:
+ *   java -cp target/benchmarks.jar com.pingidentity.svc.impl.ReplayBenchmark [lines] [failurePercent]
+ *
+ * Generates a day of combined log format lines from a million ZIPF distributed ips, failurePercent
+ * of them 401s, with timestamps up to 30 seconds out of order, then replays the file a few times
+ * into a fresh service each time and reports lines/s, failures/s and MB/s of each.
+ */
+public class ReplayBenchmark {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long START = 1_500_000_000_000L;
+    private static final DateTimeFormatter FORMAT =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int failurePercent = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Path file = Files.createTempFile("access", ".log");
+        try {
+            write(file, lines, failurePercent);
+            System.out.printf("%,d lines, %,d MB%n", lines, Files.size(file) >> 20);
+            for (int run = 0; run < 3; run++) {
+                BlackListSvcImpl bl = new BlackListSvcImpl(new EventTimeClock(START));
+                LogReplay replay = new LogReplay(bl);
+                long start = System.nanoTime();
+                replay.replay(file);
+                double seconds = (System.nanoTime() - start) / 1e9d;
+                System.out.printf("run %d: %.2fs, %,.0f lines/s, %,.0f failures/s, %,.0f MB/s, "
+                    + "%,d late, %,d blacklisted, %,d tracked%n", run, seconds, replay.getLines() / seconds,
+                    replay.getFailures() / seconds, replay.getBytes() / seconds / (1 << 20),
+                    bl.getMetrics().get("track.late"), bl.getMetrics().get("blacklist.joined"), bl.getDb().size());
+                bl.shutdown();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    static void write(Path file, int lines, int failurePercent) throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        int[] ips = IpDistribution.ZIPF.samples(1_000_000, lines, 42);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (int i = 0; i < lines; i++) {
+                long millis = START + DAY_MILLIS * i / lines + random.nextLong(30_000L);
+                int status = random.nextInt(100) < failurePercent ? 401 : 200;
+                String line = Ipv4.format(ips[i]) + " - - [" + FORMAT.format(Instant.ofEpochMilli(millis))
+                    + "] \"POST /login HTTP/1.1\" " + status + " 512 \"-\" \"Mozilla/5.0\"\n";
+                out.write(line.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+}
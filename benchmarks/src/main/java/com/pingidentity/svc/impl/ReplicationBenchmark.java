@@ -0,0 +1,106 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Measures replication between nodes of a cluster in one JVM, over an InMemoryTransport.
+ *
+ * A plain main, as what matters is time to converge and bytes sent:
+ *   java -cp target/benchmarks.jar com.pingidentity.svc.impl.ReplicationBenchmark [nodes] [intervalMillis] [failuresPerSec]
+ *
+ * The nodes take failuresPerSec failures between them, from 100K ZIPF distributed ips, for 10
+ * seconds, and the gossip sent per node and second is reported.  Then an attacker sends
+ * max - 1 failures to every node, and one more a millisecond to a random node, until every node
+ * has it blacklisted; the time to the first blacklist and to the last node are reported.
+ */
+public class ReplicationBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        long interval = args.length > 1 ? Long.parseLong(args[1]) : Replicator.GOSSIP_INTERVAL_MILLIS;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        InMemoryTransport transport = new InMemoryTransport();
+        BlackListSvcImpl[] services = new BlackListSvcImpl[size];
+        Replicator[] nodes = new Replicator[size];
+        for (int i = 0; i < size; i++) {
+            services[i] = new BlackListSvcImpl();
+            nodes[i] = new Replicator(services[i], i, transport);
+            transport.join(nodes[i]);
+            nodes[i].start(interval);
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        int[] ips = IpDistribution.ZIPF.samples(100_000, rate * 10, 42);
+        long start = System.nanoTime();
+        for (int i = 0; i < ips.length; i++) {
+            // paced a millisecond at a time
+            long due = start + TimeUnit.SECONDS.toNanos(i / rate) + TimeUnit.MILLISECONDS.toNanos(i % rate * 1000L / rate);
+            while (System.nanoTime() < due) {
+                Thread.sleep(0L, 100_000);
+            }
+            services[random.nextInt(size)].track(ips[i]);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9d;
+        long sent = 0L;
+        long deltas = 0L;
+        long entries = 0L;
+        for (Replicator node : nodes) {
+            sent += node.getSentBytes();
+            deltas += node.getSentDeltas();
+            entries += node.getSentEntries();
+        }
+        System.out.printf("%d nodes, %dms gossip, %,d failures/s: %,.0f bytes/s sent per node (%.1f bytes/ip), "
+            + "%,.0f bytes/s received per node, %.1f deltas/s per node%n", size, interval, rate,
+            sent / seconds / size, sent / (double) entries, transport.getDeliveredBytes() / seconds / size,
+            deltas / seconds / size);
+
+        int attacker = Ipv4.parse("6.6.6.6");
+        for (BlackListSvcImpl bl : services) {
+            for (int i = 1; i < BlackListSvcImpl.BAD_REQUEST_THRESHOLD; i++) {
+                bl.track(attacker);
+            }
+        }
+        start = System.nanoTime();
+        long first = 0L;
+        while (true) {
+            int blackListed = 0;
+            for (BlackListSvcImpl bl : services) {
+                if (bl.isBlackListed(attacker)) {
+                    blackListed++;
+                }
+            }
+            if (blackListed > 0 && first == 0L) {
+                first = System.nanoTime() - start;
+            }
+            if (blackListed == size) {
+                break;
+            }
+            services[random.nextInt(size)].track(attacker);
+            Thread.sleep(1L);
+        }
+        System.out.printf("attacker at %d failures per node: first blacklisted after %.1fms, everywhere after %.1fms%n",
+            BlackListSvcImpl.BAD_REQUEST_THRESHOLD - 1, first / 1e6d, (System.nanoTime() - start) / 1e6d);
+        for (int i = 0; i < size; i++) {
+            nodes[i].shutdown();
+            services[i].shutdown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pingidentity.svc.BlackListSvc;
+
+/**
+ * Throughput against the number of threads, single table (BlackListSvcImpl) next to the sharded one.
+ *
+ *   for t in 1 2 4 8 16 32 64; do java -jar target/benchmarks.jar ScalingBenchmark -t $t; done
+ *
+ * The sharded service gets one shard per core, the off heap one a 1GB budget.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"single", "sharded", "offheap"})
+    String impl;
+
+    @Param({"UNIFORM", "ZIPF"})
+    IpDistribution distribution;
+
+    @Param({"1000000"})
+    int cardinality;
+
+    private BlackListSvc bl;
+    private int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static int seed = 0;
+        private int index;
+
+        @Setup
+        public synchronized void setUp() {
+            index = (seed++ * 0x9E3779B1) & (SAMPLES - 1);
+        }
+
+        int next(int[] samples) {
+            index = (index + 1) & (SAMPLES - 1);
+            return samples[index];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("sharded".equals(impl)) {
+            bl = new ShardedBlackListSvc();
+        } else if ("offheap".equals(impl)) {
+            bl = new OffHeapBlackListSvc(1L << 30);
+        } else {
+            bl = new BlackListSvcImpl();
+        }
+        samples = distribution.samples(cardinality, SAMPLES, 42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (bl instanceof ShardedBlackListSvc) {
+            ((ShardedBlackListSvc) bl).shutdown();
+        } else if (bl instanceof OffHeapBlackListSvc) {
+            ((OffHeapBlackListSvc) bl).shutdown();
+        } else {
+            ((BlackListSvcImpl) bl).shutdown();
+        }
+    }
+
+    @Benchmark
+    public boolean track(Cursor cursor) {
+        return bl.track(cursor.next(samples));
+    }
+
+    @Benchmark
+    public boolean isBlackListed(Cursor cursor) {
+        return bl.isBlackListed(cursor.next(samples));
+    }
+}
@@ -0,0 +1,92 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to save and to load a snapshot of a table of cardinality ips.
+ *
+ *   java -jar target/benchmarks.jar SnapshotBenchmark -p cardinality=10000000 -jvmArgs -Xmx8g
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"1000000"})
+    int cardinality;
+
+    BlackListSvcImpl bl;
+    BlackListSvcImpl restored;
+    Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bl = new BlackListSvcImpl();
+        for (int rank = 0; rank < cardinality; rank++) {
+            bl.track(IpDistribution.ip(rank));
+        }
+        file = Files.createTempFile("blacklist", ".snapshot");
+        bl.snapshot(file);
+    }
+
+    @Setup(Level.Iteration)
+    public void newTable() {
+        if (restored != null) {
+            restored.shutdown();
+        }
+        restored = new BlackListSvcImpl();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bl.shutdown();
+        restored.shutdown();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long snapshot() throws IOException {
+        return bl.snapshot(file);
+    }
+
+    @Benchmark
+    public long restore() throws IOException {
+        return restored.restore(file);
+    }
+}
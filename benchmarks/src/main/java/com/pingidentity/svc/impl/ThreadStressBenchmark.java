@@ -0,0 +1,88 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Many more threads than cores hammering 10 hot ips, as an API tier with a thread per request does
+ * under attack.
+ *
+ * JMH runs a handful of threads, so this is a plain main:
+ *   java -cp target/benchmarks.jar com.pingidentity.svc.impl.ThreadStressBenchmark [threads] [seconds]
+ *
+ * Every thread loops over the hot ips calling isBlackListed() then track(), as for a failed request;
+ * the ips are blacklisted within the first milliseconds, after which every track() renews them.
+ * Reports the throughput and the latency percentiles of a call pair, sampled 1 in 16, so the time
+ * a thread spends descheduled between calls isn't counted but the time it waits inside one is.
+ */
+public class ThreadStressBenchmark {
+
+    private static final int HOT_IPS = 10;
+    private static final int SAMPLE_MASK = 15;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int[] ips = new int[HOT_IPS];
+        for (int i = 0; i < HOT_IPS; i++) {
+            ips[i] = Ipv4.parse("10.0.0." + i);
+        }
+        BlackListSvcImpl bl = new BlackListSvcImpl();
+        bl.setMax(1_000);
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder requests = new LongAdder();
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers[t] = new Thread(null, () -> {
+                long count = 0L;
+                for (int i = offset; (i & 1023) != 0 || System.nanoTime() < deadline; i++) {
+                    int ip = ips[i % HOT_IPS];
+                    boolean sampled = (i & SAMPLE_MASK) == 0;
+                    long start = sampled ? System.nanoTime() : 0L;
+                    bl.isBlackListed(ip);
+                    bl.track(ip);
+                    if (sampled) {
+                        latencies.record(System.nanoTime() - start);
+                    }
+                    count++;
+                }
+                requests.add(count);
+            }, "stress-" + t, 64 * 1024);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        bl.shutdown();
+
+        System.out.printf("%,d threads, %d hot ips, %.1fs: %,.0f requests/s%n", threads, HOT_IPS,
+            elapsed / 1e9, requests.sum() * 1e9 / elapsed);
+        System.out.printf("latency (ns): p50 %,d  p99 %,d  p99.9 %,d  max %,d%n", latencies.percentile(50.0),
+            latencies.percentile(99.0), latencies.percentile(99.9), latencies.max());
+    }
+}
@@ -0,0 +1,92 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * track() throughput when every thread hammers the same ip, the worst case for per ip state.
+ *
+ *   java -jar target/benchmarks.jar TrackContentionBenchmark
+ *
+ * The threshold is out of reach so the ip is never blacklisted and every call goes through the
+ * request window ("blacklisted" flips that, every call renews the blacklist instead).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackContentionBenchmark {
+
+    @Param({"false", "true"})
+    boolean blacklisted;
+
+    private BlackListSvcImpl bl;
+    private final int ip = Ipv4.parse("10.0.0.1");
+
+    @Setup
+    public void setUp() {
+        bl = new BlackListSvcImpl();
+        if (blacklisted) {
+            bl.setMax(1);
+            bl.track(ip);
+        } else {
+            bl.setMax(Integer.MAX_VALUE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean track1() {
+        return bl.track(ip);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean track8() {
+        return bl.track(ip);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean track64() {
+        return bl.track(ip);
+    }
+}
@@ -0,0 +1,138 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of BlackListSvc for callers that mustn't wait, eg; event loops: failed
+ * requests are queued and applied by the service's own threads.  See README
+ */
+public interface AsyncBlackListSvc
+{
+    /**
+     * Queues a failed request, see BlackListSvc.track(String).
+     * @param ipAddress IP address, an IPv4 one such as 192.168.0.1 or an IPv6 one such as 2001:db8::1
+     * @return completes with whether the IP address is black listed once the request is counted,
+     * on one of the service's threads, so use the *Async methods of the stage to continue elsewhere
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
+     */
+    default CompletionStage<Boolean> track(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return trackIpv6(address[0], address[1]);
+        }
+        return track(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as track(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order
+     */
+    CompletionStage<Boolean> track(int ipAddress);
+
+    /**
+     * Same as track(String), for an IPv6 address in two long form (see Ipv6).  An IPv4-mapped
+     * address is tracked as its IPv4 address.
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default CompletionStage<Boolean> trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
+
+    /**
+     * Fire and forget variant of track(String), nothing is allocated for an IPv4 address.
+     * @param ipAddress IP address, an IPv4 one such as 192.168.0.1 or an IPv6 one such as 2001:db8::1
+     * @return false if the request was dropped as the queue is full (or the service shut down)
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
+     */
+    default boolean trackAsync(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return trackAsyncIpv6(address[0], address[1]);
+        }
+        return trackAsync(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as trackAsync(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order
+     */
+    boolean trackAsync(int ipAddress);
+
+    /**
+     * Same as trackAsync(String), for an IPv6 address in two long form (see Ipv6).
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default boolean trackAsyncIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return trackAsync((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
+
+    /**
+     * Is the IP address black listed; this doesn't wait for anything so it's answered directly,
+     * requests still in the queue aren't counted yet.
+     * @param ipAddress IP address to check, an IPv4 one such as 192.168.0.1 or an IPv6 one
+     * @return true if the IP address is black listed at the moment
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
+     */
+    default boolean isBlackListed(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return isBlackListedIpv6(address[0], address[1]);
+        }
+        return isBlackListed(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as isBlackListed(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order
+     */
+    boolean isBlackListed(int ipAddress);
+
+    /**
+     * Same as isBlackListed(String), for an IPv6 address in two long form (see Ipv6).
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default boolean isBlackListedIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return isBlackListed((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
+
+    /**
+     * See BlackListSvc.subscribe(); the changes come as the queued requests are applied.
+     * @throws UnsupportedOperationException if the implementation doesn't publish changes
+     */
+    default void subscribe(BlackListListener listener) {
+        throw new UnsupportedOperationException("No change events from " + getClass().getSimpleName());
+    }
+
+    /**
+     * Stops delivering changes to the listener.
+     * @return false if it wasn't subscribed
+     */
+    default boolean unsubscribe(BlackListListener listener) {
+        return false;
+    }
+}
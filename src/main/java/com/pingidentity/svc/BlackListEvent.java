@@ -0,0 +1,88 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+/**
+ * A change of the blacklist, delivered to the listeners of BlackListSvc.subscribe().
+ * Immutable.
+ */
+public final class BlackListEvent {
+
+    public enum Type {
+        /** The ip joined the blacklist, until the end. */
+        BLACKLISTED,
+        /** The blacklisted ip's end moved forward, it's failing again. */
+        RENEWED,
+        /** The ip's blacklist is over. */
+        EXPIRED
+    }
+
+    private final Type type;
+    private final int ip;
+    private final long end;
+
+    /**
+     * @param ip IPv4 address in network byte order
+     * @param end end of the blacklist in epoch seconds
+     */
+    public BlackListEvent(Type type, int ip, long end) {
+        this.type = type;
+        this.ip = ip;
+        this.end = end;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * IPv4 address in network byte order.
+     */
+    public int getIp() {
+        return ip;
+    }
+
+    public String getAddress() {
+        return Ipv4.format(ip);
+    }
+
+    /**
+     * End of the blacklist in epoch seconds; it's in the past for EXPIRED.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof BlackListEvent)) {
+            return false;
+        }
+        BlackListEvent other = (BlackListEvent) obj;
+        return type == other.type && ip == other.ip && end == other.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return (type.hashCode() * 31 + ip) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + getAddress() + " until " + end;
+    }
+}
@@ -0,0 +1,32 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+import java.util.List;
+
+/**
+ * Receives the changes of a blacklist, see BlackListSvc.subscribe().
+ */
+@FunctionalInterface
+public interface BlackListListener
+{
+    /**
+     * Called with the changes since the previous batch, oldest first, on the service's event thread;
+     * an ip appears at most once a batch (its renewals are coalesced).  The list isn't reused.
+     */
+    void onEvents(List<BlackListEvent> events);
+}
@@ -16,7 +16,10 @@
  **************************************************************************/
 package com.pingidentity.svc;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -27,26 +30,165 @@ public interface BlackListSvc
     /**
      * Assignment 1:
      * Puts the IP address into the tracking service, increment the counter mapped to the address and return the blacklist status.
-     * @param ipAddress IP address, please only consider IPv4 format address such as 192.168.0.1
+     * @param ipAddress IP address, an IPv4 one such as 192.168.0.1 or an IPv6 one such as 2001:db8::1
      * @return if the IP address is black listed at the moment
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
      */
-    boolean track(String ipAddress);
+    default boolean track(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return trackIpv6(address[0], address[1]);
+        }
+        return track(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as track(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order, eg; 0xC0A80001 for 192.168.0.1
+     * @return if the IP address is black listed at the moment
+     */
+    boolean track(int ipAddress);
+
+    /**
+     * Same as track(String), for an IPv6 address in two long form (see Ipv6).  An IPv4-mapped
+     * address is tracked as its IPv4 address.
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default boolean trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
+
+    /**
+     * Tracks a batch of failed requests, eg; from an access log or a queue, as if each had been
+     * passed to track(String) at the same moment.  The IPv4 (and IPv4-mapped) addresses go through
+     * trackAll(int[]), the IPv6 ones through trackIpv6() one by one after them.
+     * @param ipAddresses IPv4 or IPv6 addresses, an address may appear any number of times
+     * @return the addresses that weren't black listed before the batch and are now, IPv4-mapped
+     *         ones as their IPv4 address
+     * @throws IllegalArgumentException if an address isn't a valid IPv4 or IPv6 address (nothing is
+     *         tracked then)
+     * @throws UnsupportedOperationException if the batch has IPv6 addresses and the implementation
+     *         only tracks IPv4 ones (the IPv4 addresses are tracked then)
+     */
+    default Set<String> trackAll(String[] ipAddresses) {
+        int[] ips = new int[ipAddresses.length];
+        long[] ipv6 = new long[0];
+        int count = 0;
+        int countIpv6 = 0;
+        for (String ipAddress : ipAddresses) {
+            if (!Ipv6.isIpv6(ipAddress)) {
+                ips[count++] = Ipv4.parse(ipAddress);
+                continue;
+            }
+            long[] address = Ipv6.parse(ipAddress);
+            if (Ipv6.isIpv4Mapped(address[0], address[1])) {
+                ips[count++] = (int) address[1];
+            } else {
+                if (countIpv6 == ipv6.length) {
+                    ipv6 = Arrays.copyOf(ipv6, Math.max(8, countIpv6 * 2));
+                }
+                ipv6[countIpv6++] = address[0];
+                ipv6[countIpv6++] = address[1];
+            }
+        }
+        Set<String> result = new LinkedHashSet<>();
+        for (int ip : trackAll(count == ips.length ? ips : Arrays.copyOf(ips, count))) {
+            result.add(Ipv4.format(ip));
+        }
+        for (int i = 0; i < countIpv6; i += 2) {
+            boolean wasBlackListed = isBlackListedIpv6(ipv6[i], ipv6[i + 1]);
+            if (trackIpv6(ipv6[i], ipv6[i + 1]) && !wasBlackListed) {
+                result.add(Ipv6.format(ipv6[i], ipv6[i + 1]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as trackAll(String[]), for addresses already in int form (see Ipv4).
+     * Implementations are expected to group the batch by address and read the clock once.
+     * @return the addresses that weren't black listed before the batch and are now, each once
+     */
+    default int[] trackAll(int[] ipAddresses) {
+        int[] result = new int[ipAddresses.length];
+        int count = 0;
+        for (int ip : ipAddresses) {
+            boolean wasBlackListed = isBlackListed(ip);
+            if (track(ip) && !wasBlackListed) {
+                result[count++] = ip;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
     
     /**
      * Assignment 1:
      * Is the IP address black listed.
-     * @param ipAddress IP address to check, please only consider IPv4 format address such as 192.168.0.1
+     * @param ipAddress IP address to check, an IPv4 one such as 192.168.0.1 or an IPv6 one
+     * @return true if the IP address is black listed at the moment
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
+     */
+    default boolean isBlackListed(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return isBlackListedIpv6(address[0], address[1]);
+        }
+        return isBlackListed(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as isBlackListed(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order
      * @return true if the IP address is black listed at the moment
      */
-    boolean isBlackListed(String ipAddress);
+    boolean isBlackListed(int ipAddress);
+
+    /**
+     * Same as isBlackListed(String), for an IPv6 address in two long form (see Ipv6).
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default boolean isBlackListedIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return isBlackListed((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
     
     /**
      * Assignment 1:
      * Gets the the counter mapped to the address.
-     * @param ipAddress IP address, please only consider IPV4 format address such as 192.168.0.1
+     * @param ipAddress IP address, an IPv4 one such as 192.168.0.1 or an IPv6 one such as 2001:db8::1
+     * @return the current counter of the address
+     * @throws IllegalArgumentException if the address isn't a valid IPv4 or IPv6 address
+     */
+    default long get(String ipAddress) {
+        if (Ipv6.isIpv6(ipAddress)) {
+            long[] address = Ipv6.parse(ipAddress);
+            return getIpv6(address[0], address[1]);
+        }
+        return get(Ipv4.parse(ipAddress));
+    }
+
+    /**
+     * Same as get(String), for an address already in int form (see Ipv4).
+     * @param ipAddress IPv4 address in network byte order
      * @return the current counter of the address
      */
-    long get(String ipAddress);
+    long get(int ipAddress);
+
+    /**
+     * Same as get(String), for an IPv6 address in two long form (see Ipv6).
+     * @throws UnsupportedOperationException if the implementation only tracks IPv4 addresses
+     */
+    default long getIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return get((int) low);
+        }
+        throw new UnsupportedOperationException("No IPv6 in " + getClass().getSimpleName());
+    }
     
     /**
      * Assignment 2:
@@ -58,4 +200,21 @@ public interface BlackListSvc
      */
     Map<String, Integer> getTopN(int n);
 
+    /**
+     * Delivers the changes of the blacklist (ips blacklisted, renewed and expired) to the listener,
+     * in batches, from now on; eg; to push bans to edge firewalls rather than polling.
+     * @throws UnsupportedOperationException if the implementation doesn't publish changes
+     */
+    default void subscribe(BlackListListener listener) {
+        throw new UnsupportedOperationException("No change events from " + getClass().getSimpleName());
+    }
+
+    /**
+     * Stops delivering changes to the listener.
+     * @return false if it wasn't subscribed
+     */
+    default boolean unsubscribe(BlackListListener listener) {
+        return false;
+    }
+
 }
@@ -0,0 +1,128 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+/**
+ * IPv4 address helpers.
+ *
+ * Addresses are represented as a 32-bit int in network byte order, so 1.2.3.4 is 0x01020304.
+ * Parsing never allocates, which keeps the String adapters of the BlackListSvc cheap.
+ */
+public final class Ipv4 {
+
+    /**
+     * Returned by tryParse() when the input isn't a dotted quad.  Valid addresses are
+     * always in the range [0, 0xFFFFFFFF] so a negative value can't clash with them.
+     */
+    public static final long INVALID = -1L;
+
+    private Ipv4() {
+    }
+
+    /**
+     * Parses a dotted quad (eg; 192.168.0.1) into its int form.
+     * @throws IllegalArgumentException if the address is null or not a valid IPv4 address
+     */
+    public static int parse(CharSequence ip) {
+        long result = ip == null ? INVALID : tryParse(ip, 0, ip.length());
+        if (result == INVALID) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+        }
+        return (int) result;
+    }
+
+    /**
+     * Parses the dotted quad held in ip[from, to).
+     * Returns the unsigned address, or INVALID, so callers on a hot path can skip bad input
+     * without paying for an exception.
+     */
+    public static long tryParse(CharSequence ip, int from, int to) {
+        long result = 0L;
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return INVALID;
+                }
+            } else if (c == '.' && digits > 0 && octets < 3) {
+                result = (result << 8) | value;
+                octets++;
+                value = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+        if (digits == 0 || octets != 3) {
+            return INVALID;
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * Same as tryParse(CharSequence, int, int), but over ASCII bytes; eg; a line of an access log.
+     */
+    public static long tryParse(byte[] ip, int from, int to) {
+        long result = 0L;
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            int c = ip[i];
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return INVALID;
+                }
+            } else if (c == '.' && digits > 0 && octets < 3) {
+                result = (result << 8) | value;
+                octets++;
+                value = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+        if (digits == 0 || octets != 3) {
+            return INVALID;
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * Formats the int form back into a dotted quad.
+     */
+    public static String format(int ip) {
+        return new StringBuilder(15)
+            .append(ip >>> 24).append('.')
+            .append((ip >>> 16) & 0xFF).append('.')
+            .append((ip >>> 8) & 0xFF).append('.')
+            .append(ip & 0xFF)
+            .toString();
+    }
+
+    /**
+     * Compares two addresses numerically (ie; as unsigned values), so 10.0.0.1 sorts before 192.168.0.1.
+     */
+    public static int compare(int a, int b) {
+        return Integer.compare(a ^ Integer.MIN_VALUE, b ^ Integer.MIN_VALUE);
+    }
+}
@@ -0,0 +1,215 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+/**
+ * IPv6 address helpers.
+ *
+ * Addresses are represented as two longs, the high and low 64 bits in network byte order, so
+ * 2001:db8::1 is (0x20010DB800000000, 0x1).  Every textual variant of an address (leading zeros,
+ * upper case, :: anywhere, a dotted quad tail) parses to the same pair, and parsing writes into an
+ * array of the caller's rather than allocating.  IPv4-mapped addresses (::ffff:1.2.3.4) are those
+ * of IPv4 clients on a dual stack socket, see isIpv4Mapped().
+ */
+public final class Ipv6 {
+
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    private Ipv6() {
+    }
+
+    /**
+     * Whether the address is meant to be an IPv6 one (it has a colon), rather than a dotted quad.
+     */
+    public static boolean isIpv6(CharSequence ip) {
+        if (ip == null) {
+            return false;
+        }
+        for (int i = 0; i < ip.length(); i++) {
+            if (ip.charAt(i) == ':') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses an address (eg; 2001:db8::1) into a new two long array, high then low.
+     * @throws IllegalArgumentException if the address is null or not a valid IPv6 address
+     */
+    public static long[] parse(CharSequence ip) {
+        long[] address = new long[2];
+        if (ip == null || !tryParse(ip, 0, ip.length(), address)) {
+            throw new IllegalArgumentException("Not an IPv6 address: " + ip);
+        }
+        return address;
+    }
+
+    /**
+     * Parses the address held in ip[from, to) into address[0] (high) and address[1] (low).
+     * Returns false, leaving address as it was, if it isn't a valid IPv6 address; zones (%eth0)
+     * and brackets aren't accepted.
+     */
+    public static boolean tryParse(CharSequence ip, int from, int to, long[] address) {
+        long high = 0L;
+        long low = 0L;
+        long tailHigh = 0L; // the groups after ::, shifted in from the right
+        long tailLow = 0L;
+        int groups = 0;
+        int gap = -1; // groups before ::
+        int i = from;
+        if (to - from >= 2 && ip.charAt(from) == ':' && ip.charAt(from + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < to || (gap < 0 && groups == 0)) {
+            int start = i;
+            int value = 0;
+            int digits = 0;
+            for (; i < to; i++) {
+                int digit = hex(ip.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                if (++digits > 4) {
+                    return false;
+                }
+                value = value << 4 | digit;
+            }
+            int count = 1;
+            if (i < to && ip.charAt(i) == '.') { // the last 32 bits as a dotted quad
+                long ipv4 = Ipv4.tryParse(ip, start, to);
+                if (ipv4 == Ipv4.INVALID) {
+                    return false;
+                }
+                value = (int) ipv4;
+                count = 2;
+                i = to;
+            } else if (digits == 0) {
+                return false;
+            }
+            if (groups + count > (gap < 0 ? 8 : 7)) {
+                return false;
+            }
+            for (int k = count - 1; k >= 0; k--, groups++) {
+                long group = value >>> (k << 4) & 0xFFFF;
+                if (gap < 0) { // where it goes is known
+                    if (groups < 4) {
+                        high |= group << (48 - (groups << 4));
+                    } else {
+                        low |= group << (48 - ((groups - 4) << 4));
+                    }
+                } else {
+                    tailHigh = tailHigh << 16 | tailLow >>> 48;
+                    tailLow = tailLow << 16 | group;
+                }
+            }
+            if (i == to) {
+                break;
+            }
+            if (ip.charAt(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (ip.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return false;
+                }
+                gap = groups;
+                i++;
+            }
+        }
+        if (gap < 0 && groups != 8) {
+            return false;
+        }
+        address[0] = high | tailHigh;
+        address[1] = low | tailLow;
+        return true;
+    }
+
+    /**
+     * Whether the address is an IPv4 one mapped into IPv6 (::ffff:0:0/96); its IPv4 address is (int) low.
+     */
+    public static boolean isIpv4Mapped(long high, long low) {
+        return high == 0L && (low & 0xFFFFFFFF00000000L) == IPV4_MAPPED;
+    }
+
+    /**
+     * The high bits of the address's network of the given prefix length (0 to 128).
+     */
+    public static long maskHigh(long high, int prefixLength) {
+        return prefixLength >= 64 ? high : prefixLength == 0 ? 0L : high & -1L << (64 - prefixLength);
+    }
+
+    /**
+     * The low bits of the address's network of the given prefix length (0 to 128).
+     */
+    public static long maskLow(long low, int prefixLength) {
+        return prefixLength <= 64 ? 0L : low & -1L << (128 - prefixLength);
+    }
+
+    /**
+     * Formats the address in its canonical text form (RFC 5952): lower case, no leading zeros, the
+     * longest run of two or more zero groups as ::, and IPv4-mapped addresses with a dotted quad.
+     */
+    public static String format(long high, long low) {
+        if (isIpv4Mapped(high, low)) {
+            return "::ffff:" + Ipv4.format((int) low);
+        }
+        int gapStart = -1;
+        int gapLength = 1;
+        for (int i = 0, run = 0; i < 8; i++) {
+            run = group(high, low, i) == 0 ? run + 1 : 0;
+            if (run > gapLength) {
+                gapStart = i - run + 1;
+                gapLength = run;
+            }
+        }
+        StringBuilder result = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            if (i == gapStart) {
+                result.append("::");
+                i += gapLength - 1;
+                continue;
+            }
+            if (result.length() > 0 && result.charAt(result.length() - 1) != ':') {
+                result.append(':');
+            }
+            result.append(Integer.toHexString(group(high, low, i)));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Compares two addresses numerically (ie; as unsigned 128 bit values).
+     */
+    public static int compare(long highA, long lowA, long highB, long lowB) {
+        int result = Long.compare(highA ^ Long.MIN_VALUE, highB ^ Long.MIN_VALUE);
+        return result != 0 ? result : Long.compare(lowA ^ Long.MIN_VALUE, lowB ^ Long.MIN_VALUE);
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        c |= 0x20; // lower case
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    private static int group(long high, long low, int i) {
+        return (int) ((i < 4 ? high : low) >>> (48 - ((i & 3) << 4))) & 0xFFFF;
+    }
+}
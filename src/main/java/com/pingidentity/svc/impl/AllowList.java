@@ -0,0 +1,156 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Ips whose failures are never counted, eg; NAT gateways, health checkers and partners:
+ * AllowList.of("10.1.2.3", "192.168.0.0/16").  The service checks it before looking up the db,
+ * so they don't get any tracking state, and they're never blacklisted.
+ *
+ * The addresses are merged into sorted, disjoint ranges looked up by binary search, behind a bitmap
+ * of the /16s that hold any of them (8KB), so an ip outside of them costs a single bit test
+ * whatever the size of the list.  Immutable, a new list replaces the service's at any time.
+ */
+public final class AllowList {
+
+    private static final AllowList NONE = new AllowList(new int[0], new int[0]);
+
+    // unsigned addresses with the sign bit flipped, so they compare as ints
+    private final int[] starts;
+    private final int[] ends;
+    private final long[] blocks = new long[1 << 10]; // a bit per /16
+
+    private AllowList(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        for (int i = 0; i < starts.length; i++) {
+            for (int block = (starts[i] ^ Integer.MIN_VALUE) >>> 16; block <= (ends[i] ^ Integer.MIN_VALUE) >>> 16; block++) {
+                blocks[block >>> 6] |= 1L << block;
+            }
+        }
+    }
+
+    /**
+     * Nothing is allowed.
+     */
+    public static AllowList none() {
+        return NONE;
+    }
+
+    /**
+     * @param entries ips (1.2.3.4) and CIDR blocks (10.0.0.0/8)
+     * @throws IllegalArgumentException if an entry isn't either
+     */
+    public static AllowList of(String... entries) {
+        AllowList list = NONE;
+        for (String entry : entries) {
+            list = list.with(entry);
+        }
+        return list;
+    }
+
+    /**
+     * Returns this list plus an ip (1.2.3.4) or CIDR block (10.0.0.0/8).
+     */
+    public AllowList with(String entry) {
+        int slash = entry.indexOf('/');
+        if (slash < 0) {
+            return with(Ipv4.parse(entry), 32);
+        }
+        int prefixLength;
+        try {
+            prefixLength = Integer.parseInt(entry.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a CIDR block: " + entry);
+        }
+        return with(Ipv4.parse(entry.substring(0, slash)), prefixLength);
+    }
+
+    /**
+     * Returns this list plus the block of the given prefix length holding ip; the host bits are ignored.
+     */
+    public AllowList with(int ip, int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("prefix length must be between 0 and 32: " + prefixLength);
+        }
+        int mask = prefixLength == 0 ? 0 : PrefixLevels.mask(prefixLength);
+        int start = (ip & mask) ^ Integer.MIN_VALUE;
+        int end = (ip | ~mask) ^ Integer.MIN_VALUE;
+        // insert, then merge the overlapping and adjacent ranges
+        int[] newStarts = Arrays.copyOf(starts, starts.length + 1);
+        int[] newEnds = Arrays.copyOf(ends, ends.length + 1);
+        int at = starts.length;
+        while (at > 0 && newStarts[at - 1] > start) {
+            newStarts[at] = newStarts[at - 1];
+            newEnds[at] = newEnds[at - 1];
+            at--;
+        }
+        newStarts[at] = start;
+        newEnds[at] = end;
+        int count = 0;
+        for (int i = 0; i < newStarts.length; i++) {
+            if (count > 0 && (newStarts[i] <= newEnds[count - 1]
+                    || newEnds[count - 1] != Integer.MAX_VALUE && newStarts[i] == newEnds[count - 1] + 1)) {
+                newEnds[count - 1] = Math.max(newEnds[count - 1], newEnds[i]);
+            } else {
+                newStarts[count] = newStarts[i];
+                newEnds[count] = newEnds[i];
+                count++;
+            }
+        }
+        return new AllowList(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    /**
+     * Number of ranges after merging.
+     */
+    int size() {
+        return starts.length;
+    }
+
+    public boolean contains(int ip) {
+        int block = ip >>> 16;
+        if ((blocks[block >>> 6] & (1L << block)) == 0L) {
+            return false;
+        }
+        int key = ip ^ Integer.MIN_VALUE;
+        // last range starting at or before ip
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && key <= ends[high];
+    }
+
+    public boolean contains(String ip) {
+        return contains(Ipv4.parse(ip));
+    }
+}
@@ -0,0 +1,305 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pingidentity.svc.AsyncBlackListSvc;
+import com.pingidentity.svc.BlackListListener;
+import com.pingidentity.svc.Ipv4;
+import com.pingidentity.svc.Ipv6;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * AsyncBlackListSvc over a ShardedBlackListSvc: every shard has a bounded queue (see MpscIntQueue)
+ * and a single writer thread applying its requests in order, so callers only pay for a CAS on the
+ * queue and the shard's table only has one writer.
+ *
+ * When a queue is full the Overflow policy decides; the default, CALLER_RUNS, tracks the request
+ * on the caller's thread (track() doesn't block, it's only slower under contention) so attackers
+ * aren't under counted during the floods that fill the queue.
+ *
+ * The queues carry int ips, so IPv6 requests go straight to their shard on the caller's thread, as
+ * with CALLER_RUNS.  Change events are the underlying service's, published as the writers apply
+ * the requests.
+ */
+@Slf4j
+public class AsyncBlackListSvcImpl implements AsyncBlackListSvc {
+
+    final static int QUEUE_CAPACITY = 16 * 1024; // per shard
+    final static int DRAIN_BATCH = 256;
+    final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // a missed unpark costs at most this
+
+    /**
+     * What to do with a request when its shard's queue is full.
+     */
+    public enum Overflow {
+        /** Track it on the caller's thread. */
+        CALLER_RUNS,
+        /** Don't track it, the stage completes with the current status. */
+        DROP,
+        /** Don't track it, the stage completes with a RejectedExecutionException. */
+        REJECT
+    }
+
+    @Getter
+    private final ShardedBlackListSvc svc;
+    private final Writer[] writers;
+    private final Overflow overflow;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean stopped;
+
+    /**
+     * One shard and writer per core, with the same defaults as BlackListSvcImpl.
+     */
+    public AsyncBlackListSvcImpl() {
+        this(new ShardedBlackListSvc(), QUEUE_CAPACITY, Overflow.CALLER_RUNS);
+    }
+
+    /**
+     * @param svc the service the requests are applied to, it's shut down with this one
+     * @param capacity capacity of each shard's queue, rounded up to the next power of two
+     */
+    public AsyncBlackListSvcImpl(ShardedBlackListSvc svc, int capacity, Overflow overflow) {
+        this(svc, capacity, overflow, true);
+    }
+
+    AsyncBlackListSvcImpl(ShardedBlackListSvc svc, int capacity, Overflow overflow, boolean start) {
+        this.svc = svc;
+        this.overflow = overflow;
+        BlackListSvcImpl[] shards = svc.getShards();
+        this.writers = new Writer[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            writers[i] = new Writer(shards[i], new MpscIntQueue<>(capacity), "blacklist-writer-" + i);
+        }
+        if (start) {
+            start();
+        }
+    }
+
+    /**
+     * Starts the writer threads, the tests call it themselves to fill queues.
+     */
+    void start() {
+        for (Writer writer : writers) {
+            writer.start();
+        }
+    }
+
+    @Override
+    public CompletionStage<Boolean> track(int ipAddress) {
+        Writer writer = writers[svc.shardIndex(ipAddress)];
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (stopped) {
+            result.completeExceptionally(new RejectedExecutionException("shut down"));
+        } else if (writer.offer(ipAddress, result)) {
+            return result;
+        } else {
+            switch (overflow) {
+                case CALLER_RUNS:
+                    result.complete(writer.shard.track(ipAddress));
+                    break;
+                case DROP:
+                    dropped.increment();
+                    result.complete(writer.shard.isBlackListed(ipAddress));
+                    break;
+                default:
+                    dropped.increment();
+                    result.completeExceptionally(new RejectedExecutionException("queue full"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * With CALLER_RUNS a full queue still tracks the request, on the caller's thread, and returns true.
+     */
+    @Override
+    public boolean trackAsync(int ipAddress) {
+        Writer writer = writers[svc.shardIndex(ipAddress)];
+        if (stopped) {
+            return false;
+        }
+        if (writer.offer(ipAddress, null)) {
+            return true;
+        }
+        if (overflow == Overflow.CALLER_RUNS) {
+            writer.shard.track(ipAddress);
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    @Override
+    public boolean isBlackListed(int ipAddress) {
+        return svc.isBlackListed(ipAddress);
+    }
+
+    @Override
+    public CompletionStage<Boolean> trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (stopped) {
+            result.completeExceptionally(new RejectedExecutionException("shut down"));
+        } else {
+            result.complete(svc.trackIpv6(high, low));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean trackAsyncIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return trackAsync((int) low);
+        }
+        if (stopped) {
+            return false;
+        }
+        svc.trackIpv6(high, low);
+        return true;
+    }
+
+    @Override
+    public boolean isBlackListedIpv6(long high, long low) {
+        return svc.isBlackListedIpv6(high, low);
+    }
+
+    /**
+     * Subscribes to the underlying service, see ShardedBlackListSvc.subscribe().
+     */
+    @Override
+    public void subscribe(BlackListListener listener) {
+        svc.subscribe(listener);
+    }
+
+    @Override
+    public boolean unsubscribe(BlackListListener listener) {
+        return svc.unsubscribe(listener);
+    }
+
+    /**
+     * Requests not tracked because their queue was full (DROP and REJECT).
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Applies the requests already queued, rejects later ones, then stops the writers and the
+     * underlying service.  A request racing with it may be neither applied nor rejected.
+     */
+    public void shutdown() {
+        stopped = true;
+        for (Writer writer : writers) {
+            LockSupport.unpark(writer.thread);
+        }
+        for (Writer writer : writers) {
+            try {
+                writer.thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        svc.shutdown();
+    }
+
+    /**
+     * A shard's queue and the thread draining it.
+     */
+    private final class Writer implements Runnable, ConcurrentIntMap.IntObjConsumer<CompletableFuture<Boolean>> {
+
+        final BlackListSvcImpl shard;
+        final MpscIntQueue<CompletableFuture<Boolean>> queue;
+        final Thread thread;
+        private volatile boolean parked;
+
+        Writer(BlackListSvcImpl shard, MpscIntQueue<CompletableFuture<Boolean>> queue, String name) {
+            this.shard = shard;
+            this.queue = queue;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean offer(int ip, CompletableFuture<Boolean> result) {
+            if (!queue.offer(ip, result)) {
+                return false;
+            }
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int count = queue.drain(this, DRAIN_BATCH);
+                if (count > 0) {
+                    continue;
+                }
+                if (stopped) {
+                    break;
+                }
+                // announce it before the last look at the queue, a producer publishing after
+                // that look sees the flag (both are volatile) and unparks us
+                parked = true;
+                if (queue.isEmpty() && !stopped) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                parked = false;
+            }
+            // requests that raced with shutdown()
+            queue.drain((ip, result) -> {
+                if (result != null) {
+                    result.completeExceptionally(new RejectedExecutionException("shut down"));
+                }
+            }, queue.capacity());
+        }
+
+        @Override
+        public void accept(int ip, CompletableFuture<Boolean> result) {
+            boolean blackListed;
+            try {
+                blackListed = shard.track(ip);
+            } catch (RuntimeException e) {
+                log.warn("Couldn't track {}: {}", Ipv4.format(ip), e.toString());
+                if (result != null) {
+                    result.completeExceptionally(e);
+                }
+                return;
+            }
+            if (result != null) {
+                result.complete(blackListed);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pingidentity.svc.BlackListEvent;
+import com.pingidentity.svc.BlackListListener;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Change events of a service, see BlackListSvc.subscribe().  The service publishes the transitions
+ * it already detects: an ip joining the blacklisted set, a blacklisted ip's end moving forward (at
+ * most once a second, as the end is now plus the duration) and the cleanup dropping an ip whose
+ * blacklist is over.
+ *
+ * Events go to a bounded MpscRing (of an ip and a packed type and end, as MpscIntQueue is of an ip
+ * and an attachment), so publishing neither allocates nor blocks; when it's full the event is
+ * dropped and counted by getDropped().  A dispatcher thread drains it every BATCH_INTERVAL_MILLIS,
+ * keeps one event per ip (renewals fold into the ip's BLACKLISTED or RENEWED event, otherwise the
+ * latest wins) and hands the batch to every listener.  OffHeapBlackListSvc publishes the same
+ * events from its segments.
+ */
+@Slf4j
+final class BlackListEvents {
+
+    static final int RING_CAPACITY = 64 * 1024;
+    static final long BATCH_INTERVAL_MILLIS = 100;
+    private static final BlackListEvent.Type[] TYPES = BlackListEvent.Type.values();
+
+    private final Ring ring; // consumed under the lock
+    private final ReentrantLock lock = new ReentrantLock(); // a single consumer, see dispatch()
+    private final List<BlackListListener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final long interval;
+    private final Thread dispatcher; // null if only dispatched by the caller
+    private volatile boolean stopped;
+
+    BlackListEvents() {
+        this(RING_CAPACITY, BATCH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param interval milliseconds between batches, 0 for no dispatcher thread (tests call dispatch())
+     */
+    BlackListEvents(int capacity, long interval) {
+        this.ring = new Ring(capacity);
+        this.interval = interval;
+        if (interval > 0) {
+            dispatcher = new Thread(this::run, "blacklist-events");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        } else {
+            dispatcher = null;
+        }
+    }
+
+    void subscribe(BlackListListener listener) {
+        listeners.add(listener);
+    }
+
+    boolean unsubscribe(BlackListListener listener) {
+        return listeners.remove(listener);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues an event, or drops it if the ring is full.
+     */
+    void publish(BlackListEvent.Type type, int ip, long end) {
+        long pos = ring.claim();
+        if (pos < 0) {
+            dropped.increment();
+            return;
+        }
+        int slot = (int) pos & ring.mask;
+        ring.ips[slot] = ip;
+        ring.ends[slot] = end << 2 | type.ordinal();
+        ring.publish(pos);
+    }
+
+    /**
+     * Delivers the events queued so far, coalesced, to the listeners; called by the dispatcher, and
+     * by tests that don't want to wait for it.
+     * @return the number of events delivered
+     */
+    int dispatch() {
+        lock.lock(); // batches are delivered in order
+        try {
+            List<BlackListEvent> batch = new ArrayList<>();
+            Map<Integer, Integer> index = new HashMap<>();
+            int slot;
+            while ((slot = ring.peek()) >= 0) {
+                int ip = ring.ips[slot];
+                long packed = ring.ends[slot];
+                ring.release();
+                BlackListEvent event = new BlackListEvent(TYPES[(int) packed & 3], ip, packed >> 2);
+                Integer at = index.putIfAbsent(ip, batch.size());
+                if (at == null) {
+                    batch.add(event);
+                } else {
+                    batch.set(at, coalesce(batch.get(at), event));
+                }
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            List<BlackListEvent> events = Collections.unmodifiableList(batch);
+            for (BlackListListener listener : listeners) {
+                try {
+                    listener.onEvents(events);
+                } catch (RuntimeException e) {
+                    log.warn("Listener {} failed: {}", listener, e.toString()); // the others still get the batch
+                }
+            }
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers what's left, then stops the dispatcher.
+     */
+    void shutdown() {
+        stopped = true;
+        if (dispatcher == null) {
+            dispatch();
+            return;
+        }
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An ip's next event of a batch: a renewal keeps the earlier event, with the new end, unless
+     * the ip had expired in between; otherwise the latest wins.
+     */
+    private static BlackListEvent coalesce(BlackListEvent earlier, BlackListEvent later) {
+        if (later.getType() == BlackListEvent.Type.RENEWED && earlier.getType() != BlackListEvent.Type.EXPIRED) {
+            return new BlackListEvent(earlier.getType(), later.getIp(), Math.max(earlier.getEnd(), later.getEnd()));
+        }
+        return later;
+    }
+
+    private void run() {
+        while (!stopped) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(interval));
+            try {
+                dispatch();
+            } catch (RuntimeException e) {
+                log.error("Event dispatch failed: {}", e); // keep delivering
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * The events by slot: the ip, and its end and type packed as end << 2 | type.
+     */
+    private static final class Ring extends MpscRing {
+        final int[] ips;
+        final long[] ends;
+
+        Ring(int capacity) {
+            super(capacity);
+            this.ips = new int[mask + 1];
+            this.ends = new long[mask + 1];
+        }
+    }
+}
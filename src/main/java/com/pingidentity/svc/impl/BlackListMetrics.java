@@ -0,0 +1,132 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a BlackListSvcImpl, see BlackListSvcImpl.getMetrics() for the names they're
+ * published under.
+ *
+ * Every call is counted in a LongAdder, which threads update without contending; the latency of
+ * 1 in SAMPLE_RATE calls is recorded in a LatencyHistogram, as reading the time twice costs more
+ * than the counters, and percentiles don't need every call.  isBlackListed() is so cheap that
+ * even a LongAdder would double its cost, so its count is estimated from the samples.  Counts and
+ * percentiles are cumulative since the service started.
+ */
+public final class BlackListMetrics {
+
+    static final int SAMPLE_RATE = 64;
+
+    private final boolean enabled;
+    final Operation track = new Operation("track", false);
+    final Operation isBlackListed = new Operation("isBlackListed", true);
+    final Operation get = new Operation("get", false);
+    final Operation topN = new Operation("getTopN", false);
+    final LongAdder joined = new LongAdder(); // ips that got blacklisted
+    final LongAdder left = new LongAdder(); // ips dropped from the blacklisted set
+    final LongAdder removed = new LongAdder(); // entries removed by the cleanup
+    final LongAdder cleanups = new LongAdder();
+    final LongAdder promoted = new LongAdder(); // ips that got a Tracking from the sketch
+    final LongAdder late = new LongAdder(); // events too far behind the watermark, see BlackListSvcImpl.track(ip, epochMillis)
+    final LongAdder early = new LongAdder(); // and too far past it
+    final LongAdder evicted = new LongAdder(); // entries dropped for a new one at capacity, see BlackListSvcImpl.evict()
+    final LongAdder rejected = new LongAdder(); // failures of ips kept out of the db at capacity
+    volatile long lastCleanupNanos;
+    volatile int lastRemoved;
+
+    BlackListMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start time of a sampled call, or 0 if it isn't sampled.
+     */
+    long start() {
+        if (enabled && (ThreadLocalRandom.current().nextInt() & (SAMPLE_RATE - 1)) == 0) {
+            return System.nanoTime();
+        }
+        return 0L;
+    }
+
+    void cleanup(long startNanos, int removed) {
+        if (!enabled) {
+            return;
+        }
+        this.cleanups.increment();
+        this.removed.add(removed);
+        this.lastRemoved = removed;
+        this.lastCleanupNanos = System.nanoTime() - startNanos;
+    }
+
+    void putAll(Map<String, Number> metrics) {
+        for (Operation operation : new Operation[] {track, isBlackListed, get, topN}) {
+            operation.putAll(metrics);
+        }
+        metrics.put("blacklist.joined", joined.sum());
+        metrics.put("blacklist.left", left.sum());
+        metrics.put("cleanup.runs", cleanups.sum());
+        metrics.put("cleanup.removed", removed.sum());
+        metrics.put("cleanup.last.removed", lastRemoved);
+        metrics.put("cleanup.last.nanos", lastCleanupNanos);
+        metrics.put("sketch.promoted", promoted.sum());
+        metrics.put("track.late", late.sum());
+        metrics.put("track.early", early.sum());
+        metrics.put("capacity.evicted", evicted.sum());
+        metrics.put("capacity.rejected", rejected.sum());
+    }
+
+    /**
+     * Calls and latency of an operation.
+     */
+    final class Operation {
+        private final String name;
+        private final boolean estimated; // only sampled calls are counted
+        private final LongAdder count = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Operation(String name, boolean estimated) {
+            this.name = name;
+            this.estimated = estimated;
+        }
+
+        /**
+         * Counts the call, and records its latency if it was sampled (see start()).
+         */
+        void end(long start) {
+            if (start != 0L) {
+                latency.record(System.nanoTime() - start);
+                if (estimated) {
+                    count.add(SAMPLE_RATE);
+                }
+            }
+            if (enabled && !estimated) {
+                count.increment();
+            }
+        }
+
+        void putAll(Map<String, Number> metrics) {
+            metrics.put(name + ".count", count.sum());
+            metrics.put(name + ".p50.nanos", latency.percentile(50.0));
+            metrics.put(name + ".p99.nanos", latency.percentile(99.0));
+            metrics.put(name + ".p999.nanos", latency.percentile(99.9));
+            metrics.put(name + ".max.nanos", latency.max());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named BlackListPolicy's, eg; one for the logins and one for the api calls:
+ * BlackListPolicies.none().with("login", BlackListPolicy.of(5, 60, 300, 1800, 86400)).with("api", ...)
+ * The service tracks each ip's failures under the policy named by track(ip, key), in the ip's
+ * Tracking, and the ip is blacklisted by any of them.
+ *
+ * Immutable, so a reload builds new policies and passes them to BlackListSvcImpl.setPolicies().
+ */
+public final class BlackListPolicies {
+
+    private static final BlackListPolicies NONE = new BlackListPolicies(Collections.emptyMap());
+
+    private final Map<String, BlackListPolicy> policies;
+
+    private BlackListPolicies(Map<String, BlackListPolicy> policies) {
+        this.policies = policies;
+    }
+
+    /**
+     * No named policies, only the service's own limits apply.
+     */
+    public static BlackListPolicies none() {
+        return NONE;
+    }
+
+    /**
+     * Returns these policies plus (or with a new version of) the given one.
+     */
+    public BlackListPolicies with(String key, BlackListPolicy policy) {
+        if (key == null || policy == null) {
+            throw new IllegalArgumentException("key and policy are required");
+        }
+        Map<String, BlackListPolicy> newPolicies = new LinkedHashMap<>(policies);
+        newPolicies.put(key, policy);
+        return new BlackListPolicies(Collections.unmodifiableMap(newPolicies));
+    }
+
+    /**
+     * Returns these policies without the given one.
+     */
+    public BlackListPolicies without(String key) {
+        Map<String, BlackListPolicy> newPolicies = new LinkedHashMap<>(policies);
+        newPolicies.remove(key);
+        return new BlackListPolicies(Collections.unmodifiableMap(newPolicies));
+    }
+
+    /**
+     * @return the policy or null
+     */
+    public BlackListPolicy get(String key) {
+        return policies.get(key);
+    }
+
+    public Map<String, BlackListPolicy> asMap() {
+        return policies;
+    }
+}
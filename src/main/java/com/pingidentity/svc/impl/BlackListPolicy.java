@@ -0,0 +1,121 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits for a kind of failed request, eg; the logins: blacklist an ip once max requests are in
+ * the window, for the first duration, and for the next ones on repeat offences.
+ * BlackListPolicy.of(5, 60, 300, 1800, 86400) blacklists after 5 failed logins within a minute,
+ * for 5 minutes the first time, then 30 minutes, then a day from the third time on.  An ip's
+ * offences (strikes) are forgotten once it hasn't been blacklisted for the policy's memory, a day
+ * by default, see withMemory().
+ *
+ * Immutable, see BlackListPolicies.
+ */
+public final class BlackListPolicy {
+
+    final static long STRIKE_MEMORY_SEC = TimeUnit.DAYS.toSeconds(1);
+
+    private final int max;
+    private final long window;
+    private final long[] durations;
+    private final long memory;
+    private final WindowStrategy windows;
+
+    private BlackListPolicy(int max, long window, long[] durations, long memory, WindowStrategy windows) {
+        this.max = max;
+        this.window = window;
+        this.durations = durations;
+        this.memory = memory;
+        this.windows = windows;
+    }
+
+    /**
+     * @param max number of failed requests in the window at which an ip gets blacklisted
+     * @param windowSec length of the rolling window
+     * @param durationsSec blacklist duration of the first offence, then of the next ones; the last
+     * one applies to every later offence
+     */
+    public static BlackListPolicy of(int max, long windowSec, long... durationsSec) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        if (windowSec < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        if (durationsSec.length == 0) {
+            throw new IllegalArgumentException("at least one duration is needed");
+        }
+        for (long duration : durationsSec) {
+            if (duration < 1) {
+                throw new IllegalArgumentException("durations must be positive");
+            }
+        }
+        return new BlackListPolicy(max, windowSec, durationsSec.clone(), STRIKE_MEMORY_SEC,
+            WindowStrategy.buckets(windowSec, BlackListSvcImpl.WINDOW_BUCKETS));
+    }
+
+    /**
+     * Returns this policy with strikes forgotten after the given time without being blacklisted.
+     */
+    public BlackListPolicy withMemory(long memorySec) {
+        if (memorySec < 0) {
+            throw new IllegalArgumentException("memory must not be negative");
+        }
+        return new BlackListPolicy(max, window, durations, memorySec, windows);
+    }
+
+    /**
+     * Returns this policy with the given windows, eg; WindowStrategy.exact(); by default they are
+     * buckets of a 30th of the window.
+     */
+    public BlackListPolicy withWindows(WindowStrategy windows) {
+        return new BlackListPolicy(max, window, durations, memory, windows);
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public long getMemory() {
+        return memory;
+    }
+
+    WindowStrategy getWindows() {
+        return windows;
+    }
+
+    /**
+     * Blacklist duration of an ip with the given number of previous strikes.
+     */
+    public long duration(int strikes) {
+        return durations[Math.min(strikes, durations.length - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return "BlackListPolicy(max=" + max + ", window=" + window + ", durations=" + Arrays.toString(durations)
+            + ", memory=" + memory + ")";
+    }
+}
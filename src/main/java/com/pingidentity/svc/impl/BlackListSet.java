@@ -0,0 +1,223 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ips that are, or recently were, blacklisted, for isBlackListed() to check without going to
+ * the db.
+ *
+ * A sorted array of the ips (with their Tracking, which has the current blacklist end) plus a small
+ * table of the ips that joined since the array was built, both behind a filter of one bit per slot;
+ * so for most ips a lookup is a volatile read and a filter bit.  Renewing a blacklist doesn't
+ * change the set, only the Tracking.
+ *
+ * Writers take a lock, but only for ips joining: a Tracking is flagged while it's a member, so
+ * track() on a blacklisted ip only reads the flag.  A new ip goes in the recent table and sets its
+ * filter bit; once the table holds a quarter of the array's size both are merged into a new array,
+ * so a flood blacklisting thousands of ips a second costs a few copies per ip rather than a copy
+ * of the set each.  Members whose blacklist is over are dropped by removeExpired(), until then
+ * their Tracking tells they aren't blacklisted anymore.
+ */
+final class BlackListSet {
+
+    private static final int MIN_RECENT = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Members members = new Members(new int[0], new Tracking[0]);
+
+    /**
+     * The array, replaced as a whole, and the recent ips.
+     */
+    private static final class Members {
+        final int[] ips;
+        final Tracking[] trackings;
+        final ConcurrentIntMap<Tracking> recent = new ConcurrentIntMap<>(1, MIN_RECENT);
+        final int maxRecent;
+        final AtomicLongArray filter; // bit ConcurrentIntMap.hash(ip) & filterMask is set for every member
+        final int filterMask;
+
+        Members(int[] ips, Tracking[] trackings) {
+            this.ips = ips;
+            this.trackings = trackings;
+            this.maxRecent = Math.max(MIN_RECENT, ips.length / 4);
+            // about 8 bits per member, so 7 out of 8 other ips stop at the filter
+            int bits = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(64, (ips.length + maxRecent) * 8));
+            this.filter = new AtomicLongArray(bits >>> 6);
+            this.filterMask = bits - 1;
+            for (int ip : ips) {
+                mark(ip);
+            }
+        }
+
+        /**
+         * Sets the ip's filter bit, under the lock.
+         */
+        void mark(int ip) {
+            int bit = ConcurrentIntMap.hash(ip) & filterMask;
+            filter.set(bit >>> 6, filter.get(bit >>> 6) | (1L << bit));
+        }
+
+        Tracking get(int ip) {
+            int bit = ConcurrentIntMap.hash(ip) & filterMask;
+            if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return null;
+            }
+            Tracking tracking = recent.get(ip); // a recent Tracking replaces the array's
+            if (tracking != null) {
+                return tracking;
+            }
+            int i = Arrays.binarySearch(ips, ip);
+            return i >= 0 ? trackings[i] : null;
+        }
+    }
+
+    /**
+     * Returns the Tracking of the ip if it's a member; it may not be blacklisted anymore.
+     */
+    Tracking get(int ip) {
+        return members.get(ip);
+    }
+
+    int size() {
+        Members m = members;
+        int[] replaced = new int[1];
+        m.recent.forEach((ip, tracking) -> {
+            if (Arrays.binarySearch(m.ips, ip) >= 0) {
+                replaced[0]++;
+            }
+        });
+        return m.ips.length + m.recent.size() - replaced[0];
+    }
+
+    /**
+     * Adds the ip as blacklisted by tracking, or replaces its Tracking if the db has a new one;
+     * to be called once the blacklist end is set.  Costs a read of the flag if it's already in.
+     * @return whether the ip joined
+     */
+    boolean add(int ip, Tracking tracking) {
+        if (tracking.isListed()) {
+            return false;
+        }
+        lock.lock();
+        try {
+            tracking.setListed(true);
+            Members m = members;
+            Tracking old = m.get(ip);
+            if (old == tracking) {
+                return false; // kept by a rebuild racing with us, see keep()
+            }
+            m.mark(ip); // before the entry, so readers that find the bit set may find it
+            m.recent.put(ip, tracking);
+            if (m.recent.size() > m.maxRecent) {
+                members = rebuild(m, Long.MIN_VALUE, null);
+            }
+            return old == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the members that aren't blacklisted anymore, returns the number dropped.
+     */
+    int removeExpired(long now) {
+        return removeExpired(now, null);
+    }
+
+    /**
+     * Same as removeExpired(now), passing each member dropped to expired (if not null), under the lock.
+     */
+    int removeExpired(long now, ConcurrentIntMap.IntObjConsumer<Tracking> expired) {
+        Members m = members;
+        boolean[] any = new boolean[1];
+        for (Tracking tracking : m.trackings) {
+            if (!tracking.isBlackListed(now)) {
+                any[0] = true;
+                break;
+            }
+        }
+        m.recent.forEach((ip, tracking) -> any[0] |= !tracking.isBlackListed(now));
+        if (!any[0]) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            int size = size();
+            members = rebuild(members, now, expired);
+            return size - members.ips.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges the recent ips into a new array, without those that aren't blacklisted at now; under the lock.
+     */
+    private static Members rebuild(Members m, long now, ConcurrentIntMap.IntObjConsumer<Tracking> expired) {
+        int[] recentIps = new int[m.recent.size()];
+        int[] count = new int[1];
+        m.recent.forEach((ip, tracking) -> recentIps[count[0]++] = ip);
+        Arrays.sort(recentIps, 0, count[0]);
+        int[] ips = new int[m.ips.length + count[0]];
+        Tracking[] trackings = new Tracking[ips.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < m.ips.length || j < count[0]) {
+            int ip;
+            Tracking tracking;
+            if (j == count[0] || (i < m.ips.length && m.ips[i] < recentIps[j])) {
+                ip = m.ips[i];
+                tracking = m.trackings[i++];
+            } else {
+                ip = recentIps[j++];
+                tracking = m.recent.get(ip);
+                if (i < m.ips.length && m.ips[i] == ip) {
+                    i++; // replaced
+                }
+            }
+            if (keep(tracking, now)) {
+                ips[size] = ip;
+                trackings[size++] = tracking;
+            } else if (expired != null) {
+                expired.accept(ip, tracking);
+            }
+        }
+        return new Members(Arrays.copyOf(ips, size), Arrays.copyOf(trackings, size));
+    }
+
+    /**
+     * Whether a member is still blacklisted, if not it's unflagged.  The flag is cleared before the
+     * end is read again, while track() sets the end before reading the flag; so either we see the
+     * renewed end and keep it, or track() sees the cleared flag and adds it back once we're done.
+     */
+    private static boolean keep(Tracking tracking, long now) {
+        if (tracking.isBlackListed(now)) {
+            return true;
+        }
+        tracking.setListed(false);
+        if (tracking.isBlackListed(now)) {
+            tracking.setListed(true);
+            return true;
+        }
+        return false;
+    }
+}
@@ -16,24 +16,45 @@
  **************************************************************************/
 package com.pingidentity.svc.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
 import java.time.Clock;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.pingidentity.svc.BlackListEvent;
+import com.pingidentity.svc.BlackListListener;
 import com.pingidentity.svc.BlackListSvc;
+import com.pingidentity.svc.Ipv4;
+import com.pingidentity.svc.Ipv6;
 
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -45,49 +66,290 @@ import lombok.extern.slf4j.Slf4j;
  * discussion points regarding design decisions, etc.  
  */
 @Slf4j
-@AllArgsConstructor
 public class BlackListSvcImpl implements BlackListSvc {
 
     // default constants
     final static long ROLLING_TIME_WINDOW_SEC = TimeUnit.MINUTES.toSeconds(5);
     final static long BLACKLIST_DURATION_SEC = TimeUnit.MINUTES.toSeconds(5);
     final static int BAD_REQUEST_THRESHOLD = 20;
-    final static int CLEANUP_INTERVAL_SECONDS = 60;
+    final static int CLEANUP_INTERVAL_SECONDS = 1; // the expiry wheel's tick
+    final static int WINDOW_BUCKETS = 30; // 10 second buckets for the default window
+    final static int TOP_OFFENDERS = 1024; // max getTopN() of the default, approximate, index
+    final static int ESTIMATED_BYTES_PER_IP = 350; // default windows, see benchmarks/FootprintBenchmark
+    final static int IPV6_PREFIX_LENGTH = 64; // what an IPv6 client counts as, see trackIpv6()
+    final static long LATENESS_SEC = 60; // how far behind the watermark an event may be, see track(ip, epochMillis)
+    final static long EARLINESS_SEC = TimeUnit.DAYS.toSeconds(1); // and how far past it
+    final static int EVICTION_SAMPLE = 8; // entries looked at for a victim at capacity, see evict()
+    final static int EVICTION_ATTEMPTS = 3; // evictions a candidate may make, if other threads take the places
+
+    private static final AtomicReferenceFieldUpdater<BlackListSvcImpl, PolicySlots> POLICIES =
+        AtomicReferenceFieldUpdater.newUpdater(BlackListSvcImpl.class, PolicySlots.class, "policies");
+    private static final AtomicReferenceFieldUpdater<BlackListSvcImpl, BlackListEvents> EVENTS =
+        AtomicReferenceFieldUpdater.newUpdater(BlackListSvcImpl.class, BlackListEvents.class, "events");
 
     // Most of the Getter/Setter methods are package-level for testing purposes
     @Getter(AccessLevel.PACKAGE)
-    private ConcurrentMap<String, Tracking> db;
+    private final ConcurrentIntMap<Tracking> db;
     @Getter @Setter
     private Clock clock;
     @Setter(AccessLevel.PACKAGE)
     private long duration;
-    @Setter(AccessLevel.PACKAGE)
+    @Getter(AccessLevel.PACKAGE) @Setter(AccessLevel.PACKAGE)
     private long window;
     @Setter(AccessLevel.PACKAGE)
+    private WindowStrategy windowStrategy;
+    @Getter(AccessLevel.PACKAGE)
+    private final OffenderIndex offenders;
+    @Setter(AccessLevel.PACKAGE)
     private int max;
     @Getter @Setter(AccessLevel.PACKAGE)
     private long cleanupInterval;
-    private ExecutorService executor;
+    private final ScheduledExecutorService executor;
+    @Getter(AccessLevel.PACKAGE)
+    private final ExpiryWheel wheel;
+    private final IntFunction<Tracking> newTracking;
+    @Getter(AccessLevel.PACKAGE)
+    private final BlackListSet blackListSet = new BlackListSet(); // what isBlackListed() reads
+    @Getter(AccessLevel.PACKAGE)
+    private final SubnetTable subnets; // null without prefix levels
+    @Getter(AccessLevel.PACKAGE)
+    private final CountMinWindow sketch; // null unless counting approximately, see track()
+    private final ExpiryWheel.Expirer expirer = this::expire;
+    @Setter(AccessLevel.PACKAGE)
+    private BlackListMetrics metrics = new BlackListMetrics(true);
+    private final AtomicReference<ObjectName> mbean = new AtomicReference<>();
+    private volatile PolicySlots policies = PolicySlots.NONE;
+    @Getter @Setter
+    private volatile AllowList allowList = AllowList.none(); // never tracked, see track()
+    @Getter @Setter
+    private volatile long lateness = LATENESS_SEC;
+    @Getter @Setter
+    private volatile long earliness = EARLINESS_SEC;
+    private final AtomicBoolean cleanupPending = new AtomicBoolean(); // at event time, see track(ip, epochMillis)
+    @Getter(AccessLevel.PACKAGE) @Setter(AccessLevel.PACKAGE)
+    private volatile ClusterCounts cluster; // failures on the other nodes, null unless replicated, see Replicator
+    @Getter(AccessLevel.PACKAGE) @Setter(AccessLevel.PACKAGE)
+    private volatile MpscIntQueue<Void> dirty; // ips tracked since the last gossip, null unless replicated
+    @Getter(AccessLevel.PACKAGE)
+    private final Ipv6Table ipv6;
+    @Getter(AccessLevel.PACKAGE)
+    private volatile BlackListEvents events; // null until the first subscribe()
+    @Getter(AccessLevel.PACKAGE)
+    private final int capacity; // max entries of the db, 0 if unbounded, see admitted()
+    private final AtomicInteger size = new AtomicInteger(); // entries of the db, only counted with a capacity
+    private final CountMinWindow frequencies; // admission at capacity: the sketch if there's one, null if unbounded
     
     /**
      * Default constructor: all consumers must use this constructor to ensure that the
      * variables are set to default values and the cleanup thread is started.
      * 
-     * The AllArgsConstructor is only provided for testing purposes.
+     * The all args constructor is only provided for testing purposes.
      */
     public BlackListSvcImpl() {
-        this(new ConcurrentHashMap<>(), Clock.systemDefaultZone(), 
-            BLACKLIST_DURATION_SEC, ROLLING_TIME_WINDOW_SEC, BAD_REQUEST_THRESHOLD,
-            CLEANUP_INTERVAL_SECONDS, Executors.newSingleThreadExecutor());
+        this(WindowStrategy.buckets(ROLLING_TIME_WINDOW_SEC, WINDOW_BUCKETS));
+    }
+
+    /**
+     * Same as the default constructor, but with the given way of counting requests in the rolling
+     * window; eg; WindowStrategy.exact() for exact counts at the cost of one timestamp per request.
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy) {
+        this(windowStrategy, OffenderIndex.approximate(TOP_OFFENDERS));
+    }
+
+    /**
+     * Same as the default constructor, but with the given window strategy and index of top
+     * offenders; eg; OffenderIndex.exact() for an exact getTopN() whatever the number of offenders.
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy, OffenderIndex offenders) {
+        this(windowStrategy, offenders, PrefixLevels.none());
+    }
+
+    /**
+     * Same as the default constructor, but with the given window strategy, index of top offenders
+     * and subnets to count failures of as well; eg; PrefixLevels.none().with(24, 100).
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy, OffenderIndex offenders, PrefixLevels prefixes) {
+        this(windowStrategy, offenders, prefixes, 0);
+    }
+
+    /**
+     * Same as the previous constructor, in bounded memory mode when sketchCounters isn't 0: the
+     * failures of ips without a Tracking go to a CountMinWindow, an ip only gets one once its
+     * estimate is half the threshold, so the db only holds the ips that come close.  The sketch
+     * takes 112 * sketchCounters bytes (7MB for 64K counters), see README for how to size it.
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy, OffenderIndex offenders, PrefixLevels prefixes,
+            int sketchCounters) {
+        this(new ConcurrentIntMap<>(), TickingClock.systemUTC(), 
+            BLACKLIST_DURATION_SEC, ROLLING_TIME_WINDOW_SEC, windowStrategy, offenders, BAD_REQUEST_THRESHOLD,
+            CLEANUP_INTERVAL_SECONDS, newCleanupExecutor(), prefixes, sketchCounters, 0);
         // try to keep memory usage reasonable
         startCleanupThread();
     }
+
+    /**
+     * Same as the previous constructor, with at most capacity ips tracked when it isn't 0.  At
+     * capacity a new ip only gets in by taking the place of one with fewer failures in the window,
+     * never of a blacklisted one, and its failures are counted in a CountMinWindow until then (the
+     * bounded memory mode's sketch, or one of capacity / 8 counters), so a flood of one-shot ips
+     * can't push out the repeat offenders.  See evict() and README.
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy, OffenderIndex offenders, PrefixLevels prefixes,
+            int sketchCounters, int capacity) {
+        this(windowStrategy, offenders, prefixes, sketchCounters, capacity, IPV6_PREFIX_LENGTH);
+    }
+
+    /**
+     * Same as the previous constructor, counting IPv6 clients by their network of ipv6PrefixLength
+     * bits: 128 for each address, 64 (the default) for each /64, 1 to 128 in general.
+     */
+    public BlackListSvcImpl(WindowStrategy windowStrategy, OffenderIndex offenders, PrefixLevels prefixes,
+            int sketchCounters, int capacity, int ipv6PrefixLength) {
+        this(new ConcurrentIntMap<>(), TickingClock.systemUTC(),
+            BLACKLIST_DURATION_SEC, ROLLING_TIME_WINDOW_SEC, windowStrategy, offenders, BAD_REQUEST_THRESHOLD,
+            CLEANUP_INTERVAL_SECONDS, newCleanupExecutor(), prefixes, sketchCounters, capacity, ipv6PrefixLength);
+        startCleanupThread();
+    }
+
+    /**
+     * Same as the default constructor, at event time: the service's time is the clock's watermark,
+     * moved by track(ip, epochMillis), and the cleanup runs whenever it moves to a new second rather
+     * than every second of the wall clock.
+     */
+    public BlackListSvcImpl(EventTimeClock clock) {
+        this(new ConcurrentIntMap<>(), clock, BLACKLIST_DURATION_SEC, ROLLING_TIME_WINDOW_SEC,
+            WindowStrategy.buckets(ROLLING_TIME_WINDOW_SEC, WINDOW_BUCKETS), OffenderIndex.approximate(TOP_OFFENDERS),
+            BAD_REQUEST_THRESHOLD, CLEANUP_INTERVAL_SECONDS, newCleanupExecutor());
+    }
+
+    /**
+     * All args constructor, for testing purposes; the cleanup thread isn't started.
+     */
+    BlackListSvcImpl(ConcurrentIntMap<Tracking> db, Clock clock, long duration, long window,
+            WindowStrategy windowStrategy, OffenderIndex offenders, int max, long cleanupInterval,
+            ScheduledExecutorService executor) {
+        this(db, clock, duration, window, windowStrategy, offenders, max, cleanupInterval, executor,
+            PrefixLevels.none());
+    }
+
+    BlackListSvcImpl(ConcurrentIntMap<Tracking> db, Clock clock, long duration, long window,
+            WindowStrategy windowStrategy, OffenderIndex offenders, int max, long cleanupInterval,
+            ScheduledExecutorService executor, PrefixLevels prefixes) {
+        this(db, clock, duration, window, windowStrategy, offenders, max, cleanupInterval, executor, prefixes, 0, 0);
+    }
+
+    BlackListSvcImpl(ConcurrentIntMap<Tracking> db, Clock clock, long duration, long window,
+            WindowStrategy windowStrategy, OffenderIndex offenders, int max, long cleanupInterval,
+            ScheduledExecutorService executor, PrefixLevels prefixes, int sketchCounters) {
+        this(db, clock, duration, window, windowStrategy, offenders, max, cleanupInterval, executor, prefixes,
+            sketchCounters, 0);
+    }
+
+    BlackListSvcImpl(ConcurrentIntMap<Tracking> db, Clock clock, long duration, long window,
+            WindowStrategy windowStrategy, OffenderIndex offenders, int max, long cleanupInterval,
+            ScheduledExecutorService executor, PrefixLevels prefixes, int sketchCounters, int capacity) {
+        this(db, clock, duration, window, windowStrategy, offenders, max, cleanupInterval, executor, prefixes,
+            sketchCounters, capacity, IPV6_PREFIX_LENGTH);
+    }
+
+    BlackListSvcImpl(ConcurrentIntMap<Tracking> db, Clock clock, long duration, long window,
+            WindowStrategy windowStrategy, OffenderIndex offenders, int max, long cleanupInterval,
+            ScheduledExecutorService executor, PrefixLevels prefixes, int sketchCounters, int capacity,
+            int ipv6PrefixLength) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.db = db;
+        this.clock = clock;
+        this.duration = duration;
+        this.window = window;
+        this.windowStrategy = windowStrategy;
+        this.offenders = offenders;
+        this.max = max;
+        this.cleanupInterval = cleanupInterval;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.wheel = new ExpiryWheel(now());
+        // new entries are looked at by the wheel once their first request has left the window
+        // inserts that bypass admitted() (remote blacklists, snapshots) are counted but never refused
+        this.newTracking = ip -> {
+            wheel.schedule(ip, wheel.current() + this.window);
+            if (this.capacity != 0) {
+                size.incrementAndGet();
+            }
+            return new Tracking(this.windowStrategy);
+        };
+        this.subnets = prefixes.isEmpty() ? null : new SubnetTable(prefixes, windowStrategy, window, now());
+        this.sketch = sketchCounters == 0 ? null : new CountMinWindow(window, sketchCounters);
+        this.frequencies = capacity == 0 ? null : sketch != null ? sketch
+            : new CountMinWindow(window, Math.min(1 << 20, Math.max(1024, capacity / 8)));
+        this.ipv6 = new Ipv6Table(ipv6PrefixLength, windowStrategy);
+    }
+
+    /**
+     * Single daemon thread for the cleanup, so it doesn't keep the JVM alive.
+     */
+    static ScheduledExecutorService newCleanupExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "blacklist-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the cleanup thread.  The service can still be used, but expired entries aren't
+     * removed anymore.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        unregisterMBean(mbean.getAndSet(null));
+        BlackListEvents subscribed = events;
+        if (subscribed != null) {
+            subscribed.shutdown();
+        }
+    }
+
+    /**
+     * Publishes the ip's blacklist changes: BLACKLISTED when it joins the blacklisted set, RENEWED
+     * when a violation moves its end, and EXPIRED from cleanup(); batched every 100ms, see
+     * BlackListEvents.  Subnet blacklists aren't published.
+     */
+    @Override
+    public void subscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events;
+        if (subscribed == null) {
+            BlackListEvents created = new BlackListEvents();
+            if (publishTo(created)) {
+                subscribed = created;
+            } else {
+                created.shutdown();
+                subscribed = events;
+            }
+        }
+        subscribed.subscribe(listener);
+    }
+
+    /**
+     * Publishes the changes to events, unless they already go somewhere; ShardedBlackListSvc
+     * shares one across its shards.
+     */
+    boolean publishTo(BlackListEvents events) {
+        return EVENTS.compareAndSet(this, null, events);
+    }
+
+    @Override
+    public boolean unsubscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events;
+        return subscribed != null && subscribed.unsubscribe(listener);
+    }
     
     /**
-     * Gets current epoch seconds.
+     * Gets current epoch seconds; each operation reads it once and passes it down.
      */
-    private long now() {
-        return clock.instant().getEpochSecond();
+    long now() {
+        return TickingClock.epochSecond(clock);
     }
 
     /**
@@ -96,99 +358,569 @@ public class BlackListSvcImpl implements BlackListSvc {
      * 2.) ip is currently blacklisted (existing)
      * 3.) ip is blacklisted due to this request (new)
      * 4.) ip is not yet blacklisted
+     * There is a single lookup, the Tracking (see Tracking.track()) decides the rest with lock-free updates.
+     * With prefix levels the failure is also counted against each of the ip's subnets, the ip is
+     * blacklisted if one of them is.  An ip of the allow list returns before any of this.
      */
     @Override
-    public boolean track(String ip) {
+    public boolean track(int ip) {
+        if (allowList.contains(ip)) {
+            return false;
+        }
+        long start = metrics.start();
+        boolean blackListed = trackAt(ip, now());
+        metrics.track.end(start);
+        return blackListed;
+    }
+
+    /**
+     * Same as track(ip), for a failure at the given time rather than now, eg; when replaying an access
+     * log (see LogReplay) or consuming a lagging queue.  Events may come out of order: one up to
+     * lateness seconds behind the service's time is counted at its own time, an older one is
+     * dropped (counted as track.late in getMetrics()), and one ahead of it is counted now.  With an
+     * EventTimeClock, the service's time is the latest event time, so whole logs can be replayed as
+     * fast as they're read.  The lateness should stay well under the window.  An event more than
+     * earliness seconds past the watermark is dropped too (counted as track.early), rather than
+     * moving it there; the earliness should be over the longest gap expected between events.
+     * @return true if the ip is blacklisted at the event's time
+     */
+    public boolean track(int ip, long epochMillis) {
+        if (allowList.contains(ip)) {
+            return false;
+        }
+        if (clock instanceof EventTimeClock) {
+            EventTimeClock watermark = (EventTimeClock) clock;
+            if (!watermark.admits(epochMillis, earliness * 1000L)) {
+                metrics.early.increment();
+                return false;
+            }
+            if (watermark.advance(epochMillis) && !executor.isShutdown() && cleanupPending.compareAndSet(false, true)) {
+                executor.execute(this::cleanup); // watermark driven expiry
+            }
+        }
         long now = now();
-        
-        // 1.) add new entry
-        Tracking old = db.putIfAbsent(ip, new Tracking(now));
-        if (old == null) { // it was empty as we don't allow null previous values
+        long time = Math.min(Math.floorDiv(epochMillis, 1000L), now);
+        if (time < now - lateness) {
+            metrics.late.increment();
             return false;
         }
-        // 2.) update existing blacklist end time
+        long start = metrics.start();
+        boolean blackListed = trackAt(ip, time);
+        metrics.track.end(start);
+        return blackListed;
+    }
+
+    /**
+     * Same as track(int, long) for a dotted quad.
+     */
+    public boolean track(String ip, long epochMillis) {
+        return track(Ipv4.parse(ip), epochMillis);
+    }
+
+    /**
+     * Body of track(ip), at the given time.
+     */
+    private boolean trackAt(int ip, long now) {
+        long from = now - window;
+        // 1.) add new, empty, entry (or count it in the sketch until it comes close to max, or gets a place at capacity)
+        Tracking tracking = sketch == null && capacity == 0 ? db.computeIfAbsent(ip, newTracking) : admitted(ip, now, from, 1, -1, 0, null);
+        long endBefore = endBefore(tracking);
+        // 2.) update existing blacklist end time, 3.) blacklist if request count is at the max, or 4.)
+        boolean blackListed = tracking != null && tracking.track(now, from, threshold(ip, from), duration);
+        if (tracking != null) {
+            changed(ip, tracking);
+        }
+        if (blackListed) {
+            offenders.violation(ip, tracking, from); // keep getTopN() up to date
+            listed(ip, tracking, endBefore);
+        }
+        if (subnets != null) {
+            blackListed |= subnets.track(ip, now, from, duration);
+        }
+        return blackListed;
+    }
+
+    /**
+     * Same as track(ip), for a failed request under the named policy (see setPolicies()): it's
+     * counted in the ip's window for that policy, with the policy's threshold, and blacklists the
+     * ip for the duration of its strike.  Still a single lookup, the policies' windows are in the
+     * ip's Tracking.  A key without a policy, eg; one removed by a reload, is tracked as track(ip).
+     */
+    public boolean track(int ip, String policyKey) {
+        if (allowList.contains(ip)) {
+            return false;
+        }
+        PolicySlots current = policies;
+        int slot = current.slot(policyKey);
+        if (slot < 0) {
+            return track(ip);
+        }
+        long start = metrics.start();
+        long now = now();
+        BlackListPolicy policy = current.policy(slot);
+        Tracking tracking = sketch == null && capacity == 0 ? db.computeIfAbsent(ip, newTracking)
+            : admitted(ip, now, now - window, 1, slot, current.generation(slot), policy);
+        long endBefore = endBefore(tracking);
+        boolean blackListed = tracking != null && tracking.track(now, slot, current.generation(slot), policy, 1);
+        if (tracking != null) {
+            changed(ip, tracking);
+        }
+        if (blackListed) {
+            offenders.violation(ip, tracking, now - window);
+            listed(ip, tracking, endBefore);
+        }
+        if (subnets != null) {
+            blackListed |= subnets.track(ip, now, now - window, duration);
+        }
+        metrics.track.end(start);
+        return blackListed;
+    }
+
+    /**
+     * Same as track(int, String) for a dotted quad.
+     */
+    public boolean track(String ip, String policyKey) {
+        return track(Ipv4.parse(ip), policyKey);
+    }
+
+    /**
+     * Same as track(ip), for an IPv6 address: the failure is counted against the address's network
+     * of getIpv6PrefixLength() bits (its /64 by default, see Ipv6Table), with the same window,
+     * threshold and duration.  An IPv4-mapped address is tracked as its IPv4 address.
+     */
+    @Override
+    public boolean trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        long start = metrics.start();
+        long now = now();
+        boolean blackListed = ipv6.track(high, low, now, now - window, max, duration);
+        metrics.track.end(start);
+        return blackListed;
+    }
+
+    @Override
+    public boolean isBlackListedIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return isBlackListed((int) low);
+        }
+        long start = metrics.start();
+        boolean blackListed = ipv6.isBlackListed(high, low, now());
+        metrics.isBlackListed.end(start);
+        return blackListed;
+    }
+
+    @Override
+    public long getIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return get((int) low);
+        }
+        long start = metrics.start();
+        long count = ipv6.count(high, low, now() - window);
+        metrics.get.end(start);
+        return count;
+    }
+
+    /**
+     * Fixed at construction: the counts of one length can't be split into another's networks.
+     */
+    public int getIpv6PrefixLength() {
+        return ipv6.getPrefixLength();
+    }
+
+    /**
+     * Sorts a copy of the batch so that the requests of an ip are next to each other, then applies
+     * each ip's requests in a single update, all at the same time.
+     */
+    @Override
+    public int[] trackAll(int[] ips) {
+        int[] sorted = ips.clone();
+        Arrays.sort(sorted);
+        AllowList allowed = allowList;
+        long now = now();
+        long from = now - window;
+        int[] result = new int[sorted.length];
+        int count = 0;
+        for (int i = 0; i < sorted.length; ) {
+            int ip = sorted[i];
+            int j = i + 1;
+            while (j < sorted.length && sorted[j] == ip) {
+                j++;
+            }
+            if (allowed.contains(ip)) {
+                i = j;
+                continue;
+            }
+            Tracking tracking = sketch == null && capacity == 0 ? db.computeIfAbsent(ip, newTracking)
+                : admitted(ip, now, from, j - i, -1, 0, null);
+            boolean wasBlackListed = (tracking != null && tracking.isBlackListed(now))
+                || (subnets != null && subnets.isBlackListed(ip, now));
+            long endBefore = endBefore(tracking);
+            boolean blackListed = tracking != null && tracking.track(now, from, threshold(ip, from), duration, j - i);
+            if (tracking != null) {
+                changed(ip, tracking);
+            }
+            if (blackListed) {
+                offenders.violation(ip, tracking, from);
+                listed(ip, tracking, endBefore);
+            }
+            if (subnets != null) {
+                blackListed |= subnets.track(ip, now, from, duration, j - i);
+            }
+            if (blackListed && !wasBlackListed) {
+                result[count++] = ip;
+            }
+            i = j;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Queues the ip for the next gossip if replicated, once until then (see Replicator.gossip()); if
+     * the queue is full the ip is queued by its next request, or sent by the next full sync.
+     */
+    private void changed(int ip, Tracking tracking) {
+        MpscIntQueue<Void> queue = dirty;
+        if (queue != null && tracking.markDirty() && !queue.offer(ip, null)) {
+            tracking.clearDirty();
+        }
+    }
+
+    /**
+     * Requests of the ip that blacklist it: max, less its failures on the other nodes if replicated.
+     */
+    private int threshold(int ip, long from) {
+        ClusterCounts remote = cluster;
+        return remote == null ? max : (int) Math.max(1L, max - remote.count(ip, from));
+    }
+
+    /**
+     * Merges a blacklist of the ip by another node (see Replicator): the end time only moves
+     * forward, and the ip joins the blacklisted set as if it had been blacklisted here.
+     */
+    void blackListed(int ip, long blacklistEnd, long now) {
+        if (blacklistEnd <= now || allowList.contains(ip)) {
+            return;
+        }
+        Tracking tracking = db.computeIfAbsent(ip, newTracking);
+        long endBefore = endBefore(tracking);
+        tracking.restore(0L, blacklistEnd);
+        listed(ip, tracking, endBefore);
+    }
+
+    /**
+     * The ip's blacklist end before an update, to tell a renewal; only read if there are subscribers.
+     */
+    private long endBefore(Tracking tracking) {
+        return events == null || tracking == null ? Long.MAX_VALUE : tracking.getBlacklistEnd();
+    }
+
+    /**
+     * Adds a blacklisted ip to the blacklisted set, publishing BLACKLISTED if it joined, or RENEWED
+     * if its end moved past endBefore.
+     */
+    private void listed(int ip, Tracking tracking, long endBefore) {
+        BlackListEvents subscribed = events;
+        if (blackListSet.add(ip, tracking)) {
+            metrics.joined.increment();
+            if (subscribed != null) {
+                subscribed.publish(BlackListEvent.Type.BLACKLISTED, ip, tracking.getBlacklistEnd());
+            }
+        } else if (subscribed != null && tracking.getBlacklistEnd() > endBefore) {
+            subscribed.publish(BlackListEvent.Type.RENEWED, ip, tracking.getBlacklistEnd());
+        }
+    }
+
+    /**
+     * The ip's Tracking, unless it's kept out of the db.  In bounded memory mode its failures go to
+     * the sketch and it only gets one, holding the sketch's estimate of its earlier failures, once
+     * that's half of max; or for the failures of a policy (when policy isn't null) half of the
+     * policy's max, the estimate going to the policy's slot.  A policy whose window is longer than
+     * the service's bypasses the sketch, which only counts the service's window.  At capacity it
+     * only gets one in place of an entry with fewer failures, see replace(); such an entry isn't put
+     * on the wheel (a flood would grow it by an ip per failure), it leaves by eviction, nothing left
+     * in the window being the first thing evict() looks for.  Returns null while the failures stay out.
+     */
+    private Tracking admitted(int ip, long now, long from, int times, int slot, int generation, BlackListPolicy policy) {
         Tracking tracking = db.get(ip);
-        if (isBlackListed(ip)) { // update bl duration
-            tracking.updateBlackList(now + duration, now);
-            return true;
-        }
-        // add request to db
-        // 3.) add to blacklist if request count is over the max
-        tracking.track(now);
-        if (get(ip) >= max) { // initiate bl; note: get() will also clean out old requests
-            tracking.updateBlackList(now + duration, now);
-            return true;
-        }
-        // otherwise 4.) do nothing, we are still under the limit (unblacklisted)
+        if (tracking != null) {
+            return tracking;
+        }
+        int estimate = times;
+        boolean sketched = sketch != null && (policy == null || policy.getWindow() <= window);
+        if (sketched) {
+            estimate = sketch.add(ip, now, from, times);
+            if (estimate < Math.max(1, (policy == null ? max : policy.getMax()) / 2)) {
+                return null;
+            }
+        }
+        boolean free = capacity == 0 || take();
+        if (!free && !replace(ip, now, from, estimate, times)) {
+            metrics.rejected.add(times);
+            return null;
+        }
+        Tracking admitted = new Tracking(windowStrategy);
+        if (estimate > times) {
+            if (policy == null) {
+                admitted.restoreRequests(now, estimate - times);
+            } else {
+                admitted.restoreRequests(slot, generation, policy.getWindows(), now, estimate - times);
+            }
+        }
+        tracking = db.putIfAbsent(ip, admitted);
+        if (tracking != null) {
+            if (capacity != 0) {
+                size.decrementAndGet(); // added by another thread
+            }
+            return tracking;
+        }
+        if (free) {
+            wheel.schedule(ip, wheel.current() + window);
+        }
+        if (sketched) {
+            metrics.promoted.increment();
+        }
+        return admitted;
+    }
+
+    /**
+     * At capacity, counts the ip's failures in the frequencies sketch (already done in bounded
+     * memory mode, estimate is its count) and takes the place of an entry with fewer for the ip's,
+     * if evict() finds one.
+     */
+    private boolean replace(int ip, long now, long from, int estimate, int times) {
+        int frequency = frequencies == sketch ? estimate : frequencies.add(ip, now, from, times);
+        for (int attempt = 0; attempt < EVICTION_ATTEMPTS; attempt++) {
+            if (!evict(frequency, now, from)) {
+                return false;
+            }
+            if (take()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes one of the capacity places of the db, if there is one left.
+     */
+    private boolean take() {
+        for (int current = size.get(); current < capacity; current = size.get()) {
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
         return false;
     }
 
     /**
-     * The ip is blacklisted if there is a tracking entry in the db and we have moved past the
-     * blacklist end time.
+     * Removes the entry with the fewest failures in the window (the least recently seen one of
+     * those) of a sample of EVICTION_SAMPLE random entries of the db, if that's fewer
+     * than the candidate's frequency.  Blacklisted ips are never picked, so one-shot ips only
+     * replace entries without failures left in the window or other one-shot ips that have been
+     * counted less, and a repeat offender stays unless its place goes to a heavier one.
+     * @return false if the candidate doesn't get in
+     */
+    private boolean evict(int frequency, long now, long from) {
+        Victim victim = new Victim(now, from);
+        db.sample(ThreadLocalRandom.current().nextInt(), EVICTION_SAMPLE, victim);
+        Tracking tracking = victim.tracking;
+        if (tracking == null || victim.count >= frequency) {
+            return false;
+        }
+        if (!db.remove(victim.ip, tracking)) {
+            return true; // removed by another thread, whose place is free
+        }
+        if (tracking.isBlackListed(now) && db.putIfAbsent(victim.ip, tracking) == null) {
+            return false; // blacklisted while we were removing it, put it back
+        }
+        size.decrementAndGet();
+        offenders.remove(victim.ip, tracking);
+        metrics.evicted.increment();
+        return true;
+    }
+
+    /**
+     * Picks the victim of a sample, see evict().
+     */
+    private static final class Victim implements ConcurrentIntMap.IntObjConsumer<Tracking> {
+        private final long now;
+        private final long from;
+        int ip;
+        Tracking tracking;
+        long count = Long.MAX_VALUE;
+        long lastSeen = Long.MAX_VALUE;
+
+        Victim(long now, long from) {
+            this.now = now;
+            this.from = from;
+        }
+
+        @Override
+        public void accept(int ip, Tracking candidate) {
+            if (candidate.isListed() || candidate.isBlackListed(now)) {
+                return;
+            }
+            long candidateCount = candidate.count(from);
+            long candidateSeen = candidate.getLastSeen();
+            if (candidateCount < count || (candidateCount == count && candidateSeen < lastSeen)) {
+                this.ip = ip;
+                tracking = candidate;
+                count = candidateCount;
+                lastSeen = candidateSeen;
+            }
+        }
+    }
+
+    /**
+     * The ip is blacklisted if it's in the blacklisted set and we haven't moved past its blacklist
+     * end time, or if one of its subnets is blacklisted, unless it's on the allow list.  The set only
+     * holds the blacklisted ips, so for the others this is a filter lookup; neither the db nor the
+     * clock are read.
      */
     @Override
-    public boolean isBlackListed(String ip) {
-        if (!db.containsKey(ip)) {
+    public boolean isBlackListed(int ip) {
+        long start = metrics.start();
+        boolean blackListed = isBlackListed(ip, blackListSet.get(ip));
+        metrics.isBlackListed.end(start);
+        return blackListed;
+    }
+
+    private boolean isBlackListed(int ip, Tracking tracking) {
+        if (tracking == null && subnets == null) {
             return false;
         }
-        return db.get(ip).isBlackListed(now());
+        long now = now();
+        if (tracking != null && tracking.isBlackListed(now)) {
+            return !allowList.contains(ip); // tracked before it was allowed
+        }
+        return subnets != null && subnets.isBlackListed(ip, now) && !allowList.contains(ip);
     }
 
     /**
      * Get the current request count accumulated during the rolling window.  
      * This is done by first removing older requests, then returning a count of remaining requests.
+     * When replicated, the ip's failures on the other nodes are included.
      */
     @Override
-    public long get(String ip) {
-        if (!db.containsKey(ip)) {
-            return 0L;
+    public long get(int ip) {
+        long start = metrics.start();
+        Tracking tracking = db.get(ip);
+        long from = now() - window;
+        long count = tracking != null ? tracking.count(from) : sketch != null ? sketch.estimate(ip, from + window, from) : 0L;
+        ClusterCounts remote = cluster;
+        if (remote != null) {
+            count += remote.count(ip, from);
         }
-        // removing entries outside of rolling window
-        return db.get(ip).count(now() - window);
+        metrics.get.end(start);
+        return count;
+    }
+
+    /**
+     * The count of the ip's requests under the named policy in its window, 0 for an unknown policy.
+     */
+    public long get(int ip, String policyKey) {
+        PolicySlots current = policies;
+        int slot = current.slot(policyKey);
+        Tracking tracking = slot < 0 ? null : db.get(ip);
+        return tracking == null ? 0L : tracking.count(slot, current.generation(slot), now() - current.policy(slot).getWindow());
+    }
+
+    public BlackListPolicies getPolicies() {
+        return policies.policies;
+    }
+
+    /**
+     * Replaces the named policies, at any time; see track(ip, policyKey).  A policy keeps the
+     * counts of its previous version unless its window changed, then it starts afresh.  The slots of
+     * removed or replaced policies are reused, so the Trackings' arrays don't grow with reloads.
+     */
+    public void setPolicies(BlackListPolicies newPolicies) {
+        PolicySlots current;
+        do {
+            current = policies;
+        } while (!POLICIES.compareAndSet(this, current, current.update(newPolicies)));
     }
 
     /**
      * Returns a map of the top N ips with the most blacklist violations (in descending order).
+     * The offenders come from the index (see OffenderIndex), only if an exact index has fewer than n
+     * of them do we go through the db to list ips without violations as well.
      */
     @Override
     public Map<String, Integer> getTopN(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Stream throws this automatically...");
+        }
+        long start = metrics.start();
         long from = now() - window;
+        Map<String, Integer> result = offenders.topN(n, from);
+        if (result.size() < n && offenders.isExact() && db.size() > result.size()) {
+            result = scanTopN(n, from);
+        }
+        Map<String, Integer> top6 = ipv6.topN(n, from);
+        if (!top6.isEmpty()) {
+            result = mergeTopN(result, top6, n);
+        }
+        metrics.topN.end(start);
+        return result;
+    }
+
+    /**
+     * Merges the IPv4 and IPv6 top N, both in descending order of count; IPv4 addresses first at
+     * the same count, as ::ffff:0:0/96 sorts before the global IPv6 addresses.
+     */
+    static Map<String, Integer> mergeTopN(Map<String, Integer> top4, Map<String, Integer> top6, int n) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, Integer>> it4 = top4.entrySet().iterator();
+        Iterator<Map.Entry<String, Integer>> it6 = top6.entrySet().iterator();
+        Map.Entry<String, Integer> e4 = it4.hasNext() ? it4.next() : null;
+        Map.Entry<String, Integer> e6 = it6.hasNext() ? it6.next() : null;
+        while (result.size() < n && (e4 != null || e6 != null)) {
+            if (e6 == null || (e4 != null && e4.getValue() >= e6.getValue())) {
+                result.put(e4.getKey(), e4.getValue());
+                e4 = it4.hasNext() ? it4.next() : null;
+            } else {
+                result.put(e6.getKey(), e6.getValue());
+                e6 = it6.hasNext() ? it6.next() : null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Goes thru the whole db for the top N ips, ips without violations included.
+     */
+    private Map<String, Integer> scanTopN(int n, long from) {
 //        return db.entrySet().stream()
 //            .map(e -> new AbstractMap.SimpleEntry<>(e.getKey(), 
 //                e.getValue().blackListCount(from))) // map to <ip, blackListCount>
 //            .sorted(reverseOrder(Map.Entry.comparingByValue())).limit(n) // sort by blCount (descending), limit to n
 //            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, 
 //                (old, neuw) -> old, LinkedHashMap::new)); // return result as ordered map
-        if (n < 0) {
-            throw new IllegalArgumentException("Stream throws this automatically...");
-        }
         Map<String, Integer> result = new LinkedHashMap<>();
-        if (n == 0) {
-            return result;
-        }
-        // else we have to go thru all the items
-        PriorityQueue<Map.Entry<String, Integer>> pq = new PriorityQueue<>((a, b) -> { // sort 1st by value then keys
+        // we have to go thru all the items
+        PriorityQueue<Map.Entry<Integer, Integer>> pq = new PriorityQueue<>((a, b) -> { // sort 1st by value then keys
             int valueDiff = a.getValue() - b.getValue(); // reverse order; ie; queue will be lowest->highest
-            if (valueDiff == 0) { // if same value reverse alphabetical order of keys
-                return -a.getKey().compareTo(b.getKey());
+            if (valueDiff == 0) { // if same value reverse (numerical) order of ips
+                return -Ipv4.compare(a.getKey(), b.getKey());
             }
             return valueDiff;
         });
-        for (Map.Entry<String, Tracking> e : db.entrySet()) {
-            int blackListCount = e.getValue().blackListCount(from);
-            Map.Entry<String, Integer> entry = new AbstractMap.SimpleEntry<String, Integer>(e.getKey(), blackListCount);
-            pq.add(entry);
+        db.forEach((ip, tracking) -> {
+            int blackListCount = tracking.blackListCount(from);
+            pq.add(new AbstractMap.SimpleEntry<Integer, Integer>(ip, blackListCount));
             if (pq.size() > n) {
                 pq.poll(); // remove lowest element
             }
-        };
+        });
         for (int i = 0; i < n; i++) {
-            Map.Entry<String, Integer> e = pq.poll();
+            Map.Entry<Integer, Integer> e = pq.poll();
             if (e == null) { // just in case n > size()
                 break;
             }
-            result.put(e.getKey(), e.getValue());
+            result.put(Ipv4.format(e.getKey()), e.getValue());
         }
         ArrayList<String> keys = new ArrayList<>(result.keySet());
         Collections.reverse(keys);
@@ -197,41 +929,316 @@ public class BlackListSvcImpl implements BlackListSvc {
     }
     
     /**
-     * Starts a clean up thread that will call cleanup() to manage the size of the db; ie,
-     * remove old entiries from Tracking lists and remove ips from db if they are no longer used
+     * Saves the tracked ips to file, see Snapshot for the format.  The db is copied a segment at a
+     * time (see ConcurrentIntMap.forEach()) and written without holding any lock, so track() isn't
+     * paused; requests tracked during the snapshot may or may not be in it.
+     * @return the number of ips saved
      */
-    void startCleanupThread() {
-        executor.execute(() -> {
-            while (true) {
+    public long snapshot(Path file) throws IOException {
+        return Snapshot.write(file, now(), this::snapshot);
+    }
+
+    /**
+     * Same as snapshot(Path), the stream isn't closed.
+     */
+    public long snapshot(OutputStream out) throws IOException {
+        return Snapshot.write(Channels.newChannel(out), now(), this::snapshot);
+    }
+
+    /**
+     * Writes the entries that haven't expired.
+     */
+    void snapshot(Snapshot.Writer writer) {
+        long now = writer.getTime();
+        long from = now - window;
+        db.forEach((ip, tracking) -> {
+            if (tracking.expiry(window) > now) {
                 try {
-                    TimeUnit.SECONDS.sleep(getCleanupInterval());
-                } catch (InterruptedException e) {
-                    log.error("Clean up thread was interrupted: {}", e);
-                    break; // exit loop
+                    writer.entry(ip, tracking, from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                // run clean up method
-                cleanup();
             }
         });
     }
+
+    /**
+     * Loads a snapshot saved by snapshot(Path), the file is memory mapped.  Entries that expired
+     * since the snapshot are dropped, the others are merged with the ips already tracked.
+     * @return the number of ips restored
+     */
+    public long restore(Path file) throws IOException {
+        try (Snapshot.Reader reader = Snapshot.Reader.open(file)) {
+            return restore(reader);
+        }
+    }
+
+    /**
+     * Same as restore(Path), the stream isn't closed.
+     */
+    public long restore(InputStream in) throws IOException {
+        return restore(new Snapshot.Reader(Channels.newChannel(in)));
+    }
+
+    private long restore(Snapshot.Reader reader) throws IOException {
+        Snapshot.Entry entry = new Snapshot.Entry();
+        long restored = 0L;
+        while (reader.next(entry)) {
+            if (restore(entry)) {
+                restored++;
+            }
+        }
+        log.info("Restored {} entries from a snapshot of {}.", restored, reader.getTime());
+        return restored;
+    }
+
+    /**
+     * Merges a saved ip, unless it has expired; returns whether it was restored.
+     */
+    boolean restore(Snapshot.Entry entry) {
+        long now = now();
+        long from = now - window;
+        if (Math.max(entry.lastSeen + window, entry.blacklistEnd) <= now) {
+            return false;
+        }
+        Tracking tracking = db.computeIfAbsent(entry.ip, newTracking);
+        for (int i = 0; i < entry.requests.size; i++) {
+            if (entry.requests.times[i] > from) {
+                tracking.restoreRequests(entry.requests.times[i], entry.requests.counts[i]);
+            }
+        }
+        for (int i = 0; i < entry.violations.size; i++) {
+            if (entry.violations.times[i] > from) {
+                tracking.restoreViolations(entry.violations.times[i], entry.violations.counts[i]);
+            }
+        }
+        tracking.restore(entry.lastSeen, entry.blacklistEnd);
+        if (tracking.isBlackListed(now)) {
+            listed(entry.ip, tracking, Long.MAX_VALUE);
+        }
+        if (tracking.blackListCount(from) > 0) {
+            offenders.violation(entry.ip, tracking, from);
+        }
+        return true;
+    }
+
+    /**
+     * Starts a clean up thread that will call cleanup() every cleanupInterval to manage the size of
+     * the db; ie, remove ips from db once they are no longer used.
+     */
+    void startCleanupThread() {
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                cleanup();
+            } catch (RuntimeException e) {
+                log.error("Clean up failed: {}", e); // keep the schedule going
+            }
+        }, getCleanupInterval(), getCleanupInterval(), TimeUnit.SECONDS);
+    }
     
     /**
-     * Method that does the actual clean up of the db, removes old requests and violations and
-     * if the current request count is 0 
-     * and the current blacklist violation count is 0, will remove the ip entry from db.
+     * Method that does the actual clean up of the db: advances the expiry wheel to now, which
+     * only looks at the entries that may have expired since the last run, see expire().  At event
+     * time it stops lateness seconds behind the watermark, so a late event still finds its entry.
      */
     void cleanup() {
-        log.info("Running cleanup.");
-        db.keySet().stream().forEach(ip -> {
-            long now = now();
-            long from = now - window;
-            db.merge(ip, new Tracking(now), (old, neuw) -> {
-                if (old.count(from) == 0L && old.blackListCount(from) == 0L) {
-                    log.info("Deleting entry as it's empty: {}.", ip);
-                    return null;
+        long start = System.nanoTime();
+        long now = now();
+        if (clock instanceof EventTimeClock) {
+            cleanupPending.set(false);
+            now -= lateness;
+        }
+        int expired = wheel.advance(now, expirer);
+        if (subnets != null) {
+            expired += subnets.cleanup(now);
+        }
+        if (sketch != null) {
+            sketch.advance(now);
+        }
+        if (frequencies != null && frequencies != sketch) {
+            frequencies.advance(now);
+        }
+        ClusterCounts remote = cluster;
+        if (remote != null) {
+            remote.cleanup(now);
+        }
+        BlackListEvents subscribed = events;
+        expired += ipv6.cleanup(now, window);
+        metrics.left.add(blackListSet.removeExpired(now, subscribed == null ? null
+            : (ip, tracking) -> subscribed.publish(BlackListEvent.Type.EXPIRED, ip, tracking.getBlacklistEnd())));
+        metrics.cleanup(start, expired);
+        log.debug("Cleanup removed {} entries.", expired);
+    }
+
+    /**
+     * Metrics to scrape, by name (see BlackListMetrics): calls, latency percentiles and max (in
+     * nanoseconds, of a sample of the calls) of each operation, sizes, blacklist churn and cleanup.
+     * Everything is cumulative since the service started, except the sizes and the last cleanup.
+     */
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        int tracked = db.size();
+        result.put("ips.tracked", tracked);
+        result.put("ips.blacklisted", blackListSet.size());
+        result.put("ips.offenders", offenders.size());
+        int tracked6 = ipv6.size();
+        result.put("ipv6.tracked", tracked6);
+        if (subnets != null) {
+            result.put("subnets.tracked", subnets.size());
+        }
+        if (capacity != 0) {
+            result.put("ips.capacity", capacity);
+        }
+        long sketches = (sketch == null ? 0L : sketch.bytes()) + (frequencies == null || frequencies == sketch ? 0L : frequencies.bytes());
+        result.put("memory.estimated.bytes", (long) (tracked + tracked6) * ESTIMATED_BYTES_PER_IP + sketches);
+        metrics.putAll(result);
+        return result;
+    }
+
+    /**
+     * Publishes getMetrics() as the attributes of an MBean of the platform MBean server, under
+     * com.pingidentity.svc:type=BlackList,name=<name>; it's unregistered by shutdown().
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.pingidentity.svc:type=BlackList,name=" + ObjectName.quote(name));
+        unregisterMBean(mbean.getAndSet(null));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this::getMetrics), objectName);
+        unregisterMBean(mbean.getAndSet(objectName));
+        return objectName;
+    }
+
+    private void unregisterMBean(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Couldn't unregister {}: {}", objectName, e.toString());
+        }
+    }
+
+    /**
+     * Called by the wheel for an ip that may have expired: if there is nothing of interest left
+     * (no requests or violations in the window and not blacklisted) the entry is removed, otherwise
+     * it's scheduled again for its new expiry.
+     */
+    private boolean expire(int ip, long now) {
+        Tracking tracking = db.get(ip);
+        if (tracking == null) {
+            return false;
+        }
+        PolicySlots current = policies;
+        long expiry = tracking.expiry(current.window(window), current.memory);
+        if (expiry > now) {
+            wheel.schedule(ip, expiry);
+            return false;
+        }
+        if (!db.remove(ip, tracking)) {
+            return false;
+        }
+        expiry = tracking.expiry(current.window(window), current.memory);
+        if (expiry > now && db.putIfAbsent(ip, tracking) == null) {
+            // a request got in while we were removing it, put it back rather than lose it
+            wheel.schedule(ip, expiry);
+            return false;
+        }
+        if (capacity != 0) {
+            size.decrementAndGet();
+        }
+        offenders.remove(ip, tracking);
+        return true;
+    }
+
+    /**
+     * The named policies with the slot of their window in the Trackings.  A key keeps its slot as
+     * long as its window keeps its length; a new key or length takes the lowest free slot, with a new
+     * generation, so the window a Tracking still holds there for a removed policy is replaced rather
+     * than counted (see Tracking.track(now, slot, generation, policy, times)).
+     */
+    private static final class PolicySlots {
+
+        static final PolicySlots NONE = new PolicySlots(BlackListPolicies.none(), Collections.emptyMap(),
+            Collections.emptyMap(), new BlackListPolicy[0], new int[0], 0, 0L, 0L);
+
+        final BlackListPolicies policies;
+        final Map<String, Integer> slots; // of the current policies
+        final Map<String, Integer> assigned; // "key/window" to slot, of the current policies
+        final BlackListPolicy[] bySlot;
+        final int[] generations; // by slot
+        final int nextGeneration;
+        final long window; // longest window of the policies
+        final long memory; // longest strike memory of the policies
+
+        PolicySlots(BlackListPolicies policies, Map<String, Integer> slots, Map<String, Integer> assigned,
+                BlackListPolicy[] bySlot, int[] generations, int nextGeneration, long window, long memory) {
+            this.policies = policies;
+            this.slots = slots;
+            this.assigned = assigned;
+            this.bySlot = bySlot;
+            this.generations = generations;
+            this.nextGeneration = nextGeneration;
+            this.window = window;
+            this.memory = memory;
+        }
+
+        int slot(String key) {
+            Integer slot = key == null ? null : slots.get(key);
+            return slot == null ? -1 : slot;
+        }
+
+        BlackListPolicy policy(int slot) {
+            return bySlot[slot];
+        }
+
+        int generation(int slot) {
+            return generations[slot];
+        }
+
+        long window(long window) {
+            return Math.max(this.window, window);
+        }
+
+        PolicySlots update(BlackListPolicies newPolicies) {
+            Map<String, Integer> newSlots = new HashMap<>();
+            Map<String, Integer> newAssigned = new HashMap<>();
+            BitSet used = new BitSet();
+            // the kept ones first, so that a new one can't take their slot
+            for (Map.Entry<String, BlackListPolicy> e : newPolicies.asMap().entrySet()) {
+                String assignment = e.getKey() + "/" + e.getValue().getWindow();
+                Integer slot = assigned.get(assignment);
+                if (slot != null) {
+                    newAssigned.put(assignment, slot);
+                    newSlots.put(e.getKey(), slot);
+                    used.set(slot);
                 }
-                return old; // just return the old tracking
-            });
-        });
+            }
+            int generation = nextGeneration;
+            Map<Integer, Integer> newGenerations = new HashMap<>();
+            long newWindow = 0L;
+            long newMemory = 0L;
+            for (Map.Entry<String, BlackListPolicy> e : newPolicies.asMap().entrySet()) {
+                BlackListPolicy policy = e.getValue();
+                if (!newSlots.containsKey(e.getKey())) {
+                    int slot = used.nextClearBit(0);
+                    used.set(slot);
+                    newAssigned.put(e.getKey() + "/" + policy.getWindow(), slot);
+                    newSlots.put(e.getKey(), slot);
+                    newGenerations.put(slot, generation++);
+                }
+                newWindow = Math.max(newWindow, policy.getWindow());
+                newMemory = Math.max(newMemory, policy.getMemory());
+            }
+            BlackListPolicy[] newBySlot = new BlackListPolicy[used.length()];
+            int[] newGenerationsBySlot = Arrays.copyOf(generations, used.length());
+            for (Map.Entry<String, Integer> e : newSlots.entrySet()) {
+                newBySlot[e.getValue()] = newPolicies.get(e.getKey());
+            }
+            for (Map.Entry<Integer, Integer> e : newGenerations.entrySet()) {
+                newGenerationsBySlot[e.getKey()] = e.getValue();
+            }
+            return new PolicySlots(newPolicies, newSlots, newAssigned, newBySlot, newGenerationsBySlot, generation,
+                newWindow, newMemory);
+        }
     }
 }
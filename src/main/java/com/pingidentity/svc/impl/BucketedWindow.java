@@ -0,0 +1,102 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Window made of a ring of per bucket request counters, see WindowStrategy.buckets().
+ *
+ * Bucket k counts the requests in seconds [k * width, (k + 1) * width) and lives in slot k % length.
+ * A slot packs the bucket number (high 32 bits) with its count (low 32 bits), so a request is a
+ * single CAS: it either bumps the count of its bucket or claims the slot from an older bucket.
+ * count() sums the slots holding a live bucket; the ring is small enough (31 slots by default)
+ * that this is cheaper than maintaining a running total under a lock.
+ *
+ * Extends AtomicLongArray to save a header per window, there is one per tracked ip.
+ */
+@SuppressWarnings("serial")
+final class BucketedWindow extends AtomicLongArray implements RequestWindow {
+
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final int width;
+
+    BucketedWindow(int buckets, int width) {
+        super(buckets);
+        this.width = width;
+    }
+
+    @Override
+    public void add(long now) {
+        add(now, 1);
+    }
+
+    @Override
+    public void add(long now, int times) {
+        long bucket = now / width;
+        int slot = (int) (bucket % length());
+        while (true) {
+            long current = get(slot);
+            long currentBucket = current >>> 32;
+            long next;
+            if (currentBucket == bucket) {
+                // saturates
+                next = (bucket << 32) | Math.min(COUNT_MASK, (current & COUNT_MASK) + times);
+            } else if (currentBucket > bucket) {
+                return; // older than anything we keep
+            } else {
+                next = (bucket << 32) | times;
+            }
+            if (compareAndSet(slot, current, next)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long count(long from) {
+        // first bucket that isn't entirely at or before from
+        long live = Math.floorDiv(from + 1, width);
+        long total = 0L;
+        for (int i = 0; i < length(); i++) {
+            long current = get(i);
+            if ((current >>> 32) >= live) {
+                total += current & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void forEach(long from, TimeCountConsumer action) {
+        long live = Math.floorDiv(from + 1, width);
+        long[] slots = new long[length()];
+        int size = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long current = get(i);
+            if ((current >>> 32) >= live && (current & COUNT_MASK) != 0) {
+                slots[size++] = current;
+            }
+        }
+        Arrays.sort(slots, 0, size); // by bucket
+        for (int i = 0; i < size; i++) {
+            action.accept((slots[i] >>> 32) * width, (int) Math.min(Integer.MAX_VALUE, slots[i] & COUNT_MASK));
+        }
+    }
+}
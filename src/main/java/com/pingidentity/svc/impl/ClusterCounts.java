@@ -0,0 +1,195 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.IntFunction;
+
+/**
+ * Failures of each ip on the other nodes of a cluster, merged from their deltas (see Replicator).
+ *
+ * Every node counts its own failures of an ip in buckets, and a bucket's count only grows: it's a
+ * G-counter, and a node's counts for an ip merge with any earlier or later copy by keeping the
+ * larger count of each bucket, in whatever order and however many times deltas arrive.  An ip holds
+ * one long per node and bucket, packing the bucket number, the node and the count, in an array
+ * replaced with a CAS on every merge, which also drops the buckets that have left the window; so
+ * count() reads a single array, and most ips take a few dozen bytes.  An ip is put on an ExpiryWheel
+ * when it's added, at the time its newest bucket leaves the window, so cleanup() only looks at the
+ * ips that came due, as BlackListSvcImpl does for its own.
+ */
+final class ClusterCounts {
+
+    static final int MAX_NODES = 1 << 10;
+    private static final int COUNT_BITS = 22;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1; // saturates at 4M per bucket
+    private static final long[] EMPTY = new long[0];
+
+    private final ConcurrentIntMap<Remote> ips = new ConcurrentIntMap<>();
+    private final long window;
+    private final long buckets; // in the window
+    private final int width;
+    private final ExpiryWheel wheel;
+    private final ExpiryWheel.Expirer expirer = this::expire;
+    private final IntFunction<Remote> newRemote;
+
+    /**
+     * @param width of the buckets, in seconds; every node must use the same
+     * @param now the service's time, where the wheel starts
+     */
+    ClusterCounts(long window, int width, long now) {
+        this.window = window;
+        this.width = width;
+        this.buckets = (window + width - 1) / width + 1;
+        this.wheel = new ExpiryWheel(now);
+        this.newRemote = ip -> {
+            wheel.schedule(ip, wheel.current() + window);
+            return new Remote();
+        };
+    }
+
+    /**
+     * Failures of an ip on the other nodes: bucket (high 32 bits), node (10 bits), count.
+     */
+    private static final class Remote {
+        private static final AtomicReferenceFieldUpdater<Remote, long[]> COUNTS =
+            AtomicReferenceFieldUpdater.newUpdater(Remote.class, long[].class, "counts");
+
+        volatile long[] counts = EMPTY;
+    }
+
+    private static long bucket(long packed) {
+        return packed >>> 32;
+    }
+
+    private static boolean sameNodeAndBucket(long a, long b) {
+        return (a >>> COUNT_BITS) == (b >>> COUNT_BITS);
+    }
+
+    /**
+     * Failures of the ip on the other nodes in the window from (exclusive).
+     */
+    long count(int ip, long from) {
+        Remote remote = ips.get(ip);
+        if (remote == null) {
+            return 0L;
+        }
+        long live = Math.floorDiv(from + 1, width);
+        long total = 0L;
+        for (long packed : remote.counts) {
+            if (bucket(packed) >= live) {
+                total += packed & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Merges a node's count for the bucket starting at time.
+     */
+    void merge(int node, int ip, long time, int count) {
+        long bucket = time / width;
+        long packed = (bucket << 32) | ((long) node << COUNT_BITS) | Math.min(COUNT_MASK, count);
+        while (true) {
+            Remote remote = ips.computeIfAbsent(ip, newRemote);
+            long[] current;
+            long[] next;
+            do {
+                current = remote.counts;
+                next = merge(current, packed, bucket - buckets);
+            } while (next != current && !Remote.COUNTS.compareAndSet(remote, current, next));
+            if (ips.get(ip) == remote) {
+                return;
+            }
+            // raced with cleanup(), which dropped it: merge again into a new one
+        }
+    }
+
+    /**
+     * The counts with packed merged in, and without the buckets up to stale; current if nothing changed.
+     */
+    private static long[] merge(long[] current, long packed, long stale) {
+        int kept = 0;
+        for (long c : current) {
+            if (sameNodeAndBucket(c, packed)) {
+                if ((c & COUNT_MASK) >= (packed & COUNT_MASK)) {
+                    return current;
+                }
+            } else if (bucket(c) > stale) {
+                kept++;
+            }
+        }
+        if (bucket(packed) <= stale) {
+            return current;
+        }
+        long[] next = new long[kept + 1];
+        int i = 0;
+        for (long c : current) {
+            if (!sameNodeAndBucket(c, packed) && bucket(c) > stale) {
+                next[i++] = c;
+            }
+        }
+        next[i] = packed;
+        return next;
+    }
+
+    /**
+     * Drops the ips due on the wheel whose remote failures have all left the window at now.
+     * Only one thread may clean up at a time.
+     * @return the number of ips dropped
+     */
+    int cleanup(long now) {
+        return wheel.advance(now, expirer);
+    }
+
+    /**
+     * The time from which none of the counts are in the window, see count().
+     */
+    private long expiry(Remote remote) {
+        long newest = Long.MIN_VALUE;
+        for (long packed : remote.counts) {
+            newest = Math.max(newest, bucket(packed));
+        }
+        return newest == Long.MIN_VALUE ? Long.MIN_VALUE : (newest + 1) * width + window - 1;
+    }
+
+    /**
+     * Drops the ip if it's expired at now, otherwise schedules it again at its expiry.
+     */
+    private boolean expire(int ip, long now) {
+        Remote remote = ips.get(ip);
+        if (remote == null) {
+            return false;
+        }
+        long expiry = expiry(remote);
+        if (expiry > now) {
+            wheel.schedule(ip, expiry);
+            return false;
+        }
+        if (!ips.remove(ip, remote)) {
+            return false;
+        }
+        if (expiry(remote) > now && ips.putIfAbsent(ip, remote) == null) {
+            wheel.schedule(ip, expiry(remote)); // a merge got in while we were removing it
+            return false;
+        }
+        return true;
+    }
+
+    int size() {
+        return ips.size();
+    }
+}
@@ -0,0 +1,511 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+
+/**
+ * Concurrent map from a primitive int (an IPv4 address) to a value.
+ *
+ * The map is split into segments, each one an open-addressing table (linear probing, backward shift
+ * deletes so there are no tombstones) of parallel int[] keys and Object[] values.  An entry costs
+ * a key and a reference in the arrays instead of a ConcurrentHashMap node plus a String key, which
+ * matters when we track millions of source ips.
+ *
+ * Reads are optimistic (StampedLock) and only fall back to a read lock if a writer got in the way.
+ * Writes lock a single segment.  Null values aren't allowed, a null slot marks an empty one.
+ */
+final class ConcurrentIntMap<V> {
+
+    static final int DEFAULT_SEGMENTS = 64;
+    static final int DEFAULT_SEGMENT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int SAMPLE_PROBES = 32; // random slots tried by a sample before scanning
+
+    /**
+     * Callback for forEach().
+     */
+    @FunctionalInterface
+    interface IntObjConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    /**
+     * Callback for removeIf().
+     */
+    @FunctionalInterface
+    interface IntObjPredicate<V> {
+        boolean test(int key, V value);
+    }
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    ConcurrentIntMap() {
+        this(DEFAULT_SEGMENTS, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * Both arguments are rounded up to the next power of two.
+     */
+    ConcurrentIntMap(int segmentCount, int segmentCapacity) {
+        int count = ceilingPowerOfTwo(Math.max(1, segmentCount));
+        int capacity = ceilingPowerOfTwo(Math.max(2, segmentCapacity));
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Segment<V>[] created = new Segment[count];
+        segments = created;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(capacity);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * murmur3 finalizer, ips are far from uniformly distributed (eg; a whole /24 only differs in the low byte).
+     */
+    static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int ceilingPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        // high bits pick the segment, low bits the slot inside it
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    V get(int key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value replaced, or null if the key was added.
+     */
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return segmentFor(h).put(key, h, value);
+    }
+
+    /**
+     * Returns the existing value, or null if the value was added.
+     */
+    V putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return segmentFor(h).putIfAbsent(key, h, value);
+    }
+
+    /**
+     * Returns the existing value or the one created by fn (which is called at most once, under the
+     * segment lock, so keep it cheap).
+     */
+    V computeIfAbsent(int key, IntFunction<? extends V> fn) {
+        int h = hash(key);
+        Segment<V> segment = segmentFor(h);
+        V value = segment.get(key, h);
+        if (value != null) {
+            return value;
+        }
+        return segment.computeIfAbsent(key, h, fn);
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to the given value.
+     */
+    boolean remove(int key, V value) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h, value) != null;
+    }
+
+    /**
+     * Removes the entry, returning the old value (or null).
+     */
+    V remove(int key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h, null);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Weakly consistent iteration: each segment is copied under its read lock and the callback is
+     * invoked without holding any lock, so it may freely read or update the map.
+     */
+    void forEach(IntObjConsumer<? super V> action) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    /**
+     * Passes n entries picked by start, or none if the map is empty.  Each is the entry at a random
+     * slot (see Segment.sample()) of a random segment, the first that isn't empty of up to
+     * SAMPLE_PROBES tries, the points of a Weyl sequence from start; so for a random start it's a
+     * sample of the entries, where the segments weigh by how full they are rather than evenly (a
+     * segment with fewer entries than the others would otherwise see more of them picked, eg; have
+     * them all evicted, see BlackListSvcImpl.evict()).  Picks are independent, a small map may pass
+     * an entry more than once.  The action is invoked under the segment's read lock, so it must not
+     * update this map.
+     * @return the number of entries passed
+     */
+    int sample(int start, int n, IntObjConsumer<? super V> action) {
+        int passed = 0;
+        int point = start;
+        for (int pick = 0; pick < n; pick++) {
+            boolean found = false;
+            for (int probe = 0; probe < SAMPLE_PROBES && !found; probe++, point += 0x9E3779B9) {
+                found = segmentFor(point).sample(point, false, action);
+            }
+            // all empty: the map is (nearly) empty, take the first one found instead
+            int first = segments.length == 1 ? 0 : point >>> segmentShift;
+            for (int i = 0; i < segments.length && !found; i++) {
+                found = segments[(first + i) & (segments.length - 1)].sample(point, true, action);
+            }
+            if (!found) {
+                break;
+            }
+            passed++;
+        }
+        return passed;
+    }
+
+    /**
+     * Removes the entries matching the predicate, returns the number removed.
+     * The predicate is invoked under the segment's write lock, so it must not access this map.
+     */
+    int removeIf(IntObjPredicate<? super V> filter) {
+        int removed = 0;
+        for (Segment<V> segment : segments) {
+            removed += segment.removeIf(filter);
+        }
+        return removed;
+    }
+
+    /**
+     * Keys and values of a segment, replaced as a whole on resize so readers always see arrays
+     * of the same length.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "serial"})
+    private static final class Segment<V> extends StampedLock {
+        private Table table;
+        private int size;
+        private int threshold;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+            threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        /**
+         * Probe for the key; the loop is bounded by the table length as an optimistic reader may
+         * see the table mid update.
+         */
+        private static Object find(Table t, int key, int hash) {
+            int[] keys = t.keys;
+            Object[] values = t.values;
+            int mask = t.mask;
+            for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+                Object v = values[i];
+                if (v == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return v;
+                }
+            }
+            return null;
+        }
+
+        V get(int key, int hash) {
+            long stamp = tryOptimisticRead();
+            Object v = find(table, key, hash);
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    v = find(table, key, hash);
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return (V) v;
+        }
+
+        int size() {
+            long stamp = tryOptimisticRead();
+            int s = size;
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    s = size;
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return s;
+        }
+
+        V put(int key, int hash, V value) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                for (int i = hash & t.mask; t.values[i] != null; i = (i + 1) & t.mask) {
+                    if (t.keys[i] == key) {
+                        V old = (V) t.values[i];
+                        t.values[i] = value;
+                        return old;
+                    }
+                }
+                insert(key, hash, value);
+                return null;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        V putIfAbsent(int key, int hash, V value) {
+            long stamp = writeLock();
+            try {
+                Object old = find(table, key, hash);
+                if (old != null) {
+                    return (V) old;
+                }
+                insert(key, hash, value);
+                return null;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        V computeIfAbsent(int key, int hash, IntFunction<? extends V> fn) {
+            long stamp = writeLock();
+            try {
+                Object old = find(table, key, hash);
+                if (old != null) {
+                    return (V) old;
+                }
+                V value = fn.apply(key);
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                insert(key, hash, value);
+                return value;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Removes the key if expected is null or the current value is expected.
+         */
+        V remove(int key, int hash, V expected) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                for (int i = hash & t.mask; t.values[i] != null; i = (i + 1) & t.mask) {
+                    if (t.keys[i] == key) {
+                        Object old = t.values[i];
+                        if (expected != null && old != expected) {
+                            return null;
+                        }
+                        delete(t, i);
+                        return (V) old;
+                    }
+                }
+                return null;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = writeLock();
+            try {
+                table = new Table(table.keys.length);
+                size = 0;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        void forEach(IntObjConsumer<? super V> action) {
+            int[] keys;
+            Object[] values;
+            long stamp = readLock();
+            try {
+                keys = table.keys.clone();
+                values = table.values.clone();
+            } finally {
+                unlockRead(stamp);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    action.accept(keys[i], (V) values[i]);
+                }
+            }
+        }
+
+        /**
+         * Passes the entry at the slot the point hashes to, or with scan the first one at or after it.
+         */
+        boolean sample(int point, boolean scan, IntObjConsumer<? super V> action) {
+            long stamp = readLock();
+            try {
+                Table t = table;
+                int slots = scan ? t.mask + 1 : 1;
+                for (int i = hash(point) & t.mask; slots > 0; i = (i + 1) & t.mask, slots--) {
+                    Object v = t.values[i];
+                    if (v != null) {
+                        action.accept(t.keys[i], (V) v);
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        int removeIf(IntObjPredicate<? super V> filter) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                int removed = 0;
+                int i = 0;
+                while (i < t.values.length) {
+                    Object v = t.values[i];
+                    if (v != null && filter.test(t.keys[i], (V) v)) {
+                        // the backward shift may move an unvisited entry into slot i, so look at it again;
+                        // entries wrapping from the front may be visited twice, which the filter tolerates
+                        delete(t, i);
+                        removed++;
+                    } else {
+                        i++;
+                    }
+                }
+                return removed;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        private void insert(int key, int hash, Object value) {
+            if (size >= threshold) {
+                resize();
+            }
+            Table t = table;
+            int i = hash & t.mask;
+            while (t.values[i] != null) {
+                i = (i + 1) & t.mask;
+            }
+            // key first: optimistic readers check the value before the key
+            t.keys[i] = key;
+            t.values[i] = value;
+            size++;
+        }
+
+        /**
+         * Backward shift delete, moves any following entries of the probe chain up into the hole.
+         */
+        private void delete(Table t, int i) {
+            int mask = t.mask;
+            int hole = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                Object v = t.values[j];
+                if (v == null) {
+                    break;
+                }
+                int home = hash(t.keys[j]) & mask;
+                // move j into the hole if its home slot isn't cyclically within (hole, j]
+                boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+                if (movable) {
+                    t.keys[hole] = t.keys[j];
+                    t.values[hole] = v;
+                    hole = j;
+                }
+            }
+            t.values[hole] = null;
+            size--;
+        }
+
+        private void resize() {
+            Table old = table;
+            Table t = new Table(old.keys.length << 1);
+            for (int i = 0; i < old.values.length; i++) {
+                Object v = old.values[i];
+                if (v != null) {
+                    int j = hash(old.keys[i]) & t.mask;
+                    while (t.values[j] != null) {
+                        j = (j + 1) & t.mask;
+                    }
+                    t.keys[j] = old.keys[i];
+                    t.values[j] = v;
+                }
+            }
+            table = t;
+            threshold = (int) (t.keys.length * LOAD_FACTOR);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent map from a pair of longs (an IPv6 address, or its /64 with a 0 low half) to a value.
+ *
+ * Same design as ConcurrentIntMap: segments of open-addressing tables with backward shift deletes,
+ * optimistic reads and a write lock per segment, null values marking empty slots.  The two halves of
+ * a key sit next to each other in one long[], so a probe reads a single cache line and an entry costs
+ * 16 bytes of key and a reference, against 4 and a reference for an IPv4 address.
+ */
+final class ConcurrentLongPairMap<V> {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Callback for forEach().
+     */
+    @FunctionalInterface
+    interface LongPairObjConsumer<V> {
+        void accept(long high, long low, V value);
+    }
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    ConcurrentLongPairMap() {
+        this(ConcurrentIntMap.DEFAULT_SEGMENTS, ConcurrentIntMap.DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * Both arguments are rounded up to the next power of two.
+     */
+    ConcurrentLongPairMap(int segmentCount, int segmentCapacity) {
+        int count = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(1, segmentCount));
+        int capacity = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(2, segmentCapacity));
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Segment<V>[] created = new Segment[count];
+        segments = created;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(capacity);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Both halves mixed (murmur3 fmix64 of their combination), /64 keys have a 0 low half and
+     * addresses of a /64 often only differ in the last few bits.
+     */
+    static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    V get(long high, long low) {
+        int h = hash(high, low);
+        return segmentFor(h).get(high, low, h);
+    }
+
+    /**
+     * Returns the existing value, or null if the value was added.
+     */
+    V putIfAbsent(long high, long low, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(high, low);
+        return segmentFor(h).putIfAbsent(high, low, h, value, null);
+    }
+
+    /**
+     * Returns the existing value or the one created by fn (which is called at most once, under the
+     * segment lock, so keep it cheap).
+     */
+    V computeIfAbsent(long high, long low, Supplier<? extends V> fn) {
+        int h = hash(high, low);
+        Segment<V> segment = segmentFor(h);
+        V value = segment.get(high, low, h);
+        if (value != null) {
+            return value;
+        }
+        return segment.putIfAbsent(high, low, h, null, fn);
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to the given value.
+     */
+    boolean remove(long high, long low, V value) {
+        int h = hash(high, low);
+        return segmentFor(h).remove(high, low, h, value);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Weakly consistent iteration, as ConcurrentIntMap.forEach(): the callback may update the map.
+     */
+    void forEach(LongPairObjConsumer<? super V> action) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    /**
+     * Keys (high, low of slot i at 2i, 2i + 1) and values of a segment, replaced as a whole on resize.
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity << 1];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "serial"})
+    private static final class Segment<V> extends StampedLock {
+        private Table table;
+        private int size;
+        private int threshold;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+            threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        /**
+         * Probe for the key, bounded by the table length as an optimistic reader may see it mid update.
+         */
+        private static Object find(Table t, long high, long low, int hash) {
+            long[] keys = t.keys;
+            Object[] values = t.values;
+            int mask = t.mask;
+            for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+                Object v = values[i];
+                if (v == null) {
+                    return null;
+                }
+                if (keys[i << 1] == high && keys[(i << 1) + 1] == low) {
+                    return v;
+                }
+            }
+            return null;
+        }
+
+        V get(long high, long low, int hash) {
+            long stamp = tryOptimisticRead();
+            Object v = find(table, high, low, hash);
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    v = find(table, high, low, hash);
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return (V) v;
+        }
+
+        int size() {
+            long stamp = tryOptimisticRead();
+            int s = size;
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    s = size;
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Adds value, or the one fn creates if value is null, unless the key is there; returns the
+         * existing value, or with fn the one added.
+         */
+        V putIfAbsent(long high, long low, int hash, V value, Supplier<? extends V> fn) {
+            long stamp = writeLock();
+            try {
+                Object old = find(table, high, low, hash);
+                if (old != null) {
+                    return (V) old;
+                }
+                V added = value != null ? value : fn.get();
+                if (added == null) {
+                    throw new NullPointerException();
+                }
+                insert(high, low, hash, added);
+                return value != null ? null : added;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long high, long low, int hash, V expected) {
+            long stamp = writeLock();
+            try {
+                Table t = table;
+                for (int i = hash & t.mask; t.values[i] != null; i = (i + 1) & t.mask) {
+                    if (t.keys[i << 1] == high && t.keys[(i << 1) + 1] == low) {
+                        if (t.values[i] != expected) {
+                            return false;
+                        }
+                        delete(t, i);
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        void forEach(LongPairObjConsumer<? super V> action) {
+            long[] keys;
+            Object[] values;
+            long stamp = readLock();
+            try {
+                keys = table.keys.clone();
+                values = table.values.clone();
+            } finally {
+                unlockRead(stamp);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    action.accept(keys[i << 1], keys[(i << 1) + 1], (V) values[i]);
+                }
+            }
+        }
+
+        private void insert(long high, long low, int hash, Object value) {
+            if (size >= threshold) {
+                resize();
+            }
+            Table t = table;
+            int i = hash & t.mask;
+            while (t.values[i] != null) {
+                i = (i + 1) & t.mask;
+            }
+            // keys first: optimistic readers check the value before the keys
+            t.keys[i << 1] = high;
+            t.keys[(i << 1) + 1] = low;
+            t.values[i] = value;
+            size++;
+        }
+
+        /**
+         * Backward shift delete, see ConcurrentIntMap.
+         */
+        private void delete(Table t, int i) {
+            int mask = t.mask;
+            int hole = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                Object v = t.values[j];
+                if (v == null) {
+                    break;
+                }
+                int home = hash(t.keys[j << 1], t.keys[(j << 1) + 1]) & mask;
+                boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+                if (movable) {
+                    t.keys[hole << 1] = t.keys[j << 1];
+                    t.keys[(hole << 1) + 1] = t.keys[(j << 1) + 1];
+                    t.values[hole] = v;
+                    hole = j;
+                }
+            }
+            t.values[hole] = null;
+            size--;
+        }
+
+        private void resize() {
+            Table old = table;
+            Table t = new Table(old.values.length << 1);
+            for (int i = 0; i < old.values.length; i++) {
+                Object v = old.values[i];
+                if (v != null) {
+                    long high = old.keys[i << 1];
+                    long low = old.keys[(i << 1) + 1];
+                    int j = hash(high, low) & t.mask;
+                    while (t.values[j] != null) {
+                        j = (j + 1) & t.mask;
+                    }
+                    t.keys[j << 1] = high;
+                    t.keys[(j << 1) + 1] = low;
+                    t.values[j] = v;
+                }
+            }
+            table = t;
+            threshold = (int) (t.values.length * LOAD_FACTOR);
+        }
+    }
+}
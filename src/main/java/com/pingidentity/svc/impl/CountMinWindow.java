@@ -0,0 +1,154 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Failure counts of any number of ips in fixed memory: a count-min sketch per sub-window (a fifth
+ * of the window, so a minute by default) in a ring, like the buckets of BucketedWindow.  Each sketch
+ * has DEPTH rows of width counters, an ip adds to one counter per row and its estimate is the
+ * smallest of them, summed over the sub-windows in the window.  Estimates are never below the true
+ * count, but for racing updates; they're above it when other ips share all of its counters, which
+ * gets likely once the failures in the window are a sizeable fraction of width times the threshold
+ * (see README).  Updates are conservative (only the counters at the minimum are raised), which keeps
+ * them much closer than plain count-min under heavy load.  Lock-free: two ips raising a shared
+ * counter at the same time may lose one of their counts.  A sketch is only cleared once its
+ * sub-window has left the window (there is one more in the ring than the window spans, to clear
+ * ahead), and updates wait for a clear to finish rather than have their counts wiped.
+ */
+final class CountMinWindow {
+
+    static final int DEPTH = 4;
+    static final int SUB_WINDOWS = 5;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final long CLEARING = Long.MIN_VALUE + 1;
+
+    private final int mask;
+    private final long width; // of a sub-window, in seconds
+    private final AtomicIntegerArray[] sketches; // SUB_WINDOWS + 2: the window spans 6, plus one to clear ahead
+    private final AtomicLongArray epochs; // the sub-window each sketch holds
+
+    /**
+     * @param window length of the window in seconds
+     * @param counters counters per row, rounded up to a power of two
+     */
+    CountMinWindow(long window, int counters) {
+        int size = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(2, counters));
+        this.mask = size - 1;
+        this.width = Math.max(1L, (window + SUB_WINDOWS - 1) / SUB_WINDOWS);
+        this.sketches = new AtomicIntegerArray[SUB_WINDOWS + 2];
+        this.epochs = new AtomicLongArray(sketches.length);
+        for (int i = 0; i < sketches.length; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * size);
+            epochs.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Memory used by the counters.
+     */
+    long bytes() {
+        return (long) sketches.length * DEPTH * (mask + 1) * Integer.BYTES;
+    }
+
+    /**
+     * Counts failures of the ip at now.
+     * @return the ip's estimate in the window from (exclusive), including them
+     */
+    int add(int ip, long now, long from, int times) {
+        long epoch = Math.floorDiv(now, width);
+        AtomicIntegerArray sketch = sketch(epoch);
+        int h1 = ConcurrentIntMap.hash(ip);
+        int h2 = ConcurrentIntMap.hash(ip ^ 0x5BD1E995) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, sketch.get(index(row, h1, h2)));
+        }
+        int target = min + times;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(row, h1, h2);
+            int count;
+            while ((count = sketch.get(index)) < target && !sketch.compareAndSet(index, count, target)) {
+                // raced with another ip sharing the counter
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, target + estimate(h1, h2, epoch - 1, from));
+    }
+
+    /**
+     * The ip's estimate in the window from (exclusive) to now.
+     */
+    long estimate(int ip, long now, long from) {
+        return estimate(ConcurrentIntMap.hash(ip), ConcurrentIntMap.hash(ip ^ 0x5BD1E995) | 1, Math.floorDiv(now, width), from);
+    }
+
+    /**
+     * Clears the sketch of the next sub-window, so add() doesn't have to; called every second by
+     * the cleanup.
+     */
+    void advance(long now) {
+        sketch(Math.floorDiv(now, width) + 1);
+    }
+
+    /**
+     * Sum of the estimates of the sub-windows up to epoch that end after from.
+     */
+    private long estimate(int h1, int h2, long epoch, long from) {
+        long total = 0L;
+        for (int i = 0; i < sketches.length; i++) {
+            long held = epochs.get(i);
+            if (held > epoch || held <= epoch - sketches.length || (held + 1) * width <= from + 1) {
+                continue; // ahead, being cleared, or all of it is out of the window
+            }
+            AtomicIntegerArray sketch = sketches[i];
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, sketch.get(index(row, h1, h2)));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    /**
+     * The sketch of the sub-window, cleared by whoever gets to it first; the others wait for the
+     * clear, so what they add isn't wiped.  A sub-window older than the sketch's (a late event)
+     * gets the newer one, over counting it.
+     */
+    private AtomicIntegerArray sketch(long epoch) {
+        int i = (int) Math.floorMod(epoch, (long) sketches.length);
+        AtomicIntegerArray sketch = sketches[i];
+        long held;
+        while ((held = epochs.get(i)) < epoch) { // EMPTY and CLEARING are below any epoch
+            if (held != CLEARING && epochs.compareAndSet(i, held, CLEARING)) {
+                for (int j = 0; j < sketch.length(); j++) {
+                    sketch.lazySet(j, 0);
+                }
+                epochs.set(i, epoch);
+                break;
+            }
+            Thread.yield();
+        }
+        return sketch;
+    }
+
+    private int index(int row, int h1, int h2) {
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+}
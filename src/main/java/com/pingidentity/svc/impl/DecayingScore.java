@@ -0,0 +1,124 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exponentially decayed count of requests, see WindowStrategy.decaying().
+ *
+ * The score at time t is the sum of e^-((t - ti) / window) over the requests at ti: a request counts
+ * 1 when it's made and 1/e of that a window later, so a steady rate r scores about r * window, as the
+ * rolling window would count, and a burst of n requests scores n.  The score and the second it was
+ * last decayed to are packed into a single long (the time in the high 32 bits, the score as a float in
+ * the low 32), so add() is a single CAS and the window costs 8 bytes whatever the rate.  count(from)
+ * is the score at from + window, rounded down: a request blacklists when the score reaches max.
+ *
+ * Extends AtomicLong to save a header per window, there is one per tracked ip.
+ */
+@SuppressWarnings("serial")
+final class DecayingScore extends AtomicLong implements RequestWindow {
+
+    private final Decay decay;
+
+    DecayingScore(Decay decay) {
+        this.decay = decay;
+    }
+
+    @Override
+    public void add(long now) {
+        add(now, 1);
+    }
+
+    @Override
+    public void add(long now, int times) {
+        while (true) {
+            long current = get();
+            long time = current >>> 32;
+            float score = Float.intBitsToFloat((int) current);
+            long next;
+            if (now >= time) {
+                next = now << 32 | Float.floatToRawIntBits((float) (score * decay.factor(now - time) + times));
+            } else { // late, decayed to the current time
+                next = current & 0xFFFFFFFF00000000L | Float.floatToRawIntBits((float) (score + times * decay.factor(time - now)));
+            }
+            if (compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long count(long from) {
+        return (long) score(from + decay.window);
+    }
+
+    /**
+     * The score at now, not decayed if now is before the last request.
+     */
+    double score(long now) {
+        long current = get();
+        long time = current >>> 32;
+        float score = Float.intBitsToFloat((int) current);
+        return now > time ? score * decay.factor(now - time) : score;
+    }
+
+    /**
+     * Passes the score, rounded, as that many requests at the last request's time; adding them to
+     * an empty score restores it, give or take the rounding.
+     */
+    @Override
+    public void forEach(long from, TimeCountConsumer action) {
+        long current = get();
+        int count = Math.round(Float.intBitsToFloat((int) current));
+        if (count > 0) {
+            action.accept(current >>> 32, count);
+        }
+    }
+
+    /**
+     * The decay factors of a window, by whole second, shared by the scores of a strategy.
+     */
+    static final class Decay {
+
+        static final int HORIZON = 32; // windows after which a score is 0 (e^-32 < 2^-46)
+
+        final long window;
+        private final double[] factors;
+
+        Decay(long window) {
+            if (window < 1) {
+                throw new IllegalArgumentException("window must be positive");
+            }
+            this.window = window;
+            factors = new double[(int) Math.min(window * HORIZON, 1 << 16) + 1];
+            for (int i = 0; i < factors.length; i++) {
+                factors[i] = Math.exp(-i / (double) window);
+            }
+        }
+
+        /**
+         * e^-(elapsed / window).
+         */
+        double factor(long elapsed) {
+            if (elapsed < factors.length) {
+                return factors[(int) elapsed];
+            }
+            return elapsed >= window * HORIZON ? 0d : Math.exp(-elapsed / (double) window);
+        }
+    }
+}
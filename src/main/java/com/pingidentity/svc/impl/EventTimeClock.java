@@ -0,0 +1,104 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock of a service tracking at event time (see BlackListSvcImpl.track(ip, epochMillis)): it's
+ * the watermark, the latest event time seen, and only moves when events do.  So replaying
+ * yesterday's log blacklists and expires as it happened yesterday, however fast it goes.
+ *
+ * It starts at the given time, which should be at or before the first event's; the first event
+ * moves the watermark however far it is, later ones only up to a bound (see
+ * BlackListSvcImpl.setEarliness()), so one event stamped in 2099 can't make every other one late.
+ */
+public final class EventTimeClock extends Clock {
+
+    private final AtomicLong millis;
+    private final AtomicBoolean advanced; // by an event, see admits()
+    private final ZoneId zone;
+
+    public EventTimeClock(long startMillis) {
+        this(new AtomicLong(startMillis), new AtomicBoolean(), ZoneOffset.UTC);
+    }
+
+    /**
+     * A view in another zone, sharing the watermark.
+     */
+    private EventTimeClock(AtomicLong millis, AtomicBoolean advanced, ZoneId zone) {
+        this.millis = millis;
+        this.advanced = advanced;
+        this.zone = zone;
+    }
+
+    /**
+     * Whether the event is at most maxAheadMillis past the watermark; any event is until the first
+     * one has been passed to advance().
+     */
+    boolean admits(long eventMillis, long maxAheadMillis) {
+        return !advanced.get() || eventMillis - millis.get() <= maxAheadMillis;
+    }
+
+    /**
+     * Moves the watermark to the event time, if it's later.
+     * @return true if the watermark moved to a new second
+     */
+    boolean advance(long eventMillis) {
+        advanced.lazySet(true);
+        long current;
+        while (eventMillis > (current = millis.get())) {
+            if (millis.compareAndSet(current, eventMillis)) {
+                return Math.floorDiv(eventMillis, 1000L) > Math.floorDiv(current, 1000L);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * The same watermark seen in the zone: advancing either moves both.
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new EventTimeClock(millis, advanced, zone);
+    }
+
+    @Override
+    public String toString() {
+        return "EventTimeClock[" + instant() + "]";
+    }
+}
@@ -0,0 +1,60 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Window that keeps the time of every request.
+ * Lock-free, but count() walks every request in the window.
+ */
+final class ExactWindow implements RequestWindow {
+
+    private final Queue<Long> times = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void add(long now) {
+        times.add(now);
+    }
+
+    @Override
+    public long count(long from) {
+        times.removeIf(e -> e <= from);
+        return times.size();
+    }
+
+    @Override
+    public void forEach(long from, TimeCountConsumer action) {
+        long time = Long.MIN_VALUE;
+        int count = 0;
+        for (long t : times) {
+            if (t <= from) {
+                continue;
+            }
+            if (t != time && count > 0) {
+                action.accept(time, count);
+                count = 0;
+            }
+            time = t;
+            count++;
+        }
+        if (count > 0) {
+            action.accept(time, count);
+        }
+    }
+}
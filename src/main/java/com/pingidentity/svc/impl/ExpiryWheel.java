@@ -0,0 +1,216 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel of ips, keyed on the epoch second at which their entry may expire.
+ *
+ * There are 4 levels of 64 slots; a slot of level l covers 64^l seconds, so the wheel spans about
+ * 194 days (anything further out is parked in the last slot and looked at again then).  advance()
+ * visits only the slots that came due, and hands their ips to an Expirer that decides whether the
+ * entry is really expired or, having been tracked since, should be scheduled again at its new
+ * expiry; which also takes care of moving entries down the levels.  So track() never has to touch
+ * the wheel, an ip is scheduled once when its entry is created.
+ *
+ * Slots are growable int arrays, a due slot is swapped with a spare array so advance() doesn't
+ * allocate once the arrays have grown to size.  advance() doesn't walk the seconds of a gap it can
+ * skip: once the wheel is empty it goes straight to now, and a gap of a span or more has every slot
+ * due, so they're all fired at once.
+ */
+final class ExpiryWheel {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final long SPAN = 1L << (LEVELS * SLOT_BITS);
+
+    /**
+     * Called for each due ip, outside of the wheel's lock.
+     */
+    @FunctionalInterface
+    interface Expirer {
+        /**
+         * Returns true if the ip was expired, otherwise it's expected to be scheduled again.
+         */
+        boolean expire(int ip, long now);
+    }
+
+    private final int[][][] slots = new int[LEVELS][SLOTS][];
+    private final int[][] sizes = new int[LEVELS][SLOTS];
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long current; // last second advanced to
+    private int scheduled; // ips in the slots, under the lock
+    private int[] spare = new int[16];
+
+    ExpiryWheel(long now) {
+        current = now;
+        for (int[][] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new int[4];
+            }
+        }
+    }
+
+    /**
+     * The second the wheel has been advanced to.
+     */
+    long current() {
+        return current;
+    }
+
+    /**
+     * Schedules the ip to be looked at once expiry has been reached (at the earliest on the next second).
+     */
+    void schedule(int ip, long expiry) {
+        lock.lock();
+        try {
+            long now = current;
+            long at = Math.min(Math.max(expiry, now + 1), now + SPAN - 1);
+            long delta = at - now;
+            int level = 0;
+            while (delta >= 1L << ((level + 1) * SLOT_BITS)) {
+                level++;
+            }
+            int slot = (int) (at >>> (level * SLOT_BITS)) & MASK;
+            int size = sizes[level][slot];
+            int[] ips = slots[level][slot];
+            if (size == ips.length) {
+                ips = slots[level][slot] = Arrays.copyOf(ips, size << 1);
+            }
+            ips[size] = ip;
+            sizes[level][slot] = size + 1;
+            scheduled++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Advances the wheel to now, passing the ips of every slot that came due to the expirer.
+     * Only one thread may advance the wheel at a time.
+     * @return the number of ips expired
+     */
+    int advance(long now, Expirer expirer) {
+        if (now - current >= SPAN) {
+            return fireAll(now, expirer);
+        }
+        int expired = 0;
+        for (long t = current + 1; t <= now && !skipTo(now); t++) {
+            // higher levels first, their entries may be due this very second
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((t & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    expired += fire(level, (int) (t >>> (level * SLOT_BITS)) & MASK, t, expirer);
+                }
+            }
+            expired += fire(0, (int) t & MASK, t, expirer);
+        }
+        return expired;
+    }
+
+    /**
+     * Takes the ips out of the slot, under the lock, then processes them outside of it.
+     * current is moved to t first, so entries scheduled again go to a later slot.
+     */
+    private int fire(int level, int slot, long t, Expirer expirer) {
+        int[] ips;
+        int size;
+        lock.lock();
+        try {
+            current = t;
+            size = sizes[level][slot];
+            if (size == 0) {
+                return 0;
+            }
+            ips = slots[level][slot];
+            slots[level][slot] = spare;
+            sizes[level][slot] = 0;
+            scheduled -= size;
+        } finally {
+            lock.unlock();
+        }
+        int expired = 0;
+        for (int i = 0; i < size; i++) {
+            if (expirer.expire(ips[i], t)) {
+                expired++;
+            }
+        }
+        spare = ips; // reused by the next slot that comes due
+        return expired;
+    }
+
+    /**
+     * Moves current to now if there's nothing to fire on the way.
+     */
+    private boolean skipTo(long now) {
+        lock.lock();
+        try {
+            if (scheduled != 0) {
+                return false;
+            }
+            current = now;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the ips out of every slot, all due by now, and processes them at now.
+     */
+    private int fireAll(long now, Expirer expirer) {
+        int[] ips;
+        int size = 0;
+        lock.lock();
+        try {
+            current = now;
+            ips = new int[scheduled];
+            for (int level = 0; level < LEVELS; level++) {
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    System.arraycopy(slots[level][slot], 0, ips, size, sizes[level][slot]);
+                    size += sizes[level][slot];
+                    sizes[level][slot] = 0;
+                }
+            }
+            scheduled = 0;
+        } finally {
+            lock.unlock();
+        }
+        int expired = 0;
+        for (int ip : ips) {
+            if (expirer.expire(ip, now)) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Number of scheduled ips.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return scheduled;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
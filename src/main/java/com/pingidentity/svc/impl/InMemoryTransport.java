@@ -0,0 +1,66 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transport between the Replicators of a JVM, for tests and benchmarks: broadcast() hands the delta
+ * to every other node's receive() on the caller's thread.  Counts what it delivers, and can be cut
+ * off to lose deltas.
+ */
+final class InMemoryTransport implements Replicator.Transport {
+
+    private final List<Replicator> nodes = new CopyOnWriteArrayList<>();
+    private final LongAdder deliveredBytes = new LongAdder();
+    private final LongAdder deliveredDeltas = new LongAdder();
+    private volatile boolean connected = true;
+
+    void join(Replicator node) {
+        nodes.add(node);
+    }
+
+    void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    @Override
+    public void broadcast(ByteBuffer delta) {
+        if (!connected) {
+            return;
+        }
+        int sender = delta.getInt(delta.position() + 4);
+        for (Replicator node : nodes) {
+            if (node.getNodeId() != sender) {
+                node.receive(delta.duplicate());
+                deliveredBytes.add(delta.remaining());
+                deliveredDeltas.increment();
+            }
+        }
+    }
+
+    long getDeliveredBytes() {
+        return deliveredBytes.sum();
+    }
+
+    long getDeliveredDeltas() {
+        return deliveredDeltas.sum();
+    }
+}
@@ -0,0 +1,149 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pingidentity.svc.BlackListEvent;
+import com.pingidentity.svc.BlackListListener;
+
+import lombok.Getter;
+
+/**
+ * Writes each batch of changes (see BlackListSvc.subscribe()) to a new file of set updates, for an
+ * agent on the edge hosts to load into the kernel, eg; "ipset restore -f" or "nft -f", then delete.
+ * Attackers are then dropped by the firewall before they reach the service.
+ *
+ * The files are named set-sequence.ipset (or .nft) in the directory, the sequence starting at the
+ * sink's creation time in milliseconds so that a restart doesn't reuse names: applying them in name
+ * order replays the changes in order.  Each file is written to a temporary file then moved into
+ * place, so the agent never sees half a file.  Entries carry the time left as a timeout, so the
+ * set drops them on its own even if an EXPIRED is lost.
+ */
+public class IpSetSink implements BlackListListener {
+
+    public enum Format {
+        /**
+         * For "ipset restore", of a set created with "ipset create set hash:ip timeout 0".
+         */
+        IPSET("ipset"),
+        /**
+         * For "nft -f", of a set declared with "flags timeout" in table; an add before each delete
+         * so that the delete doesn't fail if the element is already gone, and a delete before the
+         * add of a renewal as adding an existing element keeps its timeout.
+         */
+        NFT("nft");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final Path directory;
+    private final String set;
+    private final String table;
+    private final Format format;
+    private final Clock clock;
+    private final AtomicLong sequence;
+    @Getter
+    private volatile Path lastFile;
+    private final AtomicLong files = new AtomicLong();
+
+    /**
+     * An ipset sink.
+     */
+    public IpSetSink(Path directory, String set) {
+        this(directory, set, Format.IPSET, null, Clock.systemUTC());
+    }
+
+    /**
+     * @param table the nft table of the set ("inet filter"), ignored for IPSET
+     * @param clock the service's clock, to turn the ends into timeouts
+     */
+    public IpSetSink(Path directory, String set, Format format, String table, Clock clock) {
+        if (format == Format.NFT && table == null) {
+            throw new IllegalArgumentException("The nft format needs a table");
+        }
+        this.directory = directory;
+        this.set = set;
+        this.table = table;
+        this.format = format;
+        this.clock = clock;
+        this.sequence = new AtomicLong(clock.millis());
+    }
+
+    /**
+     * Number of files written.
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    @Override
+    public void onEvents(List<BlackListEvent> events) {
+        long now = TickingClock.epochSecond(clock);
+        StringBuilder lines = new StringBuilder(events.size() * 48);
+        for (BlackListEvent event : events) {
+            append(lines, event, Math.max(1L, event.getEnd() - now));
+        }
+        Path file = directory.resolve(String.format("%s-%019d.%s", set, sequence.getAndIncrement(), format.extension));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+                writer.append(lines);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastFile = file;
+        files.incrementAndGet();
+    }
+
+    /**
+     * The lines of an event, with the seconds left of its blacklist.
+     */
+    void append(StringBuilder lines, BlackListEvent event, long timeout) {
+        String ip = event.getAddress();
+        boolean expired = event.getType() == BlackListEvent.Type.EXPIRED;
+        if (format == Format.IPSET) {
+            if (expired) {
+                lines.append("del ").append(set).append(' ').append(ip).append(" -exist\n");
+            } else {
+                lines.append("add ").append(set).append(' ').append(ip).append(" timeout ").append(timeout).append(" -exist\n");
+            }
+            return;
+        }
+        String element = " element " + table + ' ' + set + " { " + ip;
+        lines.append("add").append(element).append(" timeout ").append(timeout).append("s }\n");
+        lines.append("delete").append(element).append(" }\n");
+        if (!expired) {
+            lines.append("add").append(element).append(" timeout ").append(timeout).append("s }\n");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pingidentity.svc.Ipv6;
+
+import lombok.Getter;
+
+/**
+ * Trackings of the IPv6 clients, keyed on their network of prefixLength bits: the whole address
+ * at 128, the /64 by default as a client gets a whole /64 and can rotate freely inside it.
+ *
+ * The IPv4 side's parts that are keyed on an int (expiry wheel, offender index, blacklisted set)
+ * have simpler counterparts here: cleanup() goes through the table, and the offenders (the
+ * networks blacklisted since they were last cleaned up) are a second, small, table.  Lookups are one probe, as for IPv4.
+ */
+final class Ipv6Table {
+
+    @Getter
+    private final int prefixLength;
+    private final WindowStrategy windows;
+    private final ConcurrentLongPairMap<Tracking> db = new ConcurrentLongPairMap<>();
+    private final ConcurrentLongPairMap<Tracking> offenders = new ConcurrentLongPairMap<>(16, 16);
+
+    Ipv6Table(int prefixLength, WindowStrategy windows) {
+        if (prefixLength < 1 || prefixLength > 128) {
+            throw new IllegalArgumentException("Not an IPv6 prefix length: " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.windows = windows;
+    }
+
+    /**
+     * Tracks the failure of the address against its network, returns true if it's blacklisted.
+     */
+    boolean track(long high, long low, long now, long from, int max, long duration) {
+        long network = Ipv6.maskHigh(high, prefixLength);
+        long host = Ipv6.maskLow(low, prefixLength);
+        Tracking tracking = db.computeIfAbsent(network, host, () -> new Tracking(windows));
+        boolean blackListed = tracking.track(now, from, max, duration);
+        if (blackListed) {
+            Tracking old = offenders.get(network, host);
+            if (old != tracking) {
+                if (old != null) { // the network was cleaned up and tracked again
+                    offenders.remove(network, host, old);
+                }
+                offenders.putIfAbsent(network, host, tracking);
+            }
+        }
+        return blackListed;
+    }
+
+    /**
+     * The Tracking of the address's network, or null.
+     */
+    Tracking get(long high, long low) {
+        return db.get(Ipv6.maskHigh(high, prefixLength), Ipv6.maskLow(low, prefixLength));
+    }
+
+    boolean isBlackListed(long high, long low, long now) {
+        Tracking tracking = get(high, low);
+        return tracking != null && tracking.isBlackListed(now);
+    }
+
+    long count(long high, long low, long from) {
+        Tracking tracking = get(high, low);
+        return tracking == null ? 0L : tracking.count(from);
+    }
+
+    int size() {
+        return db.size();
+    }
+
+    /**
+     * Removes the networks with nothing of interest left at now, as BlackListSvcImpl.expire() does
+     * for an ip (and from the offenders); returns the number removed.
+     */
+    int cleanup(long now, long window) {
+        int[] removed = new int[1];
+        db.forEach((high, low, tracking) -> {
+            if (tracking.expiry(window) > now || !db.remove(high, low, tracking)) {
+                return;
+            }
+            if (tracking.expiry(window) > now && db.putIfAbsent(high, low, tracking) == null) {
+                return; // a request got in while we were removing it
+            }
+            offenders.remove(high, low, tracking);
+            removed[0]++;
+        });
+        return removed[0];
+    }
+
+    /**
+     * The offenders with the most violations since from, in the order of getTopN(): descending
+     * count, then ascending address.
+     */
+    Map<String, Integer> topN(int n, long from) {
+        List<long[]> entries = new ArrayList<>();
+        offenders.forEach((high, low, tracking) -> {
+            int count = tracking.blackListCount(from);
+            if (count > 0) {
+                entries.add(new long[] {count, high, low});
+            }
+        });
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Ipv6.compare(a[1], a[2], b[1], b[2]));
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = 0; i < n && i < entries.size(); i++) {
+            long[] e = entries.get(i);
+            result.put(format(e[1], e[2]), (int) e[0]);
+        }
+        return result;
+    }
+
+    /**
+     * The network, with its prefix length unless it's a whole address.
+     */
+    String format(long high, long low) {
+        String address = Ipv6.format(high, low);
+        return prefixLength == 128 ? address : address + '/' + prefixLength;
+    }
+}
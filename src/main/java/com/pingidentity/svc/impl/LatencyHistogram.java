@@ -0,0 +1,95 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Histogram of latencies in nanoseconds, in the spirit of HdrHistogram: each power of two is split
+ * in 8 buckets, so a percentile is within 12.5% of the recorded value, whatever its magnitude,
+ * in a fixed array of counters.  Recording is a couple of shifts and an atomic increment.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        counts.getAndIncrement(index(value));
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Smallest value of the bucket.
+     */
+    static long lowest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    long count() {
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values are, as the lowest value of
+     * its bucket; 0 if nothing was recorded.
+     */
+    long percentile(double percent) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long rank = Math.max(1L, (long) Math.ceil(count * percent / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return lowest(i);
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,241 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+import com.pingidentity.svc.Ipv4;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Replays an access log through a service at event time (see BlackListSvcImpl.track(ip, epochMillis)),
+ * tracking the requests that failed.  Lines are in the common, or combined, log format; eg;
+ *   10.1.2.3 - - [10/Oct/2000:13:55:36 -0700] "POST /login HTTP/1.1" 401 2326
+ * and a failure is a 401 or 403 unless other statuses are given.
+ *
+ * The file is mapped a CHUNK at a time and copied out a BLOCK at a time into an array the lines are
+ * parsed from, so nothing is allocated per line.  Not thread-safe, a replay reads one file.
+ */
+@Getter
+public final class LogReplay {
+
+    static final long CHUNK = 1L << 30; // mapped at a time
+    static final int BLOCK = 1 << 20; // copied out of the mapping at a time
+    static final int MAX_LINE = 1 << 16; // longer lines are skipped as malformed
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final byte[] MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes();
+
+    @Getter(AccessLevel.NONE)
+    private final BlackListSvcImpl svc;
+    @Getter(AccessLevel.NONE)
+    private final boolean[] failure = new boolean[1000]; // by status
+    @Getter(AccessLevel.NONE)
+    private int cachedDate = -1; // year, month and day of the last line, and its epoch day
+    @Getter(AccessLevel.NONE)
+    private long cachedDay;
+    private long lines;
+    private long failures; // tracked, including the dropped ones (see the service's track.late and track.early metrics)
+    private long malformed;
+    private long bytes;
+
+    public LogReplay(BlackListSvcImpl svc) {
+        this(svc, 401, 403);
+    }
+
+    public LogReplay(BlackListSvcImpl svc, int... failureStatuses) {
+        this.svc = svc;
+        for (int status : failureStatuses) {
+            failure[status] = true;
+        }
+    }
+
+    /**
+     * Reads the whole file, the counters add up over replays.
+     */
+    public void replay(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] buffer = new byte[MAX_LINE + BLOCK];
+            int carried = 0; // start of a line that ran over the previous block
+            boolean skipping = false; // the rest of a line that was too long
+            for (long mapped = 0; mapped < size; ) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, mapped, Math.min(CHUNK, size - mapped));
+                mapped += chunk.capacity();
+                while (chunk.hasRemaining()) {
+                    int read = Math.min(BLOCK, chunk.remaining());
+                    chunk.get(buffer, carried, read);
+                    bytes += read;
+                    int end = carried + read;
+                    int from = 0;
+                    if (skipping) {
+                        from = indexOf(buffer, (byte) '\n', 0, end) + 1;
+                        skipping = from == 0;
+                        if (skipping) {
+                            carried = 0;
+                            continue;
+                        }
+                    }
+                    from = lines(buffer, from, end);
+                    carried = end - from;
+                    if (carried > MAX_LINE) {
+                        malformed++;
+                        skipping = true;
+                        carried = 0;
+                    } else {
+                        System.arraycopy(buffer, from, buffer, 0, carried);
+                    }
+                }
+            }
+            if (carried > 0 && !skipping) {
+                line(buffer, 0, carried); // no newline at the end of the file
+            }
+        }
+    }
+
+    /**
+     * Parses the complete lines between from and to.
+     * @return the start of the incomplete last line
+     */
+    private int lines(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') {
+                line(b, from, i);
+                from = i + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Tracks the line's ip at the line's time if its status is a failure.  Blank lines don't count.
+     */
+    void line(byte[] b, int from, int to) {
+        if (to > from && b[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return;
+        }
+        lines++;
+        int space = indexOf(b, (byte) ' ', from, to);
+        long ip = space < 0 ? Ipv4.INVALID : Ipv4.tryParse(b, from, space);
+        int open = ip == Ipv4.INVALID ? -1 : indexOf(b, (byte) '[', space, to);
+        long millis = open < 0 || open + 28 > to || b[open + 27] != ']' ? NO_TIME : time(b, open + 1);
+        int status = millis == NO_TIME ? -1 : status(b, open + 28, to);
+        if (status < 0) {
+            malformed++;
+        } else if (failure[status]) {
+            failures++;
+            svc.track((int) ip, millis);
+        }
+    }
+
+    /**
+     * Epoch millis of a dd/MMM/yyyy:HH:mm:ss +zzzz timestamp, or NO_TIME.  The epoch day is only
+     * computed when the date changes.
+     */
+    long time(byte[] b, int at) {
+        int day = digits(b, at, 2);
+        int month = month(b, at + 3);
+        int year = digits(b, at + 7, 4);
+        int hour = digits(b, at + 12, 2);
+        int minute = digits(b, at + 15, 2);
+        int second = digits(b, at + 18, 2);
+        int zoneHours = digits(b, at + 22, 2);
+        int zoneMinutes = digits(b, at + 24, 2);
+        byte sign = b[at + 21];
+        if ((day | month | year | hour | minute | second | zoneHours | zoneMinutes) < 0
+                || b[at + 2] != '/' || b[at + 6] != '/' || b[at + 11] != ':' || (sign != '+' && sign != '-')) {
+            return NO_TIME;
+        }
+        int date = (year << 9) | (month << 5) | day;
+        if (date != cachedDate) {
+            try {
+                cachedDay = LocalDate.of(year, month, day).toEpochDay();
+            } catch (DateTimeException e) {
+                return NO_TIME;
+            }
+            cachedDate = date;
+        }
+        long offset = (zoneHours * 60L + zoneMinutes) * 60L;
+        long seconds = cachedDay * 86_400L + hour * 3600L + minute * 60L + second - (sign == '-' ? -offset : offset);
+        return seconds * 1000L;
+    }
+
+    /**
+     * The status after the request, which is quoted and may have escaped quotes, or -1.
+     */
+    private static int status(byte[] b, int from, int to) {
+        int quote = indexOf(b, (byte) '"', from, to);
+        if (quote < 0) {
+            return -1;
+        }
+        for (int i = quote + 1; i + 5 <= to; i++) {
+            if (b[i] == '"' && b[i + 1] == ' ' && b[i - 1] != '\\') {
+                int status = digits(b, i + 2, 3);
+                if (status >= 0 && (i + 5 == to || b[i + 5] == ' ')) {
+                    return status;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 1 to 12, or -1.
+     */
+    private static int month(byte[] b, int at) {
+        for (int i = 0; i < MONTHS.length; i += 3) {
+            if (b[at] == MONTHS[i] && b[at + 1] == MONTHS[i + 1] && b[at + 2] == MONTHS[i + 2]) {
+                return i / 3 + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The decimal number of count digits at, or -1.
+     */
+    private static int digits(byte[] b, int at, int count) {
+        int value = 0;
+        for (int i = at; i < at + count; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] b, byte c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,70 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+/**
+ * Bounded multi-producer single-consumer queue of an int and an optional attachment, eg; an ip and
+ * the future waiting for it, on an MpscRing.  Offering doesn't allocate.
+ */
+final class MpscIntQueue<A> extends MpscRing {
+
+    private final int[] values;
+    private final Object[] attachments;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    MpscIntQueue(int capacity) {
+        super(capacity);
+        this.values = new int[mask + 1];
+        this.attachments = new Object[mask + 1];
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(int value, A attachment) {
+        long pos = claim();
+        if (pos < 0) {
+            return false;
+        }
+        int slot = (int) pos & mask;
+        values[slot] = value;
+        attachments[slot] = attachment;
+        publish(pos);
+        return true;
+    }
+
+    /**
+     * Passes up to limit elements, oldest first, to the consumer; only one thread may call it.
+     * @return the number of elements consumed
+     */
+    @SuppressWarnings("unchecked")
+    int drain(ConcurrentIntMap.IntObjConsumer<? super A> consumer, int limit) {
+        int count = 0;
+        int slot;
+        while (count < limit && (slot = peek()) >= 0) {
+            int value = values[slot];
+            A attachment = (A) attachments[slot];
+            attachments[slot] = null;
+            release();
+            count++;
+            consumer.accept(value, attachment);
+        }
+        return count;
+    }
+}
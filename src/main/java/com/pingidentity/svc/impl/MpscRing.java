@@ -0,0 +1,102 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer single-consumer ring of slots, each with a sequence number (Vyukov's
+ * bounded queue): a producer claims a slot with a CAS on the tail and publishes it by advancing the
+ * slot's sequence, the consumer reads the slots in order and frees them.  The subclasses keep the
+ * elements in arrays by slot, so nothing is allocated per element; see MpscIntQueue and
+ * BlackListEvents.
+ */
+abstract class MpscRing {
+
+    final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // consumer only
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    MpscRing(int capacity) {
+        int size = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(2, capacity));
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.lazySet(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Claims the next slot for a producer, which fills slot (position & mask) then publishes it.
+     * @return the position, or -1 if the ring is full
+     */
+    final long claim() {
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) pos & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (sequence < pos) {
+                return -1L; // the slot hasn't been consumed yet a lap ago
+            }
+            pos = tail.get();
+        }
+    }
+
+    /**
+     * Hands a claimed slot to the consumer; a volatile write, so a consumer that announces it parks
+     * before its last look at the ring doesn't miss it.
+     */
+    final void publish(long pos) {
+        sequences.set((int) pos & mask, pos + 1);
+    }
+
+    /**
+     * The slot of the oldest element, or -1 if there's none; only for the consumer.
+     */
+    final int peek() {
+        int slot = (int) head & mask;
+        return sequences.get(slot) == head + 1 ? slot : -1;
+    }
+
+    /**
+     * Frees the slot peek() returned, once the consumer has read it.
+     */
+    final void release() {
+        sequences.lazySet((int) head & mask, head + mask + 1);
+        head++;
+    }
+
+    /**
+     * Only meaningful to the consumer.
+     */
+    final boolean isEmpty() {
+        return peek() < 0;
+    }
+}
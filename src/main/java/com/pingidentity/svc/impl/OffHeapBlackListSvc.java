@@ -0,0 +1,651 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import com.pingidentity.svc.BlackListEvent;
+import com.pingidentity.svc.BlackListListener;
+import com.pingidentity.svc.BlackListSvc;
+import com.pingidentity.svc.Ipv4;
+import com.pingidentity.svc.Ipv6;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Blacklist service that keeps its tracking state off heap, for tables of tens of millions of ips
+ * without filling the old generation.
+ *
+ * Every ip is a fixed 64 byte record in direct memory, in an open-addressing table split into
+ * segments (like ConcurrentIntMap):
+ *
+ *   0  int   ip
+ *   4  int   last request, in seconds since the table's base time; 0 marks a free slot
+ *   8  int   blacklist end, same unit
+ *   12 int   newest bucket
+ *   16 char  request counts, a ring of 12 buckets
+ *   40 char  violation counts, a ring of 12 buckets
+ *
+ * The window is covered by 12 buckets of ceil(window / 11) seconds (28 for the default 5 minutes),
+ * the same counting as WindowStrategy.buckets(window, 11).  Counts saturate at 65535 per bucket.
+ *
+ * Memory budget: the table is allocated once, at construction, and never grows; it holds
+ * budget / 64 records, of which 80% may be used before probing gets slow.  When a segment is full a
+ * new ip first makes the segment drop its expired records; if there still isn't room the ip isn't
+ * tracked: track() returns false (we fail open rather than refuse service or drop the state of
+ * known attackers) and the refusal is counted, see getRejected().  Expired records are otherwise
+ * dropped by the cleanup thread, which sweeps one segment per run, in chunks, so it never holds
+ * a segment's lock for long.
+ *
+ * getTopN() has no index here, it reads the violation counts of every record (without allocating).
+ * Direct memory is released when the service is garbage collected.
+ *
+ * IPv6 clients are counted by their /64 in an Ipv6Table, on heap: a record has no room for a 16
+ * byte key, and a /64 stands for a whole host's worth of addresses so there are far fewer of them.
+ * The cleanup goes through it once per pass over the segments.
+ *
+ * Change events (see subscribe()) are published by the segments under their lock: BLACKLISTED and
+ * RENEWED as track() moves an ip's end, EXPIRED when the sweep drops the record of an ip that was
+ * blacklisted, so only once its last request has left the window too, and up to a pass over the
+ * segments after that.  The IPv6 networks aren't published.
+ */
+@Slf4j
+public class OffHeapBlackListSvc implements BlackListSvc {
+
+    static final int RECORD_BYTES = 64;
+    static final int BUCKETS = 12;
+    private static final int IP = 0;
+    private static final int LAST_SEEN = 4;
+    private static final int BLACKLIST_END = 8;
+    private static final int HEAD = 12;
+    private static final int REQUESTS = 16;
+    private static final int VIOLATIONS = REQUESTS + 2 * BUCKETS;
+    private static final int SWEEP_CHUNK = 4096;
+    private static final float LOAD_FACTOR = 0.8f;
+    private static final int MAX_SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_BYTES;
+    private static final AtomicReferenceFieldUpdater<OffHeapBlackListSvc, BlackListEvents> EVENTS =
+        AtomicReferenceFieldUpdater.newUpdater(OffHeapBlackListSvc.class, BlackListEvents.class, "events");
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long base; // epoch second before the first possible request, so relative times are >= 1
+    private final int width; // bucket width in seconds
+    @Getter @Setter
+    private Clock clock;
+    @Setter(AccessLevel.PACKAGE)
+    private long duration;
+    private final long window;
+    @Setter(AccessLevel.PACKAGE)
+    private int max;
+    private final LongAdder rejected = new LongAdder();
+    private final ScheduledExecutorService executor;
+    private int nextSweep; // cleanup thread only
+    private final Ipv6Table ipv6;
+    private volatile BlackListEvents events; // null until the first subscribe()
+
+    /**
+     * @param budgetBytes direct memory for the table, at least 64 bytes per ip to track
+     */
+    public OffHeapBlackListSvc(long budgetBytes) {
+        this(budgetBytes, TickingClock.systemUTC(), BlackListSvcImpl.BLACKLIST_DURATION_SEC,
+            BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC, BlackListSvcImpl.BAD_REQUEST_THRESHOLD,
+            BlackListSvcImpl.newCleanupExecutor());
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                cleanup();
+            } catch (RuntimeException e) {
+                log.error("Clean up failed: {}", e); // keep the schedule going
+            }
+        }, BlackListSvcImpl.CLEANUP_INTERVAL_SECONDS, BlackListSvcImpl.CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * All args constructor, for testing purposes; the cleanup thread isn't started.
+     */
+    OffHeapBlackListSvc(long budgetBytes, Clock clock, long duration, long window, int max,
+            ScheduledExecutorService executor) {
+        long records = budgetBytes / RECORD_BYTES;
+        if (records < 2) {
+            throw new IllegalArgumentException("Budget too small: " + budgetBytes);
+        }
+        // as many segments as the default map, but keep them at least a chunk big
+        int count = (int) Math.min(ConcurrentIntMap.DEFAULT_SEGMENTS,
+            Long.highestOneBit(Math.max(1L, records / SWEEP_CHUNK)));
+        int capacity = (int) Math.min(Long.highestOneBit(records / count), Integer.highestOneBit(MAX_SEGMENT_RECORDS));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.clock = clock;
+        this.duration = duration;
+        this.window = window;
+        this.width = (int) ((window + BUCKETS - 2) / (BUCKETS - 1));
+        // buckets start on a multiple of the width, as they do for WindowStrategy.buckets()
+        this.base = (TickingClock.epochSecond(clock) - 1L) / width * width;
+        this.max = max;
+        this.executor = executor;
+        this.ipv6 = new Ipv6Table(BlackListSvcImpl.IPV6_PREFIX_LENGTH, WindowStrategy.buckets(window, BUCKETS - 1));
+    }
+
+    /**
+     * Gets current time, in seconds since base.
+     */
+    private int now() {
+        return (int) Math.max(1L, TickingClock.epochSecond(clock) - base);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public boolean track(int ip) {
+        int h = ConcurrentIntMap.hash(ip);
+        return segmentFor(h).track(ip, h, now());
+    }
+
+    /**
+     * Sorts a copy of the batch by ip and takes each segment lock once per distinct ip.
+     */
+    @Override
+    public int[] trackAll(int[] ips) {
+        int[] sorted = ips.clone();
+        Arrays.sort(sorted);
+        int now = now();
+        int[] result = new int[sorted.length];
+        int count = 0;
+        for (int i = 0; i < sorted.length; ) {
+            int ip = sorted[i];
+            int j = i + 1;
+            while (j < sorted.length && sorted[j] == ip) {
+                j++;
+            }
+            int h = ConcurrentIntMap.hash(ip);
+            if (segmentFor(h).track(ip, h, now, j - i) == 2) {
+                result[count++] = ip;
+            }
+            i = j;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Override
+    public boolean isBlackListed(int ip) {
+        int h = ConcurrentIntMap.hash(ip);
+        return segmentFor(h).isBlackListed(ip, h, now());
+    }
+
+    @Override
+    public long get(int ip) {
+        int h = ConcurrentIntMap.hash(ip);
+        return segmentFor(h).count(ip, h, now());
+    }
+
+    @Override
+    public boolean trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        long now = TickingClock.epochSecond(clock);
+        return ipv6.track(high, low, now, now - window, max, duration);
+    }
+
+    @Override
+    public boolean isBlackListedIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return isBlackListed((int) low);
+        }
+        return ipv6.isBlackListed(high, low, TickingClock.epochSecond(clock));
+    }
+
+    @Override
+    public long getIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return get((int) low);
+        }
+        return ipv6.count(high, low, TickingClock.epochSecond(clock) - window);
+    }
+
+    /**
+     * Returns the top N ips by violations in the window, only ips with violations are listed; the
+     * IPv6 networks are merged in as BlackListSvcImpl does.
+     */
+    @Override
+    public Map<String, Integer> getTopN(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative");
+        }
+        int now = now();
+        // min heap of count << 32 | ~ip, so the root is the weakest of the top n
+        long[] heap = new long[n];
+        int size = 0;
+        for (Segment segment : segments) {
+            size = segment.topN(heap, size, now);
+        }
+        Arrays.sort(heap, 0, size);
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = size - 1; i >= 0; i--) {
+            result.put(Ipv4.format(~(int) heap[i]), (int) (heap[i] >>> 32));
+        }
+        Map<String, Integer> top6 = ipv6.topN(n, TickingClock.epochSecond(clock) - window);
+        return top6.isEmpty() ? result : BlackListSvcImpl.mergeTopN(result, top6, n);
+    }
+
+    /**
+     * Number of ips tracked, IPv6 networks included.
+     */
+    public long size() {
+        long size = ipv6.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Number of new ips that weren't tracked as the table was full.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Publishes the ips' blacklist changes, batched as BlackListSvcImpl's are; see the class comment
+     * for when they come.
+     */
+    @Override
+    public void subscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events;
+        if (subscribed == null) {
+            BlackListEvents created = new BlackListEvents();
+            if (publishTo(created)) {
+                subscribed = created;
+            } else {
+                created.shutdown();
+                subscribed = events;
+            }
+        }
+        subscribed.subscribe(listener);
+    }
+
+    /**
+     * Publishes the changes to events, unless they already go somewhere; for testing purposes.
+     */
+    boolean publishTo(BlackListEvents events) {
+        return EVENTS.compareAndSet(this, null, events);
+    }
+
+    @Override
+    public boolean unsubscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events;
+        return subscribed != null && subscribed.unsubscribe(listener);
+    }
+
+    /**
+     * Stops the cleanup thread, and the change events.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        BlackListEvents subscribed = events;
+        if (subscribed != null) {
+            subscribed.shutdown();
+        }
+    }
+
+    /**
+     * Sweeps the expired records of the next segment, and the IPv6 networks after the last one.
+     */
+    void cleanup() {
+        Segment segment = segments[nextSweep];
+        nextSweep = (nextSweep + 1) % segments.length;
+        int removed = segment.sweep(now());
+        if (nextSweep == 0) {
+            removed += ipv6.cleanup(TickingClock.epochSecond(clock), window);
+        }
+        if (removed > 0) {
+            log.debug("Cleanup removed {} entries.", removed);
+        }
+    }
+
+    private static void siftDown(long[] heap, int size, int i) {
+        long key = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= key) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long key = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    /**
+     * A direct buffer of records, locked as a whole for writes and read optimistically.
+     */
+    @SuppressWarnings("serial")
+    private final class Segment extends StampedLock {
+        private final ByteBuffer records;
+        private final int mask;
+        private final int threshold;
+        private int size;
+        private int sweptAt;
+
+        Segment(int capacity) {
+            records = ByteBuffer.allocateDirect(capacity * RECORD_BYTES).order(ByteOrder.nativeOrder());
+            mask = capacity - 1;
+            threshold = Math.max(1, (int) (capacity * LOAD_FACTOR));
+        }
+
+        /**
+         * Offset of the ip's record, or -1.  The loop is bounded as an optimistic reader may see
+         * the table mid update.
+         */
+        private int find(int ip, int hash) {
+            for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+                int offset = i * RECORD_BYTES;
+                if (records.getInt(offset + LAST_SEEN) == 0) {
+                    return -1;
+                }
+                if (records.getInt(offset + IP) == ip) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        boolean track(int ip, int hash, int now) {
+            return track(ip, hash, now, 1) > 0;
+        }
+
+        /**
+         * Tracks the given number of requests of the ip at once.
+         * @return 0 if the ip isn't black listed, 1 if it is, 2 if it is because of these requests
+         */
+        int track(int ip, int hash, int now, int times) {
+            long stamp = writeLock();
+            try {
+                int offset = find(ip, hash);
+                if (offset < 0) {
+                    if (size >= threshold && (sweptAt == now || sweep(0, mask + 1, now) == 0)) {
+                        sweptAt = now; // at most one full sweep a second while we are full
+                        rejected.add(times);
+                        return 0;
+                    }
+                    offset = insert(ip, hash);
+                }
+                int bucket = now / width;
+                advance(offset, bucket);
+                records.putInt(offset + LAST_SEEN, now);
+                int violations = times;
+                boolean blackListed = now < records.getInt(offset + BLACKLIST_END);
+                if (!blackListed) {
+                    // requests up to the one crossing the threshold count, later ones are violations
+                    int needed = Math.max(1, max - sum(offset, REQUESTS, now));
+                    increment(offset, REQUESTS, bucket, Math.min(times, needed));
+                    if (times < needed) {
+                        return 0;
+                    }
+                    violations = times - needed + 1;
+                }
+                // blacklisted already, or because of these requests
+                int end = (int) Math.min(Integer.MAX_VALUE, now + duration);
+                if (end > records.getInt(offset + BLACKLIST_END)) {
+                    records.putInt(offset + BLACKLIST_END, end);
+                    BlackListEvents subscribed = events;
+                    if (subscribed != null) {
+                        subscribed.publish(blackListed ? BlackListEvent.Type.RENEWED : BlackListEvent.Type.BLACKLISTED,
+                            ip, base + end);
+                    }
+                }
+                increment(offset, VIOLATIONS, bucket, violations);
+                return blackListed ? 1 : 2;
+            } finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        boolean isBlackListed(int ip, int hash, int now) {
+            long stamp = tryOptimisticRead();
+            int offset = find(ip, hash);
+            boolean blackListed = offset >= 0 && now < records.getInt(offset + BLACKLIST_END);
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    offset = find(ip, hash);
+                    blackListed = offset >= 0 && now < records.getInt(offset + BLACKLIST_END);
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return blackListed;
+        }
+
+        long count(int ip, int hash, int now) {
+            long stamp = tryOptimisticRead();
+            int offset = find(ip, hash);
+            long count = offset < 0 ? 0L : sum(offset, REQUESTS, now);
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    offset = find(ip, hash);
+                    count = offset < 0 ? 0L : sum(offset, REQUESTS, now);
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return count;
+        }
+
+        int size() {
+            long stamp = tryOptimisticRead();
+            int s = size;
+            if (!validate(stamp)) {
+                stamp = readLock();
+                try {
+                    s = size;
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Pushes the ips with violations onto the min heap of the top n, returns the new heap size.
+         */
+        int topN(long[] heap, int size, int now) {
+            if (heap.length == 0) {
+                return 0;
+            }
+            long stamp = readLock();
+            try {
+                for (int offset = 0; offset <= mask * RECORD_BYTES; offset += RECORD_BYTES) {
+                    if (records.getInt(offset + LAST_SEEN) == 0) {
+                        continue;
+                    }
+                    int violations = sum(offset, VIOLATIONS, now);
+                    if (violations == 0) {
+                        continue;
+                    }
+                    // descending order of count, then ascending order of ip
+                    long key = ((long) violations << 32) | (~records.getInt(offset + IP) & 0xFFFFFFFFL);
+                    if (size < heap.length) {
+                        heap[size] = key;
+                        siftUp(heap, size++);
+                    } else if (key > heap[0]) {
+                        heap[0] = key;
+                        siftDown(heap, size, 0);
+                    }
+                }
+                return size;
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Drops the expired records, a chunk at a time.
+         */
+        int sweep(int now) {
+            int removed = 0;
+            for (int from = 0; from <= mask; from += SWEEP_CHUNK) {
+                long stamp = writeLock();
+                try {
+                    removed += sweep(from, Math.min(mask + 1, from + SWEEP_CHUNK), now);
+                } finally {
+                    unlockWrite(stamp);
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Drops the expired records in slots [from, to), under the write lock.
+         * The backward shift may move a record from past the range into it, or from the front of the
+         * table to its end, such records are only looked at on the next sweep.
+         */
+        private int sweep(int from, int to, int now) {
+            BlackListEvents subscribed = events;
+            int removed = 0;
+            int i = from;
+            while (i < to) {
+                int offset = i * RECORD_BYTES;
+                int lastSeen = records.getInt(offset + LAST_SEEN);
+                int end = records.getInt(offset + BLACKLIST_END);
+                if (lastSeen != 0 && lastSeen + window <= now && end <= now) {
+                    if (end != 0 && subscribed != null) {
+                        subscribed.publish(BlackListEvent.Type.EXPIRED, records.getInt(offset + IP), base + end);
+                    }
+                    delete(i); // look at slot i again, it may have been shifted into
+                    removed++;
+                } else {
+                    i++;
+                }
+            }
+            return removed;
+        }
+
+        private int insert(int ip, int hash) {
+            int i = hash & mask;
+            while (records.getInt(i * RECORD_BYTES + LAST_SEEN) != 0) {
+                i = (i + 1) & mask;
+            }
+            int offset = i * RECORD_BYTES;
+            for (int b = 8; b < RECORD_BYTES; b += 8) {
+                records.putLong(offset + b, 0L);
+            }
+            records.putInt(offset + IP, ip);
+            size++;
+            return offset; // the caller sets LAST_SEEN, which publishes the slot
+        }
+
+        /**
+         * Backward shift delete, like ConcurrentIntMap.
+         */
+        private void delete(int i) {
+            int hole = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                int offset = j * RECORD_BYTES;
+                if (records.getInt(offset + LAST_SEEN) == 0) {
+                    break;
+                }
+                int home = ConcurrentIntMap.hash(records.getInt(offset + IP)) & mask;
+                boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+                if (movable) {
+                    int to = hole * RECORD_BYTES;
+                    for (int b = 0; b < RECORD_BYTES; b += 8) {
+                        records.putLong(to + b, records.getLong(offset + b));
+                    }
+                    hole = j;
+                }
+            }
+            records.putInt(hole * RECORD_BYTES + LAST_SEEN, 0);
+            size--;
+        }
+
+        /**
+         * Moves the newest bucket of the record forward, clearing the buckets that fell off both rings.
+         */
+        private void advance(int offset, int bucket) {
+            int head = records.getInt(offset + HEAD);
+            if (bucket <= head) {
+                return;
+            }
+            for (int k = Math.max(head + 1, bucket - BUCKETS + 1); k <= bucket; k++) {
+                int slot = 2 * (k % BUCKETS);
+                records.putChar(offset + REQUESTS + slot, (char) 0);
+                records.putChar(offset + VIOLATIONS + slot, (char) 0);
+            }
+            records.putInt(offset + HEAD, bucket);
+        }
+
+        private void increment(int offset, int ring, int bucket, int times) {
+            int at = offset + ring + 2 * (bucket % BUCKETS);
+            records.putChar(at, (char) Math.min(Character.MAX_VALUE, records.getChar(at) + times));
+        }
+
+        /**
+         * Sums the ring's buckets that aren't entirely out of the window.
+         */
+        private int sum(int offset, int ring, int now) {
+            int head = records.getInt(offset + HEAD);
+            long from = now - window;
+            long live = Math.max(Math.max(Math.floorDiv(from + 1, width), head - BUCKETS + 1L), 0L);
+            int total = 0;
+            for (long k = live; k <= head; k++) {
+                total += records.getChar(offset + ring + (int) (2 * (k % BUCKETS)));
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Index of the ips with blacklist violations, kept up to date by track() so getTopN() doesn't
+ * have to scan the whole db.
+ *
+ * The index only holds the Tracking of each offender and reads its violation count when asked,
+ * so the counts it reports are always the current ones; the mode only decides which ips are members:
+ *
+ * - exact(): every ip with a violation in the window, getTopN() costs O(offenders).
+ * - approximate(k): at most k ips, getTopN() costs O(k) and can't return more than k entries.
+ *   While no more than k ips have violations in the window it is exact.  Past that a new offender
+ *   only gets in when its violation count is higher than the lowest member's (as of the last
+ *   getTopN() or eviction), which then gets evicted; so an ip can only be missing from the result
+ *   if its count was never above the k-th highest count when it offended.  In practice the busy
+ *   offenders, the ones an operator is looking for, are always in.
+ */
+public final class OffenderIndex {
+
+    private final int capacity;
+    private final ConcurrentIntMap<Tracking> members = new ConcurrentIntMap<>(16, 16);
+    private final ReentrantLock lock = new ReentrantLock(); // approximate mode membership changes
+    private volatile int size; // approximate mode only
+    private volatile int admission; // approximate mode: counts at or below this don't get in once full
+
+    private OffenderIndex(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static OffenderIndex exact() {
+        return new OffenderIndex(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity the maximum number of offenders kept, and so of entries getTopN() can return
+     */
+    public static OffenderIndex approximate(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        return new OffenderIndex(capacity);
+    }
+
+    boolean isExact() {
+        return capacity == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records that the ip, tracked by tracking, was just blacklisted or renewed.
+     * Renewals of a member cost a single lookup.
+     */
+    void violation(int ip, Tracking tracking, long from) {
+        Tracking old = members.get(ip);
+        if (old == tracking) {
+            return;
+        }
+        if (isExact()) {
+            if (old != null) { // the ip was cleaned up and tracked again
+                members.remove(ip, old);
+            }
+            members.putIfAbsent(ip, tracking);
+            return;
+        }
+        if (size >= capacity && tracking.blackListCount(from) <= admission) {
+            return;
+        }
+        lock.lock();
+        try {
+            old = members.remove(ip);
+            if (old != null) {
+                size--;
+            }
+            if (size >= capacity && !evictBelow(tracking.blackListCount(from), from)) {
+                return;
+            }
+            members.putIfAbsent(ip, tracking);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the member with the lowest count if it's below count.  Called under the lock.
+     */
+    private boolean evictBelow(int count, long from) {
+        long[] lowest = {Long.MAX_VALUE}; // count << 32 | ip
+        members.forEach((ip, tracking) -> {
+            long key = ((long) tracking.blackListCount(from) << 32) | (ip & 0xFFFFFFFFL);
+            lowest[0] = Math.min(lowest[0], key);
+        });
+        int min = (int) (lowest[0] >>> 32);
+        admission = min;
+        if (min >= count) {
+            return false;
+        }
+        members.remove((int) lowest[0]);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the top n offenders and their violation counts, highest count first (ties by ip).
+     * Members without violations left in the window are dropped on the way.
+     */
+    Map<String, Integer> topN(int n, long from) {
+        long[][] keys = {new long[64]};
+        int[] count = {0};
+        members.forEach((ip, tracking) -> {
+            int violations = tracking.blackListCount(from);
+            if (violations == 0) {
+                remove(ip, tracking);
+                return;
+            }
+            if (count[0] == keys[0].length) {
+                keys[0] = Arrays.copyOf(keys[0], count[0] << 1);
+            }
+            // descending order of count, then ascending order of ip
+            keys[0][count[0]++] = ((long) violations << 32) | (~ip & 0xFFFFFFFFL);
+        });
+        long[] sorted = keys[0];
+        int length = count[0];
+        Arrays.sort(sorted, 0, length);
+        if (!isExact() && length >= capacity) {
+            admission = (int) (sorted[0] >>> 32);
+        }
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = length - 1; i >= 0 && result.size() < n; i--) {
+            result.put(Ipv4.format(~(int) sorted[i]), (int) (sorted[i] >>> 32));
+        }
+        return result;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * Drops the ip if it's still tracked by tracking; eg; once its entry has expired.
+     */
+    void remove(int ip, Tracking tracking) {
+        if (isExact()) {
+            members.remove(ip, tracking);
+            return;
+        }
+        lock.lock();
+        try {
+            if (members.remove(ip, tracking)) {
+                size--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.Arrays;
+
+/**
+ * The subnets, by prefix length, whose failures are also counted as a whole and blacklisted once
+ * they reach their own threshold; eg; PrefixLevels.none().with(24, 100).with(16, 1000) also
+ * blacklists a /24 with 100 failures in the window, and a /16 with 1000, so a botnet rotating
+ * through a subnet gets caught even if none of its addresses reaches the per ip threshold.
+ * The ip itself (/32) is always counted, with the service's own threshold.
+ *
+ * Immutable, see SubnetTable for the counters.
+ */
+public final class PrefixLevels {
+
+    private static final PrefixLevels NONE = new PrefixLevels(new int[0], new int[0]);
+
+    private final int[] lengths;
+    private final int[] maxes;
+
+    private PrefixLevels(int[] lengths, int[] maxes) {
+        this.lengths = lengths;
+        this.maxes = maxes;
+    }
+
+    /**
+     * Only ips are counted.
+     */
+    public static PrefixLevels none() {
+        return NONE;
+    }
+
+    /**
+     * Returns these levels plus the subnets of the given prefix length.
+     * @param prefixLength 1 to 31
+     * @param max number of failures in the window at which a subnet gets blacklisted
+     */
+    public PrefixLevels with(int prefixLength, int max) {
+        if (prefixLength < 1 || prefixLength > 31) {
+            throw new IllegalArgumentException("prefix length must be between 1 and 31: " + prefixLength);
+        }
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        for (int length : lengths) {
+            if (length == prefixLength) {
+                throw new IllegalArgumentException("duplicate prefix length: " + prefixLength);
+            }
+        }
+        int[] newLengths = Arrays.copyOf(lengths, lengths.length + 1);
+        int[] newMaxes = Arrays.copyOf(maxes, maxes.length + 1);
+        newLengths[lengths.length] = prefixLength;
+        newMaxes[maxes.length] = max;
+        return new PrefixLevels(newLengths, newMaxes);
+    }
+
+    public boolean isEmpty() {
+        return lengths.length == 0;
+    }
+
+    int size() {
+        return lengths.length;
+    }
+
+    int prefixLength(int level) {
+        return lengths[level];
+    }
+
+    int max(int level) {
+        return maxes[level];
+    }
+
+    /**
+     * Network mask of a prefix length; eg; 0xFFFFFF00 for 24.
+     */
+    static int mask(int prefixLength) {
+        return -1 << (32 - prefixLength);
+    }
+}
@@ -0,0 +1,295 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Replicates the failures and blacklists of a BlackListSvcImpl with the other nodes of a cluster, so
+ * an attacker spread over the nodes is blacklisted once its failures add up to the threshold.
+ *
+ * Every interval the node gossips a delta of the ips tracked since the last one (queued by track()
+ * on a bounded MpscIntQueue, once per ip and round, so a round costs the ips that changed rather than
+ * a pass over the table): for each, its own
+ * counts of the buckets in the window and its blacklist end.  The other nodes merge the counts into
+ * their ClusterCounts (a bucket's count only grows, so merging keeps the larger) and the end as a max
+ * register; deltas can be lost, repeated or reordered.  track() then blacklists on the cluster wide
+ * count: max less the ip's failures elsewhere is one more lookup, in a table that only holds the ips
+ * failing on the other nodes; isBlackListed() is unchanged, a remote blacklist joins the local set.
+ * Every FULL_SYNC_ROUNDS a node sends all of its ips, which brings back lost deltas, new nodes and
+ * the ips that didn't fit in the queue.
+ *
+ * A delta is a header (magic, node id, time in epoch seconds) followed by one record per ip: the ip as
+ * 4 bytes, then as varints the blacklist end relative to the time (0: not blacklisted) and the number
+ * of buckets, and for each bucket its distance to the previous one and its count.  Deltas are at most
+ * MAX_DELTA_BYTES, a busy gossip is split over several.  The Transport is pluggable, it hands each
+ * delta to the other nodes' receive(); see InMemoryTransport.
+ *
+ * All the nodes need the same window.  Requests under named policies, and failures still counted in
+ * the sketch of the bounded memory mode, stay local.
+ */
+@Slf4j
+public final class Replicator {
+
+    static final long GOSSIP_INTERVAL_MILLIS = 200;
+    static final int FULL_SYNC_ROUNDS = 50; // 10 seconds at the default interval
+    static final int MAX_DELTA_BYTES = 60 * 1024; // fits a UDP datagram
+    static final int DIRTY_CAPACITY = 64 * 1024; // ips queued between two gossips
+    static final int MAGIC = 0x424C444C; // "BLDL"
+    private static final int MAX_ENTRY_BYTES = 4 + 10 + 5 + 64 * 15;
+
+    /**
+     * Sends deltas to the other nodes.
+     */
+    @FunctionalInterface
+    public interface Transport {
+        /**
+         * Hands the delta to every other node's receive(), now or later; it's not reused.
+         */
+        void broadcast(ByteBuffer delta);
+    }
+
+    private final BlackListSvcImpl svc;
+    @Getter
+    private final int nodeId;
+    private final Transport transport;
+    private final ClusterCounts cluster;
+    private final int width; // of the buckets, in seconds
+    private final Snapshot.Counts counts = new Snapshot.Counts(); // gossip() only
+    private final long[] buckets;
+    private final MpscIntQueue<Void> dirty = new MpscIntQueue<>(DIRTY_CAPACITY);
+    private ByteBuffer delta; // gossip() only
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "blacklist-gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int rounds;
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder sentDeltas = new LongAdder();
+    private final LongAdder sentEntries = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+
+    /**
+     * Replicates the service, whose track() and get() use the cluster wide counts from now on.
+     * @param nodeId unique in the cluster, 0 to 1023
+     */
+    public Replicator(BlackListSvcImpl svc, int nodeId, Transport transport) {
+        if (nodeId < 0 || nodeId >= ClusterCounts.MAX_NODES) {
+            throw new IllegalArgumentException("Node id out of range: " + nodeId);
+        }
+        this.svc = svc;
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.width = (int) Math.max(1L, svc.getWindow() / BlackListSvcImpl.WINDOW_BUCKETS);
+        this.cluster = new ClusterCounts(svc.getWindow(), width, svc.now());
+        this.buckets = new long[(int) (svc.getWindow() / width) + 2];
+        svc.setCluster(cluster);
+        svc.setDirty(dirty);
+    }
+
+    /**
+     * Gossips every GOSSIP_INTERVAL_MILLIS.
+     */
+    public void start() {
+        start(GOSSIP_INTERVAL_MILLIS);
+    }
+
+    public void start(long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                gossip();
+            } catch (RuntimeException e) {
+                log.error("Gossip failed: {}", e); // keep the schedule going
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops gossiping, the service keeps the counts received so far until they leave the window.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends the ips tracked since the last gossip (all of them every FULL_SYNC_ROUNDS); called by
+     * the gossip thread, or by a single thread if not started.
+     */
+    public void gossip() {
+        long now = svc.now();
+        long from = now - svc.getWindow();
+        boolean full = rounds++ % FULL_SYNC_ROUNDS == 0;
+        delta = newDelta(now);
+        dirty.drain((ip, none) -> {
+            Tracking tracking = svc.getDb().get(ip);
+            if (tracking != null) {
+                tracking.clearDirty(); // before reading it, a request from now on queues it again
+                if (!full) {
+                    add(ip, tracking, now, from);
+                }
+            }
+        }, dirty.capacity());
+        if (full) {
+            svc.getDb().forEach((ip, tracking) -> {
+                if (tracking.getLastSeen() != 0L) { // not only known from other nodes
+                    add(ip, tracking, now, from);
+                }
+            });
+        }
+        if (delta.position() > 16) {
+            send(delta);
+        }
+        delta = null;
+    }
+
+    private void add(int ip, Tracking tracking, long now, long from) {
+        if (delta.remaining() < MAX_ENTRY_BYTES) {
+            send(delta);
+            delta = newDelta(now);
+        }
+        entry(delta, ip, tracking, now, from);
+    }
+
+    /**
+     * Merges a delta from another node; called by the transport, from any thread.
+     * @throws IllegalArgumentException if it isn't a delta
+     */
+    public void receive(ByteBuffer delta) {
+        ByteBuffer in = delta.duplicate();
+        receivedBytes.add(in.remaining());
+        if (in.remaining() < 16 || in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a blacklist delta");
+        }
+        int node = in.getInt();
+        long time = in.getLong();
+        if (node == nodeId) {
+            return;
+        }
+        long now = svc.now();
+        while (in.hasRemaining()) {
+            int ip = in.getInt();
+            long end = getVarLong(in);
+            long size = getVarLong(in);
+            long bucket = Math.floorDiv(time, width);
+            for (long i = 0; i < size; i++) {
+                bucket -= getVarLong(in);
+                cluster.merge(node, ip, bucket * width, (int) getVarLong(in));
+            }
+            if (end > 0L) {
+                svc.blackListed(ip, time + end, now);
+            }
+        }
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public long getSentDeltas() {
+        return sentDeltas.sum();
+    }
+
+    public long getSentEntries() {
+        return sentEntries.sum();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * Number of ips with failures on other nodes.
+     */
+    int getRemoteIps() {
+        return cluster.size();
+    }
+
+    private ByteBuffer newDelta(long now) {
+        return ByteBuffer.allocate(MAX_DELTA_BYTES).putInt(MAGIC).putInt(nodeId).putLong(now);
+    }
+
+    private void send(ByteBuffer delta) {
+        delta.flip();
+        sentBytes.add(delta.remaining());
+        sentDeltas.increment();
+        transport.broadcast(delta);
+    }
+
+    /**
+     * The ip's own counts by bucket, newest first, and its blacklist end.
+     */
+    private void entry(ByteBuffer out, int ip, Tracking tracking, long now, long from) {
+        long first = Math.floorDiv(from + 1, width);
+        long last = Math.floorDiv(now, width);
+        counts.size = 0;
+        tracking.forEachRequest(from, counts);
+        for (int i = 0; i < counts.size; i++) {
+            long bucket = Math.floorDiv(counts.times[i], width);
+            if (bucket >= first && bucket <= last) {
+                buckets[(int) (bucket - first)] += counts.counts[i];
+            }
+        }
+        out.putInt(ip);
+        putVarLong(out, Math.max(0L, tracking.getBlacklistEnd() - now));
+        int sizeAt = out.position();
+        out.put((byte) 0); // number of buckets, fewer than 128
+        int size = 0;
+        long previous = last;
+        for (long bucket = last; bucket >= first; bucket--) {
+            int index = (int) (bucket - first);
+            if (buckets[index] != 0L) {
+                putVarLong(out, previous - bucket);
+                putVarLong(out, buckets[index]);
+                buckets[index] = 0L;
+                previous = bucket;
+                size++;
+            }
+        }
+        out.put(sizeAt, (byte) size);
+        sentEntries.increment();
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0L;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Corrupt delta, varint too long");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+/**
+ * Counts the requests of a single ip within a rolling window.
+ *
+ * Implementations must be thread-safe without blocking, Tracking calls them from every request thread.
+ */
+public interface RequestWindow {
+
+    /**
+     * Callback for forEach().
+     */
+    @FunctionalInterface
+    interface TimeCountConsumer {
+        void accept(long time, int count);
+    }
+
+    /**
+     * Records a request at the given epoch second.
+     */
+    void add(long now);
+
+    /**
+     * Records a number of requests at the given epoch second.
+     */
+    default void add(long now, int times) {
+        for (int i = 0; i < times; i++) {
+            add(now);
+        }
+    }
+
+    /**
+     * Returns the number of requests after from; requests at or before from may be dropped.
+     */
+    long count(long from);
+
+    /**
+     * Passes the requests after from, oldest first, as the number of requests at a time; a window
+     * that only keeps counts per period passes the start of each period.  Requests at or before
+     * from may be passed, Tracking's snapshot uses this to save and restore the window.
+     */
+    void forEach(long from, TimeCountConsumer action);
+}
@@ -0,0 +1,370 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.pingidentity.svc.BlackListListener;
+import com.pingidentity.svc.BlackListSvc;
+import com.pingidentity.svc.Ipv4;
+import com.pingidentity.svc.Ipv6;
+
+/**
+ * Blacklist service partitioned by ip into independent BlackListSvcImpl shards.
+ *
+ * Each shard has its own table, expiry wheel and offender index, so track() on different shards
+ * never touches the same memory and getTopN() only merges the shards' own top N.  The shards share
+ * a single cleanup thread, each of their runs only touches the entries due in that shard.
+ */
+public class ShardedBlackListSvc implements BlackListSvc {
+
+    private final BlackListSvcImpl[] shards;
+    private final int shift;
+    private final ScheduledExecutorService executor;
+    private final AtomicReference<BlackListEvents> events = new AtomicReference<>(); // see subscribe()
+
+    /**
+     * One shard per core, with the same defaults as BlackListSvcImpl.
+     */
+    public ShardedBlackListSvc() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedBlackListSvc(int shards) {
+        this(shards, WindowStrategy.buckets(BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC, BlackListSvcImpl.WINDOW_BUCKETS),
+            () -> OffenderIndex.approximate(BlackListSvcImpl.TOP_OFFENDERS));
+    }
+
+    /**
+     * @param shards number of shards, rounded up to the next power of two
+     * @param offenders creates the offender index of each shard
+     */
+    public ShardedBlackListSvc(int shards, WindowStrategy windowStrategy, Supplier<OffenderIndex> offenders) {
+        int count = ConcurrentIntMap.ceilingPowerOfTwo(Math.max(1, shards));
+        this.shards = new BlackListSvcImpl[count];
+        this.shift = 32 - Integer.numberOfTrailingZeros(count);
+        this.executor = BlackListSvcImpl.newCleanupExecutor();
+        // fewer segments per shard, the shards already spread the writers
+        int segments = Math.max(1, ConcurrentIntMap.DEFAULT_SEGMENTS / count);
+        for (int i = 0; i < count; i++) {
+            BlackListSvcImpl shard = new BlackListSvcImpl(
+                new ConcurrentIntMap<>(segments, ConcurrentIntMap.DEFAULT_SEGMENT_CAPACITY),
+                TickingClock.systemUTC(), BlackListSvcImpl.BLACKLIST_DURATION_SEC,
+                BlackListSvcImpl.ROLLING_TIME_WINDOW_SEC, windowStrategy, offenders.get(),
+                BlackListSvcImpl.BAD_REQUEST_THRESHOLD, BlackListSvcImpl.CLEANUP_INTERVAL_SECONDS, executor);
+            shard.startCleanupThread();
+            this.shards[i] = shard;
+        }
+    }
+
+    /**
+     * Fibonacci hashing of the ip, independent of the hash the shard's table uses for its slots.
+     */
+    BlackListSvcImpl shard(int ip) {
+        return shards[shardIndex(ip)];
+    }
+
+    int shardIndex(int ip) {
+        return shards.length == 1 ? 0 : (ip * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * The shard of an IPv6 address is the shard of its network (the /64 by default), so all the
+     * addresses a network counts are in the same shard's Ipv6Table.
+     */
+    BlackListSvcImpl shard(long high, long low) {
+        return shards[shardIndex(high, low)];
+    }
+
+    int shardIndex(long high, long low) {
+        int prefixLength = shards[0].getIpv6PrefixLength();
+        long folded = Ipv6.maskHigh(high, prefixLength) * 0x9E3779B97F4A7C15L + Ipv6.maskLow(low, prefixLength);
+        return shardIndex((int) (folded ^ (folded >>> 32)));
+    }
+
+    BlackListSvcImpl[] getShards() {
+        return shards;
+    }
+
+    @Override
+    public boolean track(int ipAddress) {
+        return shard(ipAddress).track(ipAddress);
+    }
+
+    /**
+     * See BlackListSvcImpl.track(int, String).
+     */
+    public boolean track(int ipAddress, String policyKey) {
+        return shard(ipAddress).track(ipAddress, policyKey);
+    }
+
+    public long get(int ipAddress, String policyKey) {
+        return shard(ipAddress).get(ipAddress, policyKey);
+    }
+
+    public BlackListPolicies getPolicies() {
+        return shards[0].getPolicies();
+    }
+
+    /**
+     * Replaces the policies of every shard, see BlackListSvcImpl.setPolicies(); each shard
+     * switches on its own, so for a moment shards may apply different versions.
+     */
+    public void setPolicies(BlackListPolicies policies) {
+        for (BlackListSvcImpl shard : shards) {
+            shard.setPolicies(policies);
+        }
+    }
+
+    public AllowList getAllowList() {
+        return shards[0].getAllowList();
+    }
+
+    /**
+     * Replaces the allow list of every shard, see BlackListSvcImpl.setAllowList().
+     */
+    public void setAllowList(AllowList allowList) {
+        for (BlackListSvcImpl shard : shards) {
+            shard.setAllowList(allowList);
+        }
+    }
+
+    /**
+     * Splits the batch by shard, each shard then tracks its part with a single clock read.
+     */
+    @Override
+    public int[] trackAll(int[] ipAddresses) {
+        if (shards.length == 1) {
+            return shards[0].trackAll(ipAddresses);
+        }
+        int[] sizes = new int[shards.length];
+        for (int ip : ipAddresses) {
+            sizes[shardIndex(ip)]++;
+        }
+        int[][] parts = new int[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = new int[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (int ip : ipAddresses) {
+            int shard = shardIndex(ip);
+            parts[shard][sizes[shard]++] = ip;
+        }
+        int[] result = new int[0];
+        for (int i = 0; i < shards.length; i++) {
+            int[] blackListed = shards[i].trackAll(parts[i]);
+            int length = result.length;
+            result = Arrays.copyOf(result, length + blackListed.length);
+            System.arraycopy(blackListed, 0, result, length, blackListed.length);
+        }
+        return result;
+    }
+
+    /**
+     * Saves every shard into a single snapshot, see BlackListSvcImpl.snapshot(Path).
+     */
+    public long snapshot(Path file) throws IOException {
+        return Snapshot.write(file, TickingClock.epochSecond(shards[0].getClock()), this::snapshot);
+    }
+
+    /**
+     * Same as snapshot(Path), the stream isn't closed.
+     */
+    public long snapshot(OutputStream out) throws IOException {
+        return Snapshot.write(Channels.newChannel(out), TickingClock.epochSecond(shards[0].getClock()),
+            this::snapshot);
+    }
+
+    private void snapshot(Snapshot.Writer writer) {
+        for (BlackListSvcImpl shard : shards) {
+            shard.snapshot(writer);
+        }
+    }
+
+    /**
+     * Loads a snapshot, each ip goes to its shard; the snapshot may come from any number of shards
+     * or from a BlackListSvcImpl.
+     */
+    public long restore(Path file) throws IOException {
+        try (Snapshot.Reader reader = Snapshot.Reader.open(file)) {
+            return restore(reader);
+        }
+    }
+
+    /**
+     * Same as restore(Path), the stream isn't closed.
+     */
+    public long restore(InputStream in) throws IOException {
+        return restore(new Snapshot.Reader(Channels.newChannel(in)));
+    }
+
+    private long restore(Snapshot.Reader reader) throws IOException {
+        Snapshot.Entry entry = new Snapshot.Entry();
+        long restored = 0L;
+        while (reader.next(entry)) {
+            if (shard(entry.ip).restore(entry)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    @Override
+    public boolean isBlackListed(int ipAddress) {
+        return shard(ipAddress).isBlackListed(ipAddress);
+    }
+
+    @Override
+    public long get(int ipAddress) {
+        return shard(ipAddress).get(ipAddress);
+    }
+
+    @Override
+    public boolean trackIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return track((int) low);
+        }
+        return shard(high, low).trackIpv6(high, low);
+    }
+
+    @Override
+    public boolean isBlackListedIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return isBlackListed((int) low);
+        }
+        return shard(high, low).isBlackListedIpv6(high, low);
+    }
+
+    @Override
+    public long getIpv6(long high, long low) {
+        if (Ipv6.isIpv4Mapped(high, low)) {
+            return get((int) low);
+        }
+        return shard(high, low).getIpv6(high, low);
+    }
+
+    public int getIpv6PrefixLength() {
+        return shards[0].getIpv6PrefixLength();
+    }
+
+    /**
+     * Merges the top N of every shard; as each shard returns its own top N in the same order,
+     * the result is the same as a single service would return.  The IPv4 and IPv6 entries are
+     * merged apart, then together as BlackListSvcImpl does.
+     */
+    @Override
+    public Map<String, Integer> getTopN(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative");
+        }
+        long[] keys = new long[0];
+        int length = 0;
+        List<Map.Entry<String, Integer>> top6 = new ArrayList<>();
+        for (BlackListSvcImpl shard : shards) {
+            Map<String, Integer> top = shard.getTopN(n);
+            if (length + top.size() > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length << 1, length + top.size()));
+            }
+            for (Map.Entry<String, Integer> e : top.entrySet()) {
+                if (Ipv6.isIpv6(e.getKey())) {
+                    top6.add(e);
+                } else {
+                    // descending order of count, then ascending order of ip
+                    keys[length++] = ((long) e.getValue() << 32) | (~Ipv4.parse(e.getKey()) & 0xFFFFFFFFL);
+                }
+            }
+        }
+        Arrays.sort(keys, 0, length);
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = length - 1; i >= 0 && result.size() < n; i--) {
+            result.put(Ipv4.format(~(int) keys[i]), (int) (keys[i] >>> 32));
+        }
+        if (top6.isEmpty()) {
+            return result;
+        }
+        // same order as Ipv6Table.topN(), the keys are networks with their prefix length
+        top6.sort((a, b) -> !a.getValue().equals(b.getValue()) ? Integer.compare(b.getValue(), a.getValue())
+            : compareIpv6(a.getKey(), b.getKey()));
+        Map<String, Integer> result6 = new LinkedHashMap<>();
+        for (int i = 0; i < top6.size() && result6.size() < n; i++) {
+            result6.put(top6.get(i).getKey(), top6.get(i).getValue());
+        }
+        return BlackListSvcImpl.mergeTopN(result, result6, n);
+    }
+
+    private static int compareIpv6(String a, String b) {
+        long[] addressA = Ipv6.parse(withoutPrefixLength(a));
+        long[] addressB = Ipv6.parse(withoutPrefixLength(b));
+        return Ipv6.compare(addressA[0], addressA[1], addressB[0], addressB[1]);
+    }
+
+    private static String withoutPrefixLength(String network) {
+        int slash = network.indexOf('/');
+        return slash < 0 ? network : network.substring(0, slash);
+    }
+
+    /**
+     * See BlackListSvcImpl.subscribe(); the shards publish to a single dispatcher, so a batch
+     * holds the changes of every shard.
+     */
+    @Override
+    public void subscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events.get();
+        if (subscribed == null) {
+            BlackListEvents created = new BlackListEvents();
+            if (events.compareAndSet(null, created)) {
+                for (BlackListSvcImpl shard : shards) {
+                    shard.publishTo(created);
+                }
+                subscribed = created;
+            } else {
+                created.shutdown();
+                subscribed = events.get();
+            }
+        }
+        subscribed.subscribe(listener);
+    }
+
+    @Override
+    public boolean unsubscribe(BlackListListener listener) {
+        BlackListEvents subscribed = events.get();
+        return subscribed != null && subscribed.unsubscribe(listener);
+    }
+
+    /**
+     * Stops the cleanup thread of all the shards, and the change events.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        BlackListEvents subscribed = events.get();
+        if (subscribed != null) {
+            subscribed.shutdown();
+        }
+    }
+}
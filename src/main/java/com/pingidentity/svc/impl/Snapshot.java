@@ -0,0 +1,328 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary format of the blacklist snapshots, see BlackListSvcImpl.snapshot() and restore().
+ *
+ * A header (magic, version, snapshot time in epoch seconds) followed by one record per ip:
+ * a tag byte, the ip as 4 bytes, then as zigzag varints the blacklist end and the latest request
+ * relative to the snapshot time, and the request and violation windows as a number of
+ * (time delta, count) pairs, each time relative to the previous one.  A 0 tag ends the snapshot.
+ * A tracked ip with a few requests takes 10 to 15 bytes.
+ */
+final class Snapshot {
+
+    static final int MAGIC = 0x424C5354; // "BLST"
+    static final int VERSION = 1;
+
+    private static final byte ENTRY = 1;
+    private static final byte END = 0;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAX_MAPPING = 1L << 30;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes the snapshot to a temporary file which is then moved over file, so a failed snapshot
+     * doesn't destroy the previous one.
+     */
+    static long write(Path file, long now, Source source) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long entries;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            entries = write(channel, now, source);
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries;
+    }
+
+    static long write(WritableByteChannel channel, long now, Source source) throws IOException {
+        Writer writer = new Writer(channel, now);
+        try {
+            source.writeTo(writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.finish();
+        return writer.entries;
+    }
+
+    /**
+     * Writes the entries of a service, see Writer.entry().
+     */
+    @FunctionalInterface
+    interface Source {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    /**
+     * Times and counts of a window, oldest first.
+     */
+    static final class Counts implements RequestWindow.TimeCountConsumer {
+        long[] times = new long[16];
+        int[] counts = new int[16];
+        int size;
+
+        @Override
+        public void accept(long time, int count) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            times[size] = time;
+            counts[size++] = count;
+        }
+    }
+
+    /**
+     * A saved ip, reused for every record read.
+     */
+    static final class Entry {
+        int ip;
+        long lastSeen;
+        long blacklistEnd;
+        final Counts requests = new Counts();
+        final Counts violations = new Counts();
+    }
+
+    /**
+     * Buffers the records in a direct buffer, written out to the channel a MB at a time.
+     */
+    static final class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final Counts counts = new Counts();
+        private final long time;
+        private long entries;
+
+        Writer(WritableByteChannel channel, long time) throws IOException {
+            this.channel = channel;
+            this.time = time;
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(time);
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * Writes the ip's state as of from, the start of the rolling window.
+         */
+        void entry(int ip, Tracking tracking, long from) throws IOException {
+            ensure(1 + 4 + 10 + 10);
+            buffer.put(ENTRY).putInt(ip);
+            putVarLong(Math.max(0L, tracking.getBlacklistEnd() - time)); // 0: not blacklisted
+            putVarLong(time - tracking.getLastSeen());
+            counts.size = 0;
+            tracking.forEachRequest(from, counts);
+            putCounts();
+            counts.size = 0;
+            tracking.forEachViolation(from, counts);
+            putCounts();
+            entries++;
+        }
+
+        void finish() throws IOException {
+            ensure(1);
+            buffer.put(END);
+            flush();
+        }
+
+        private void putCounts() throws IOException {
+            ensure(10);
+            putVarLong(counts.size);
+            long previous = time;
+            for (int i = 0; i < counts.size; i++) {
+                ensure(20);
+                putVarLong(counts.times[i] - previous);
+                putVarLong(counts.counts[i]);
+                previous = counts.times[i];
+            }
+        }
+
+        private void putVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            buffer.put((byte) zigzag);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads the records from a stream, or from a file mapped into memory a GB at a time.
+     */
+    static final class Reader implements Closeable {
+        private final ReadableByteChannel channel;
+        private final FileChannel file; // mapped, null for a stream
+        private ByteBuffer buffer;
+        private long mapped; // file position of the mapping
+        private final long time;
+
+        /**
+         * Reads a stream, the channel isn't closed by close().
+         */
+        Reader(ReadableByteChannel channel) throws IOException {
+            this(channel, null);
+        }
+
+        private Reader(ReadableByteChannel channel, FileChannel file) throws IOException {
+            this.channel = channel;
+            this.file = file;
+            if (file == null) {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.flip();
+            } else {
+                buffer = ByteBuffer.allocate(0);
+            }
+            ensure(16);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a blacklist snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            time = buffer.getLong();
+        }
+
+        static Reader open(Path path) throws IOException {
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                return new Reader(file, file);
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Snapshot time, epoch seconds.
+         */
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * Reads the next record into entry, returns false at the end of the snapshot.
+         */
+        boolean next(Entry entry) throws IOException {
+            ensure(1);
+            byte tag = buffer.get();
+            if (tag == END) {
+                return false;
+            }
+            if (tag != ENTRY) {
+                throw new IOException("Corrupt snapshot, unexpected tag " + tag);
+            }
+            ensure(4);
+            entry.ip = buffer.getInt();
+            long end = getVarLong();
+            entry.blacklistEnd = end == 0L ? 0L : time + end;
+            entry.lastSeen = time - getVarLong();
+            getCounts(entry.requests);
+            getCounts(entry.violations);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
+
+        private void getCounts(Counts counts) throws IOException {
+            counts.size = 0;
+            long size = getVarLong();
+            long time = this.time;
+            for (long i = 0; i < size; i++) {
+                time += getVarLong();
+                counts.accept(time, (int) getVarLong());
+            }
+        }
+
+        private long getVarLong() throws IOException {
+            long zigzag = 0L;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 63) {
+                    throw new IOException("Corrupt snapshot, varint too long");
+                }
+                ensure(1);
+                byte b = buffer.get();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (file != null) {
+                mapped += buffer.position();
+                long size = Math.min(MAX_MAPPING, file.size() - mapped);
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+            } else {
+                buffer.compact();
+                while (buffer.position() < bytes && channel.read(buffer) >= 0) {
+                    // until we have enough or the end of the stream
+                }
+                buffer.flip();
+            }
+            if (buffer.remaining() < bytes) {
+                throw new EOFException("Truncated snapshot");
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.util.function.IntFunction;
+
+/**
+ * Counters of the subnets of each of the PrefixLevels.
+ *
+ * Every level is a table of its own keyed on the masked ip (the subnet's first address), with its
+ * own expiry wheel; so looking up an ip's subnets is a lock-free read per level, like a trie of
+ * as many levels flattened into hash tables.  track() costs one more Tracking update per level.
+ */
+final class SubnetTable {
+
+    private final Level[] levels;
+
+    SubnetTable(PrefixLevels prefixes, WindowStrategy windows, long window, long now) {
+        levels = new Level[prefixes.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Level(prefixes.prefixLength(i), prefixes.max(i), windows, window, now);
+        }
+    }
+
+    /**
+     * Tracks the failure against each of the ip's subnets, returns true if one of them is blacklisted.
+     */
+    boolean track(int ip, long now, long from, long duration) {
+        boolean blackListed = false;
+        for (Level level : levels) {
+            Tracking tracking = level.db.computeIfAbsent(ip & level.mask, level.newTracking);
+            blackListed |= tracking.track(now, from, level.max, duration);
+        }
+        return blackListed;
+    }
+
+    /**
+     * Same as track(), for a number of failures.
+     */
+    boolean track(int ip, long now, long from, long duration, int times) {
+        boolean blackListed = false;
+        for (Level level : levels) {
+            Tracking tracking = level.db.computeIfAbsent(ip & level.mask, level.newTracking);
+            blackListed |= tracking.track(now, from, level.max, duration, times);
+        }
+        return blackListed;
+    }
+
+    /**
+     * Whether one of the ip's subnets is blacklisted, a lookup per level.
+     */
+    boolean isBlackListed(int ip, long now) {
+        for (Level level : levels) {
+            Tracking tracking = level.db.get(ip & level.mask);
+            if (tracking != null && tracking.isBlackListed(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Failures of the subnet of the given prefix length holding the ip, 0 if it isn't a level.
+     */
+    long count(int ip, int prefixLength, long from) {
+        for (Level level : levels) {
+            if (level.prefixLength == prefixLength) {
+                Tracking tracking = level.db.get(ip & level.mask);
+                return tracking == null ? 0L : tracking.count(from);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Number of subnets tracked, over all levels.
+     */
+    int size() {
+        int size = 0;
+        for (Level level : levels) {
+            size += level.db.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the expired subnets, see BlackListSvcImpl.cleanup().
+     */
+    int cleanup(long now) {
+        int expired = 0;
+        for (Level level : levels) {
+            expired += level.wheel.advance(now, level.expirer);
+        }
+        return expired;
+    }
+
+    private static final class Level {
+        final int prefixLength;
+        final int mask;
+        final int max;
+        final long window;
+        final ConcurrentIntMap<Tracking> db = new ConcurrentIntMap<>();
+        final ExpiryWheel wheel;
+        final IntFunction<Tracking> newTracking;
+        final ExpiryWheel.Expirer expirer = this::expire;
+
+        Level(int prefixLength, int max, WindowStrategy windows, long window, long now) {
+            this.prefixLength = prefixLength;
+            this.mask = PrefixLevels.mask(prefixLength);
+            this.max = max;
+            this.window = window;
+            this.wheel = new ExpiryWheel(now);
+            this.newTracking = subnet -> {
+                wheel.schedule(subnet, wheel.current() + window);
+                return new Tracking(windows);
+            };
+        }
+
+        /**
+         * Same as BlackListSvcImpl.expire(), for a subnet.
+         */
+        private boolean expire(int subnet, long now) {
+            Tracking tracking = db.get(subnet);
+            if (tracking == null) {
+                return false;
+            }
+            long expiry = tracking.expiry(window);
+            if (expiry > now) {
+                wheel.schedule(subnet, expiry);
+                return false;
+            }
+            if (!db.remove(subnet, tracking)) {
+                return false;
+            }
+            if (tracking.expiry(window) > now && db.putIfAbsent(subnet, tracking) == null) {
+                wheel.schedule(subnet, tracking.expiry(window));
+                return false;
+            }
+            return true;
+        }
+    }
+}
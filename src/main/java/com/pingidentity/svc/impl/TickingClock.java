@@ -0,0 +1,109 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * System clock read from a volatile that a background thread updates every TICK_MILLIS, so the
+ * hot path gets the time from a field rather than from the OS (and, through millis(), without
+ * allocating an Instant).  It's at most TICK_MILLIS behind, nothing next to the services' one
+ * second resolution.
+ *
+ * The ticker thread is a daemon started on first use and shared by all the services.  Tests keep
+ * injecting their own Clock, the services only ever call millis().
+ */
+public final class TickingClock extends Clock {
+
+    static final long TICK_MILLIS = 10L;
+
+    private static final TickingClock UTC = new TickingClock(ZoneOffset.UTC);
+
+    private final ZoneId zone;
+
+    private TickingClock(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Holds the time, its class is only loaded (and the thread started) on first use.
+     */
+    private static final class Ticker {
+        static volatile long millis = System.currentTimeMillis();
+
+        static {
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "blacklist-clock");
+                thread.setDaemon(true);
+                return thread;
+            }).scheduleAtFixedRate(() -> millis = System.currentTimeMillis(),
+                TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static TickingClock systemUTC() {
+        return UTC;
+    }
+
+    /**
+     * Epoch seconds of any clock, through millis() which the JDK's clocks (and this one) implement
+     * without allocating.
+     */
+    static long epochSecond(Clock clock) {
+        return Math.floorDiv(clock.millis(), 1000L);
+    }
+
+    @Override
+    public long millis() {
+        return Ticker.millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new TickingClock(zone);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TickingClock && zone.equals(((TickingClock) obj).zone);
+    }
+
+    @Override
+    public int hashCode() {
+        return zone.hashCode() + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "TickingClock[" + zone + "]";
+    }
+}
@@ -16,33 +16,55 @@
  **************************************************************************/
 package com.pingidentity.svc.impl;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * State object for an associated ip.
  * Holds requests and blacklist violations as well as the latest blacklist end time.
- * Write operations are locked using the two lists so lists are thread-safe.
+ *
+ * Nothing here takes a lock: the windows are lock-free and the blacklist end time only ever moves
+ * forward through a CAS, so a burst of requests from a single ip doesn't queue its threads on a monitor.
  */
 @Slf4j
-@AllArgsConstructor
 public class Tracking {
+
+    private static final AtomicLongFieldUpdater<Tracking> BLACKLIST_END =
+        AtomicLongFieldUpdater.newUpdater(Tracking.class, "blacklistEnd");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Tracking, RequestWindow> BLACKLIST_REQUESTS =
+        AtomicReferenceFieldUpdater.newUpdater(Tracking.class, RequestWindow.class, "blacklistRequests");
+    private static final AtomicReferenceFieldUpdater<Tracking, PolicyWindows> POLICY_REQUESTS =
+        AtomicReferenceFieldUpdater.newUpdater(Tracking.class, PolicyWindows.class, "policyRequests");
     
-    private long blacklistEnd; // end time
-    private List<Long> blacklistRequestTimes;
-    private List<Long> requestTimes;
+    private final WindowStrategy windows;
+    private volatile long blacklistEnd; // end time
+    private volatile long lastSeen; // time of the latest request
+    private volatile RequestWindow blacklistRequests; // created on the first violation, most ips never get one
+    private final RequestWindow requests;
+    private volatile boolean listed; // in the service's BlackListSet
+    private volatile boolean dirty; // queued for the next gossip, see Replicator
+    private volatile PolicyWindows policyRequests; // by policy slot, see track(now, slot, generation, policy, times)
+    private volatile int strikes; // times blacklisted by a policy, see strike()
 
     /**
-     * Creates a new Tracking object with a single request.
-     * Please use this constructor as it initializes all the fields properly.
+     * Creates a new Tracking object without any requests.
      */
-    public Tracking(long now) {
+    public Tracking(WindowStrategy windows) {
         // blacklist end time will always be < now, so isBlackListed() will be false initially
-        this(0L, new ArrayList<>(), new ArrayList<>());
-        track(now); // add to requestTimes
+        this.windows = windows;
+        this.requests = windows.newWindow();
+    }
+
+    /**
+     * Creates a new Tracking object with a single request.
+     */
+    public Tracking(long now, WindowStrategy windows) {
+        this(windows);
+        track(now); // add to requests
         log.trace("New tracking created for: {}", now);
     }
     
@@ -52,47 +74,310 @@ public class Tracking {
     public boolean isBlackListed(long now) {
         return now < blacklistEnd;
     }
-    
+
+    /**
+     * Tracks a failed request and returns whether the ip is blacklisted:
+     * if it's already blacklisted the blacklist is renewed and the violation counted, otherwise
+     * the request is counted and the ip gets blacklisted once max requests are in the window.
+     * @param from start of the rolling window (exclusive)
+     * @param duration blacklist duration
+     */
+    public boolean track(long now, long from, int max, long duration) {
+        return track(now, from, max, duration, 1);
+    }
+
+    /**
+     * Same as track(now, from, max, duration) called times times in a row, in a single update
+     * of each window.
+     */
+    public boolean track(long now, long from, int max, long duration, int times) {
+        seen(now);
+        int violations = times;
+        if (!isBlackListed(now)) {
+            violations = reach(requests, now, from, max, times);
+            if (violations == 0) {
+                return false;
+            }
+        }
+        updateBlackList(now + duration, now, violations);
+        return true;
+    }
+
+    /**
+     * Adds the requests to the window up to the one that reaches max, deciding on the count after
+     * each add (as track(now) then count(from) would), so racing threads can't all see the count
+     * below max and push the window past it without blacklisting.
+     * @return the violations, the reaching request included, or 0 if max wasn't reached
+     */
+    private static int reach(RequestWindow requests, long now, long from, int max, int times) {
+        int left = times;
+        while (true) {
+            int added = (int) Math.min(left, Math.max(1L, max - requests.count(from)));
+            requests.add(now, added);
+            left -= added;
+            if (requests.count(from) >= max) {
+                return left + 1;
+            }
+            if (left == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Same as track(now, from, max, duration, times) for the requests of a BlackListPolicy, counted
+     * in the window of its slot.  When they blacklist the ip it's a strike, and the blacklist lasts
+     * the policy's duration for the ip's strikes so far; renewals keep the current duration.  A
+     * window left in the slot by a policy of an earlier generation (see BlackListSvcImpl.PolicySlots)
+     * is replaced by an empty one.
+     */
+    public boolean track(long now, int slot, int generation, BlackListPolicy policy, int times) {
+        seen(now);
+        RequestWindow requests = policyRequests(slot, generation, policy.getWindows());
+        int violations = times;
+        if (!isBlackListed(now)) {
+            violations = reach(requests, now, now - policy.getWindow(), policy.getMax(), times);
+            if (violations == 0) {
+                return false;
+            }
+            strike(now, policy);
+        }
+        updateBlackList(now + policy.duration(Math.max(0, strikes - 1)), now, violations);
+        return true;
+    }
+
+    /**
+     * Get current count of the requests of a policy within rolling window from time.
+     */
+    public long count(int slot, int generation, long from) {
+        PolicyWindows all = policyRequests;
+        return all == null || !all.holds(slot, generation) ? 0L : all.windows[slot].count(from);
+    }
+
+    public int getStrikes() {
+        return strikes;
+    }
+
     /**
      * Track current request.
-     * We lock on the request list as it's will modify the list.
      */
     public void track(long now) {
-        synchronized(requestTimes) {
-            requestTimes.add(now);
-        }
+        seen(now);
+        requests.add(now);
     }
     
     /**
      * Get current count of requests within rolling window from time.
-     * We lock on the request list as we may modify it.
      */
     public long count(long from) {
-        synchronized(requestTimes) {
-            requestTimes.removeIf(e -> e <= from);
-            return requestTimes.size();
-        }
+        return requests.count(from);
     }
     
     /**
      * Update an existing black listed entry, keep track of violation, update end time.
-     * We lock on black list violations list as we are modifying it.
+     * Concurrent updates keep the latest end time.
      */
     public void updateBlackList(long newEndTime, long now) {
-        synchronized(blacklistRequestTimes) {
-            blacklistEnd = newEndTime;
-            blacklistRequestTimes.add(now);
-        }
+        updateBlackList(newEndTime, now, 1);
+    }
+
+    /**
+     * Same as updateBlackList(newEndTime, now), for a number of violations.
+     */
+    public void updateBlackList(long newEndTime, long now, int violations) {
+        seen(now);
+        long end;
+        do {
+            end = blacklistEnd;
+        } while (end < newEndTime && !BLACKLIST_END.compareAndSet(this, end, newEndTime));
+        blackListRequests().add(now, violations);
     }
     
     /**
-     * Returns the number of black list violations after any removals of times before from parameter.
-     * We lock on black list violations list as we may modify it.
+     * Returns the number of black list violations after from.
      */
     public int blackListCount(long from) {
-        synchronized(blacklistRequestTimes) {
-            blacklistRequestTimes.removeIf(e -> e <= from);
-            return blacklistRequestTimes.size();
+        RequestWindow violations = blacklistRequests;
+        return violations == null ? 0 : (int) violations.count(from);
+    }
+
+    /**
+     * Passes the requests after from, see RequestWindow.forEach().
+     */
+    public void forEachRequest(long from, RequestWindow.TimeCountConsumer action) {
+        requests.forEach(from, action);
+    }
+
+    /**
+     * Passes the black list violations after from, see RequestWindow.forEach().
+     */
+    public void forEachViolation(long from, RequestWindow.TimeCountConsumer action) {
+        RequestWindow violations = blacklistRequests;
+        if (violations != null) {
+            violations.forEach(from, action);
+        }
+    }
+
+    public long getBlacklistEnd() {
+        return blacklistEnd;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Merges state saved by a snapshot: requests and violations are added to the windows,
+     * the time of the latest request and the blacklist end time only move forward.
+     */
+    public void restore(long lastSeen, long blacklistEnd) {
+        seen(lastSeen);
+        long end;
+        do {
+            end = this.blacklistEnd;
+        } while (end < blacklistEnd && !BLACKLIST_END.compareAndSet(this, end, blacklistEnd));
+    }
+
+    /**
+     * Adds saved requests, see restore().
+     */
+    public void restoreRequests(long time, int count) {
+        requests.add(time, count);
+    }
+
+    /**
+     * Same as restoreRequests(time, count) for the requests of a policy, in the window of its slot.
+     */
+    public void restoreRequests(int slot, int generation, WindowStrategy windows, long time, int count) {
+        policyRequests(slot, generation, windows).add(time, count);
+    }
+
+    /**
+     * Adds saved violations, see restore().
+     */
+    public void restoreViolations(long time, int count) {
+        blackListRequests().add(time, count);
+    }
+
+    /**
+     * Whether the service's BlackListSet holds this Tracking, see BlackListSet.add().
+     */
+    boolean isListed() {
+        return listed;
+    }
+
+    void setListed(boolean listed) {
+        this.listed = listed;
+    }
+
+    /**
+     * Marks the entry as changed since the last gossip; returns false if it already was, so an ip
+     * is queued once per round however many requests it gets (two racing requests may both queue it).
+     */
+    boolean markDirty() {
+        if (dirty) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    void clearDirty() {
+        dirty = false;
+    }
+
+    /**
+     * The time from which the entry holds nothing of interest: no requests or violations in the
+     * window and not blacklisted.
+     */
+    public long expiry(long window) {
+        return Math.max(lastSeen + window, blacklistEnd);
+    }
+
+    /**
+     * Same as expiry(window), an ip with strikes is also kept while they're remembered.
+     */
+    public long expiry(long window, long memory) {
+        return strikes > 0 ? Math.max(expiry(window), blacklistEnd + memory) : expiry(window);
+    }
+
+    /**
+     * Only writes when the second changes, so a hot ip doesn't bounce the cache line on every request.
+     */
+    private void seen(long now) {
+        if (lastSeen < now) {
+            lastSeen = now;
+        }
+    }
+
+    private RequestWindow blackListRequests() {
+        RequestWindow violations = blacklistRequests;
+        if (violations == null) {
+            BLACKLIST_REQUESTS.compareAndSet(this, null, windows.newWindow());
+            violations = blacklistRequests;
+        }
+        return violations;
+    }
+
+    /**
+     * Starts a blacklisting: the CAS moving the end time past now decides which of the requests
+     * racing to blacklist the ip counts the strike.  Strikes older than the policy's memory are forgotten.
+     */
+    private void strike(long now, BlackListPolicy policy) {
+        long end;
+        while ((end = blacklistEnd) <= now) {
+            int previous = strikes > 0 && now - end < policy.getMemory() ? strikes : 0;
+            if (BLACKLIST_END.compareAndSet(this, end, now + policy.duration(previous))) {
+                strikes = previous + 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The length of the array of policy windows, for testing purposes.
+     */
+    int policySlots() {
+        PolicyWindows all = policyRequests;
+        return all == null ? 0 : all.windows.length;
+    }
+
+    private RequestWindow policyRequests(int slot, int generation, WindowStrategy windows) {
+        PolicyWindows all = policyRequests;
+        if (all != null && all.holds(slot, generation)) {
+            return all.windows[slot];
+        }
+        RequestWindow window = windows.newWindow();
+        while (true) {
+            all = policyRequests;
+            if (all != null && all.holds(slot, generation)) {
+                return all.windows[slot];
+            }
+            PolicyWindows replaced = new PolicyWindows(all, slot, generation, window);
+            if (POLICY_REQUESTS.compareAndSet(this, all, replaced)) {
+                return window;
+            }
+        }
+    }
+
+    /**
+     * The windows of the policies by slot, with the generation of the policy each was created for;
+     * copy on write, the arrays are never modified once published.
+     */
+    private static final class PolicyWindows {
+        final RequestWindow[] windows;
+        final int[] generations;
+
+        PolicyWindows(PolicyWindows from, int slot, int generation, RequestWindow window) {
+            int length = from == null ? slot + 1 : Math.max(from.windows.length, slot + 1);
+            windows = from == null ? new RequestWindow[length] : Arrays.copyOf(from.windows, length);
+            generations = from == null ? new int[length] : Arrays.copyOf(from.generations, length);
+            windows[slot] = window;
+            generations[slot] = generation;
+        }
+
+        boolean holds(int slot, int generation) {
+            return slot < windows.length && windows[slot] != null && generations[slot] == generation;
         }
     }
 }
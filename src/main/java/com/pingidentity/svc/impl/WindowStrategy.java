@@ -0,0 +1,66 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+/**
+ * Creates the RequestWindows used by Tracking, see exact(), buckets() and decaying().
+ */
+@FunctionalInterface
+public interface WindowStrategy {
+
+    /**
+     * Returns a new, empty window.
+     */
+    RequestWindow newWindow();
+
+    /**
+     * Keeps one timestamp per request; memory and count() cost grow with the number of requests
+     * in the window, but counts are exact.  Mostly useful for tests.
+     */
+    static WindowStrategy exact() {
+        return ExactWindow::new;
+    }
+
+    /**
+     * Fixed size ring of counters covering windowSec; memory per ip is constant and count() reads
+     * a fixed number of counters.  Each bucket covers ceil(windowSec / buckets) seconds and a bucket is only
+     * dropped once all of it is out of the window, so counts may include up to one bucket's worth
+     * of older requests.  With one second buckets the counts are exact.
+     * The window passed to count() must not be longer than windowSec.
+     */
+    static WindowStrategy buckets(long windowSec, int buckets) {
+        if (windowSec < 1 || buckets < 1) {
+            throw new IllegalArgumentException("window and buckets must be positive");
+        }
+        int width = (int) ((windowSec + buckets - 1) / buckets);
+        // don't allocate buckets that can never be in the window
+        int count = (int) ((windowSec + width - 1) / width) + 1;
+        return () -> new BucketedWindow(count, width);
+    }
+
+    /**
+     * Exponentially decayed score rather than a count (see DecayingScore): a request's weight is
+     * e^-(age / windowSec), so a steady rate scores what the window would count and older requests
+     * fade rather than drop out.  Constant memory (8 bytes) and a single CAS per request, at the
+     * cost of remembering a fraction of the requests older than the window.  count() must be
+     * passed now - windowSec.
+     */
+    static WindowStrategy decaying(long windowSec) {
+        DecayingScore.Decay decay = new DecayingScore.Decay(windowSec);
+        return () -> new DecayingScore(decay);
+    }
+}
@@ -0,0 +1,78 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test the IPv4 parsing/formatting helpers.
+ */
+public class Ipv4Test {
+
+    @Test
+    public void testParse() {
+        assertEquals(0x01020304, Ipv4.parse("1.2.3.4"));
+        assertEquals(0xC0A80001, Ipv4.parse("192.168.0.1"));
+        assertEquals(0, Ipv4.parse("0.0.0.0"));
+        assertEquals(0xFFFFFFFF, Ipv4.parse("255.255.255.255"));
+        assertEquals(0x0A000001, Ipv4.parse("010.0.0.1")); // leading zeros are decimal
+    }
+
+    @Test
+    public void testTryParseInvalid() {
+        String[] invalid = {"", "1", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", ".1.2.3", "1.2.3.",
+            "1.2.3.4 ", "a.b.c.d", "1234.1.1.1", "::1"};
+        for (String ip : invalid) {
+            assertEquals(ip, Ipv4.INVALID, Ipv4.tryParse(ip, 0, ip.length()));
+        }
+    }
+
+    @Test
+    public void testTryParseRange() {
+        String line = "GET 10.0.0.7 /login";
+        assertEquals(0x0A000007L, Ipv4.tryParse(line, 4, 12));
+        byte[] bytes = line.getBytes();
+        assertEquals(0x0A000007L, Ipv4.tryParse(bytes, 4, 12));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        Ipv4.parse("300.0.0.1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNull() {
+        Ipv4.parse(null);
+    }
+
+    @Test
+    public void testFormat() {
+        String[] ips = {"1.2.3.4", "192.168.0.1", "0.0.0.0", "255.255.255.255"};
+        for (String ip : ips) {
+            assertEquals(ip, Ipv4.format(Ipv4.parse(ip)));
+        }
+    }
+
+    @Test
+    public void testCompareIsUnsigned() {
+        assertEquals(-1, Integer.signum(Ipv4.compare(Ipv4.parse("10.0.0.1"), Ipv4.parse("192.168.0.1"))));
+        assertEquals(1, Integer.signum(Ipv4.compare(Ipv4.parse("255.0.0.0"), Ipv4.parse("1.0.0.0"))));
+        assertEquals(0, Ipv4.compare(7, 7));
+    }
+}
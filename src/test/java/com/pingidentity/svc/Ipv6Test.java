@@ -0,0 +1,119 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the IPv6 parsing/formatting helpers.
+ */
+public class Ipv6Test {
+
+    @Test
+    public void testParse() {
+        assertArrayEquals(new long[] {0x20010DB800000000L, 1L}, Ipv6.parse("2001:db8::1"));
+        assertArrayEquals(new long[] {0x20010DB800000000L, 1L}, Ipv6.parse("2001:0DB8:0000:0000:0000:0000:0000:0001"));
+        assertArrayEquals(new long[] {0x20010DB800000000L, 1L}, Ipv6.parse("2001:db8:0:0::0:1"));
+        assertArrayEquals(new long[] {0L, 0L}, Ipv6.parse("::"));
+        assertArrayEquals(new long[] {0L, 1L}, Ipv6.parse("::1"));
+        assertArrayEquals(new long[] {0x0001000000000000L, 0L}, Ipv6.parse("1::"));
+        assertArrayEquals(new long[] {0x0001000200030004L, 0x0005000600070000L}, Ipv6.parse("1:2:3:4:5:6:7::"));
+        assertArrayEquals(new long[] {0x0000000100020003L, 0x0004000500060007L}, Ipv6.parse("::1:2:3:4:5:6:7"));
+        assertArrayEquals(new long[] {-1L, -1L}, Ipv6.parse("ffff:FFFF:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertArrayEquals(new long[] {0L, 0xFFFF01020304L}, Ipv6.parse("::ffff:1.2.3.4"));
+        assertArrayEquals(new long[] {0x0064FF9B00000000L, 0xC0000221L}, Ipv6.parse("64:ff9b::192.0.2.33"));
+        assertArrayEquals(new long[] {0x0001000200030004L, 0x00050006C0A80001L}, Ipv6.parse("1:2:3:4:5:6:192.168.0.1"));
+    }
+
+    @Test
+    public void testTryParseInvalid() {
+        String[] invalid = {"", ":", ":::", "1", "1.2.3.4", ":1::", "1:", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+            "1::2:3:4:5:6:7:8", "12345::", "g::", "::1 ", " ::1", "fe80::1%eth0", "[::1]", "::1.2.3", "::1.2.3.4:5",
+            "1:2:3:4:5:6:7:1.2.3.4", "::ffff:256.1.1.1", "1:::2", "١::"};
+        long[] address = {7L, 7L};
+        for (String ip : invalid) {
+            assertFalse(ip, Ipv6.tryParse(ip, 0, ip.length(), address));
+        }
+        assertArrayEquals(new long[] {7L, 7L}, address);
+    }
+
+    @Test
+    public void testTryParseRange() {
+        String line = "[2001:db8::7]:443";
+        long[] address = new long[2];
+        assertTrue(Ipv6.tryParse(line, 1, 12, address));
+        assertArrayEquals(new long[] {0x20010DB800000000L, 7L}, address);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        Ipv6.parse("2001:db8::g");
+    }
+
+    @Test
+    public void testFormat() {
+        String[] ips = {"2001:db8::1", "::", "::1", "1::", "2001:db8:0:1:1:1:1:1", "2001:0:0:1::1", "1:0:0:2::",
+            "fe80::1:2", "::ffff:1.2.3.4", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", "1:2:3:4:5:6:7:8"};
+        for (String ip : ips) {
+            long[] address = Ipv6.parse(ip);
+            assertEquals(ip, Ipv6.format(address[0], address[1]));
+        }
+        long[] address = Ipv6.parse("2001:0DB8:0:0:1:0:0:1"); // the first of two equal runs
+        assertEquals("2001:db8::1:0:0:1", Ipv6.format(address[0], address[1]));
+    }
+
+    /**
+     * Same addresses as the JDK's parser, and back.
+     */
+    @Test
+    public void testSameAsInetAddress() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long high = random.nextInt(4) == 0 ? 0L : random.nextLong() & 0xFFFF0000FFFF0000L;
+            long low = random.nextInt(4) == 0 ? 1L : random.nextLong() & 0x0000FFFFFFFF00FFL;
+            String ip = Ipv6.format(high, low);
+            byte[] bytes = InetAddress.getByName(ip).getAddress();
+            if (bytes.length == 16) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                assertEquals(ip, high, buffer.getLong());
+                assertEquals(ip, low, buffer.getLong());
+            }
+            assertArrayEquals(ip, new long[] {high, low}, Ipv6.parse(ip));
+        }
+    }
+
+    @Test
+    public void testMask() {
+        long[] address = Ipv6.parse("2001:db8:1:2:3:4:5:6");
+        assertEquals("2001:db8:1:2::", Ipv6.format(Ipv6.maskHigh(address[0], 64), Ipv6.maskLow(address[1], 64)));
+        assertEquals("2001:db8::", Ipv6.format(Ipv6.maskHigh(address[0], 32), Ipv6.maskLow(address[1], 32)));
+        assertEquals("2001:db8:1:2:3::", Ipv6.format(Ipv6.maskHigh(address[0], 80), Ipv6.maskLow(address[1], 80)));
+        assertEquals("2001:db8:1:2:3:4:5:6", Ipv6.format(Ipv6.maskHigh(address[0], 128), Ipv6.maskLow(address[1], 128)));
+        assertEquals("::", Ipv6.format(Ipv6.maskHigh(address[0], 0), Ipv6.maskLow(address[1], 0)));
+        assertTrue(Ipv6.isIpv4Mapped(0L, 0xFFFF01020304L));
+        assertFalse(Ipv6.isIpv4Mapped(0L, 0x01020304L));
+    }
+}
@@ -0,0 +1,117 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test the allow list and that allowed ips never get tracking state.
+ */
+public class AllowListTest {
+
+    @Test
+    public void testContains() {
+        AllowList list = AllowList.of("10.0.0.0/8", "192.168.1.7", "172.16.0.0/12", "255.255.255.255");
+        assertTrue(list.contains("10.0.0.0"));
+        assertTrue(list.contains("10.255.255.255"));
+        assertFalse(list.contains("11.0.0.0"));
+        assertFalse(list.contains("9.255.255.255"));
+        assertTrue(list.contains("192.168.1.7"));
+        assertFalse(list.contains("192.168.1.6"));
+        assertFalse(list.contains("192.168.1.8"));
+        assertTrue(list.contains("172.31.0.1"));
+        assertFalse(list.contains("172.32.0.1"));
+        assertTrue(list.contains("255.255.255.255"));
+        assertFalse(list.contains("0.0.0.0"));
+        assertFalse(AllowList.none().contains("10.0.0.0"));
+        assertTrue(AllowList.of("0.0.0.0/0").contains("128.1.2.3"));
+        assertTrue(AllowList.of("10.1.2.3/24").contains("10.1.2.200")); // host bits ignored
+    }
+
+    @Test
+    public void testMerge() {
+        AllowList list = AllowList.of("10.0.1.0/24", "10.0.0.0/24", "10.0.3.0/24", "10.0.2.0/23");
+        assertEquals(1, list.size());
+        assertTrue(list.with("10.0.0.0/8").with("10.0.0.1").size() == 1);
+        assertEquals(2, AllowList.of("1.1.1.1", "1.1.1.3").size());
+        assertEquals(1, AllowList.of("1.1.1.1", "1.1.1.3", "1.1.1.2").size());
+        assertEquals(1, AllowList.of("128.0.0.0/1", "0.0.0.0/1").size());
+    }
+
+    /**
+     * Against a plain scan of the CIDR blocks.
+     */
+    @Test
+    public void testRandom() {
+        Random random = new Random(42);
+        int[] ips = new int[200];
+        int[] lengths = new int[ips.length];
+        AllowList list = AllowList.none();
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = random.nextInt();
+            lengths[i] = 8 + random.nextInt(25);
+            list = list.with(ips[i], lengths[i]);
+        }
+        for (int n = 0; n < 100_000; n++) {
+            int ip = n % 2 == 0 ? random.nextInt() : ips[random.nextInt(ips.length)] ^ random.nextInt(1 << 12);
+            boolean expected = false;
+            for (int i = 0; i < ips.length && !expected; i++) {
+                int mask = PrefixLevels.mask(lengths[i]);
+                expected = (ip & mask) == (ips[i] & mask);
+            }
+            assertEquals(Ipv4.format(ip), expected, list.contains(ip));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        AllowList.of("10.0.0.0/33");
+    }
+
+    @Test
+    public void testService() {
+        BlackListSvcImpl bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
+        bl.setMax(2);
+        bl.track("1.1.1.1");
+        assertTrue(bl.track("1.1.1.1"));
+        bl.setAllowList(AllowList.of("1.1.1.0/24", "2.2.2.2"));
+        assertFalse(bl.isBlackListed("1.1.1.1")); // tracked before, allowed now
+        for (int i = 0; i < 10; i++) {
+            assertFalse(bl.track("2.2.2.2"));
+            assertFalse(bl.track("1.1.1.2"));
+            assertFalse(bl.track(Ipv4.parse("2.2.2.2"), "login"));
+        }
+        assertArrayEquals(new int[] {Ipv4.parse("3.3.3.3")},
+            bl.trackAll(new int[] {Ipv4.parse("2.2.2.2"), Ipv4.parse("3.3.3.3"), Ipv4.parse("3.3.3.3")}));
+        assertFalse(bl.isBlackListed("2.2.2.2"));
+        assertEquals(0L, bl.get("2.2.2.2"));
+        assertEquals(2, bl.getDb().size()); // 1.1.1.1 and 3.3.3.3
+
+        bl.setAllowList(AllowList.none());
+        assertTrue(bl.isBlackListed("1.1.1.1"));
+        bl.shutdown();
+    }
+}
@@ -0,0 +1,183 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test the queued blacklist service and its overflow policies.
+ */
+public class AsyncBlackListSvcImplTest {
+
+    private final int ip = Ipv4.parse("1.1.1.1");
+    private AsyncBlackListSvcImpl async;
+
+    @After
+    public void tearDown() {
+        async.shutdown();
+    }
+
+    /**
+     * Writers aren't started, so the queues fill up.
+     */
+    private AsyncBlackListSvcImpl stalled(AsyncBlackListSvcImpl.Overflow overflow) {
+        ShardedBlackListSvc svc = new ShardedBlackListSvc(1, WindowStrategy.exact(), OffenderIndex::exact);
+        svc.getShards()[0].setMax(3);
+        return new AsyncBlackListSvcImpl(svc, 2, overflow, false);
+    }
+
+    @Test
+    public void testTrack() throws Exception {
+        ShardedBlackListSvc svc = new ShardedBlackListSvc(4, WindowStrategy.exact(), OffenderIndex::exact);
+        for (BlackListSvcImpl shard : svc.getShards()) {
+            shard.setMax(3);
+        }
+        async = new AsyncBlackListSvcImpl(svc, 16, AsyncBlackListSvcImpl.Overflow.REJECT);
+        assertFalse(async.track(ip).toCompletableFuture().get());
+        assertFalse(async.track("1.1.1.1").toCompletableFuture().get());
+        assertFalse(async.isBlackListed(ip));
+        assertTrue(async.track(ip).toCompletableFuture().get());
+        assertTrue(async.isBlackListed(ip));
+        assertEquals(3, svc.get(ip));
+    }
+
+    /**
+     * IPv6 requests are tracked by the shard of their network, on the caller's thread.
+     */
+    @Test
+    public void testTrackIpv6() throws Exception {
+        ShardedBlackListSvc svc = new ShardedBlackListSvc(4, WindowStrategy.exact(), OffenderIndex::exact);
+        for (BlackListSvcImpl shard : svc.getShards()) {
+            shard.setMax(3);
+        }
+        async = new AsyncBlackListSvcImpl(svc, 16, AsyncBlackListSvcImpl.Overflow.REJECT);
+        assertFalse(async.track("2001:db8::1").toCompletableFuture().get());
+        assertTrue(async.trackAsync("2001:db8::2"));
+        assertFalse(async.isBlackListed("2001:db8::3"));
+        assertTrue(async.track("2001:db8::4").toCompletableFuture().get());
+        assertTrue(async.isBlackListed("2001:db8::5"));
+        assertEquals(3L, svc.get("2001:db8::6"));
+        async.shutdown();
+        assertFalse(async.trackAsync("2001:db8::7"));
+    }
+
+    /**
+     * Requests from a single producer are applied in order, so the last result is the latest status.
+     */
+    @Test
+    public void testTrackAsync() throws Exception {
+        ShardedBlackListSvc svc = new ShardedBlackListSvc(2);
+        for (BlackListSvcImpl shard : svc.getShards()) {
+            shard.setMax(Integer.MAX_VALUE);
+        }
+        async = new AsyncBlackListSvcImpl(svc, 1024, AsyncBlackListSvcImpl.Overflow.CALLER_RUNS);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(async.trackAsync(i % 100));
+        }
+        // wait for the writers to catch up, a full queue would have track() run on this thread
+        for (int i = 0; i < 100; i++) {
+            while (async.getSvc().get(i) < 100) {
+                Thread.yield();
+            }
+        }
+        assertFalse(async.track(0).toCompletableFuture().get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i == 0 ? 101 : 100, async.getSvc().get(i));
+        }
+        assertEquals(0L, async.getDropped());
+    }
+
+    @Test
+    public void testCallerRuns() throws Exception {
+        async = stalled(AsyncBlackListSvcImpl.Overflow.CALLER_RUNS);
+        CompletionStage<Boolean> first = async.track(ip);
+        assertTrue(async.trackAsync(ip));
+        // the queue holds 2, these are tracked here
+        assertTrue(async.trackAsync(ip));
+        assertFalse(async.track(ip).toCompletableFuture().getNow(null));
+        assertEquals(2, async.getSvc().get(ip));
+        assertFalse(first.toCompletableFuture().isDone());
+
+        async.start();
+        assertTrue(first.toCompletableFuture().get());
+        assertEquals(0L, async.getDropped());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        async = stalled(AsyncBlackListSvcImpl.Overflow.DROP);
+        assertTrue(async.trackAsync(ip));
+        assertTrue(async.trackAsync(ip));
+        assertFalse(async.trackAsync(ip));
+        assertFalse(async.track(ip).toCompletableFuture().getNow(null)); // the current status
+        assertEquals(2L, async.getDropped());
+        assertEquals(0, async.getSvc().get(ip));
+        async.start();
+        while (async.getSvc().get(ip) < 2) {
+            Thread.yield();
+        }
+        assertTrue(async.track(ip).toCompletableFuture().get());
+        assertEquals(3, async.getSvc().get(ip));
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        async = stalled(AsyncBlackListSvcImpl.Overflow.REJECT);
+        async.track(ip);
+        async.track(ip);
+        assertRejected(async.track(ip));
+        assertFalse(async.trackAsync(ip));
+        assertEquals(2L, async.getDropped());
+    }
+
+    /**
+     * Queued requests are applied by shutdown(), later ones rejected.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        async = stalled(AsyncBlackListSvcImpl.Overflow.REJECT);
+        CompletionStage<Boolean> queued = async.track(ip);
+        async.start();
+        async.shutdown();
+        assertFalse(queued.toCompletableFuture().get());
+        assertRejected(async.track(ip));
+        assertFalse(async.trackAsync(ip));
+        assertEquals(1, async.getSvc().get(ip));
+    }
+
+    private static void assertRejected(CompletionStage<Boolean> stage) throws InterruptedException {
+        CompletableFuture<Boolean> future = stage.toCompletableFuture();
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pingidentity.svc.BlackListEvent;
+import com.pingidentity.svc.BlackListEvent.Type;
+import com.pingidentity.svc.BlackListListener;
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test the change events of the blacklist, and the ipset sink.
+ */
+public class BlackListEventsTest {
+
+    private static final long T0 = 1_500_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(),
+        Clock.fixed(Instant.ofEpochSecond(T0), ZoneOffset.UTC), 300L, 60L, WindowStrategy.exact(),
+        OffenderIndex.exact(), 3, 1L, BlackListSvcImpl.newCleanupExecutor());
+    private final List<BlackListEvent> received = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    private static BlackListEvent event(Type type, String ip, long end) {
+        return new BlackListEvent(type, Ipv4.parse(ip), end);
+    }
+
+    private void fastForward(long seconds) {
+        bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(seconds)));
+    }
+
+    /**
+     * The events come from track() and cleanup(), one per ip per batch.
+     */
+    @Test
+    public void testTransitions() {
+        BlackListEvents events = new BlackListEvents(16, 0L);
+        assertTrue(bl.publishTo(events));
+        BlackListListener listener = received::addAll;
+        bl.subscribe(listener);
+        for (int i = 0; i < 3; i++) {
+            bl.track("1.1.1.1");
+        }
+        bl.track("2.2.2.2");
+        assertEquals(1, events.dispatch());
+        assertEquals(Arrays.asList(event(Type.BLACKLISTED, "1.1.1.1", T0 + 300L)), received);
+
+        received.clear();
+        bl.track("1.1.1.1"); // same end, not a renewal
+        assertEquals(0, events.dispatch());
+        fastForward(10L);
+        bl.track("1.1.1.1");
+        fastForward(10L);
+        bl.track("1.1.1.1");
+        assertEquals(1, events.dispatch());
+        assertEquals(Arrays.asList(event(Type.RENEWED, "1.1.1.1", T0 + 320L)), received);
+
+        received.clear();
+        fastForward(300L);
+        bl.cleanup();
+        assertEquals(1, events.dispatch());
+        assertEquals(Arrays.asList(event(Type.EXPIRED, "1.1.1.1", T0 + 320L)), received);
+        assertTrue(bl.unsubscribe(listener));
+        assertFalse(bl.unsubscribe(listener));
+    }
+
+    /**
+     * Renewals fold into the ip's earlier event, an expiry or a new blacklist replaces it.
+     */
+    @Test
+    public void testCoalesce() {
+        BlackListEvents events = new BlackListEvents(16, 0L);
+        events.subscribe(received::addAll);
+        events.publish(Type.BLACKLISTED, Ipv4.parse("1.1.1.1"), 10L);
+        events.publish(Type.RENEWED, Ipv4.parse("2.2.2.2"), 10L);
+        events.publish(Type.RENEWED, Ipv4.parse("1.1.1.1"), 12L);
+        events.publish(Type.RENEWED, Ipv4.parse("1.1.1.1"), 11L);
+        events.publish(Type.RENEWED, Ipv4.parse("2.2.2.2"), 12L);
+        events.publish(Type.EXPIRED, Ipv4.parse("3.3.3.3"), 5L);
+        events.publish(Type.RENEWED, Ipv4.parse("3.3.3.3"), 15L);
+        events.publish(Type.EXPIRED, Ipv4.parse("2.2.2.2"), 12L);
+        assertEquals(3, events.dispatch());
+        assertEquals(Arrays.asList(event(Type.BLACKLISTED, "1.1.1.1", 12L), event(Type.EXPIRED, "2.2.2.2", 12L),
+            event(Type.RENEWED, "3.3.3.3", 15L)), received);
+    }
+
+    /**
+     * A full ring drops events rather than blocking track(), a failing listener doesn't stop the others.
+     */
+    @Test
+    public void testOverflow() {
+        BlackListEvents events = new BlackListEvents(4, 0L);
+        events.subscribe(batch -> {
+            throw new IllegalStateException("firewall unreachable");
+        });
+        events.subscribe(received::addAll);
+        for (int ip = 1; ip <= 6; ip++) {
+            events.publish(Type.BLACKLISTED, ip, 10L);
+        }
+        assertEquals(2L, events.getDropped());
+        assertEquals(4, events.dispatch());
+        events.publish(Type.BLACKLISTED, 7, 10L);
+        events.shutdown(); // delivers the rest
+        assertEquals(5, received.size());
+        assertEquals(event(Type.BLACKLISTED, "0.0.0.7", 10L), received.get(4));
+    }
+
+    /**
+     * The shards publish to one dispatcher thread.
+     */
+    @Test(timeout = 10_000)
+    public void testSharded() throws Exception {
+        ShardedBlackListSvc sharded = new ShardedBlackListSvc(4, WindowStrategy.exact(), OffenderIndex::exact);
+        try {
+            for (BlackListSvcImpl shard : sharded.getShards()) {
+                shard.setMax(2);
+            }
+            sharded.subscribe(received::addAll);
+            for (int ip = 1; ip <= 100; ip++) {
+                sharded.track(ip);
+                sharded.track(ip);
+            }
+            while (received.size() < 100) {
+                Thread.sleep(10L);
+            }
+            for (BlackListEvent event : received) {
+                assertEquals(Type.BLACKLISTED, event.getType());
+            }
+        } finally {
+            sharded.shutdown();
+        }
+        assertFalse(sharded.unsubscribe(batch -> { }));
+    }
+
+    /**
+     * The off heap service publishes from its segments; its EXPIRED comes once the sweep drops the record.
+     */
+    @Test
+    public void testOffHeap() {
+        OffHeapBlackListSvc offHeap = new OffHeapBlackListSvc(64 * 1024, bl.getClock(), 300L, 60L, 3,
+            BlackListSvcImpl.newCleanupExecutor());
+        try {
+            BlackListEvents events = new BlackListEvents(16, 0L);
+            assertTrue(offHeap.publishTo(events));
+            BlackListListener listener = received::addAll;
+            offHeap.subscribe(listener);
+            for (int i = 0; i < 3; i++) {
+                offHeap.track("1.1.1.1");
+            }
+            offHeap.track("2.2.2.2");
+            offHeap.track("1.1.1.1"); // same end, not a renewal
+            assertEquals(1, events.dispatch());
+            assertEquals(Arrays.asList(event(Type.BLACKLISTED, "1.1.1.1", T0 + 300L)), received);
+
+            received.clear();
+            offHeap.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(20L)));
+            offHeap.track("1.1.1.1");
+            assertEquals(1, events.dispatch());
+            assertEquals(Arrays.asList(event(Type.RENEWED, "1.1.1.1", T0 + 320L)), received);
+
+            received.clear();
+            offHeap.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(320L)));
+            offHeap.cleanup();
+            assertEquals(0L, offHeap.size());
+            assertEquals(1, events.dispatch());
+            assertEquals(Arrays.asList(event(Type.EXPIRED, "1.1.1.1", T0 + 320L)), received);
+            assertTrue(offHeap.unsubscribe(listener));
+            assertFalse(offHeap.unsubscribe(listener));
+        } finally {
+            offHeap.shutdown();
+        }
+    }
+
+    /**
+     * The async service subscribes to the sharded one it writes to.
+     */
+    @Test(timeout = 10_000)
+    public void testAsync() throws Exception {
+        ShardedBlackListSvc sharded = new ShardedBlackListSvc(2, WindowStrategy.exact(), OffenderIndex::exact);
+        for (BlackListSvcImpl shard : sharded.getShards()) {
+            shard.setMax(2);
+        }
+        AsyncBlackListSvcImpl async = new AsyncBlackListSvcImpl(sharded, 1024, AsyncBlackListSvcImpl.Overflow.CALLER_RUNS);
+        try {
+            BlackListListener listener = received::addAll;
+            async.subscribe(listener);
+            for (int ip = 1; ip <= 10; ip++) {
+                async.trackAsync(ip);
+                async.trackAsync(ip);
+            }
+            while (received.size() < 10) {
+                Thread.sleep(10L);
+            }
+            assertTrue(async.unsubscribe(listener));
+            assertFalse(sharded.unsubscribe(listener));
+        } finally {
+            async.shutdown();
+        }
+    }
+
+    @Test
+    public void testIpSetSink() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Clock clock = Clock.fixed(Instant.ofEpochSecond(T0), ZoneOffset.UTC);
+        List<BlackListEvent> batch = Arrays.asList(event(Type.BLACKLISTED, "1.1.1.1", T0 + 300L),
+            event(Type.RENEWED, "2.2.2.2", T0 + 60L), event(Type.EXPIRED, "3.3.3.3", T0 - 1L));
+
+        IpSetSink ipset = new IpSetSink(directory, "attackers", IpSetSink.Format.IPSET, null, clock);
+        ipset.onEvents(batch);
+        ipset.onEvents(batch.subList(2, 3));
+        assertEquals(2L, ipset.getFiles());
+        assertEquals(Arrays.asList("del attackers 3.3.3.3 -exist"),
+            Files.readAllLines(ipset.getLastFile(), StandardCharsets.US_ASCII));
+
+        IpSetSink nft = new IpSetSink(directory, "attackers", IpSetSink.Format.NFT, "inet filter", clock);
+        nft.onEvents(batch.subList(1, 3));
+        assertEquals(Arrays.asList(
+            "add element inet filter attackers { 2.2.2.2 timeout 60s }",
+            "delete element inet filter attackers { 2.2.2.2 }",
+            "add element inet filter attackers { 2.2.2.2 timeout 60s }",
+            "add element inet filter attackers { 3.3.3.3 timeout 1s }",
+            "delete element inet filter attackers { 3.3.3.3 }"),
+            Files.readAllLines(nft.getLastFile(), StandardCharsets.US_ASCII));
+
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> names.add(file.getFileName().toString()));
+        }
+        Collections.sort(names);
+        assertEquals(3, names.size());
+        assertTrue(names.get(0).matches("attackers-\\d{19}\\.ipset"));
+        assertEquals(Arrays.asList("add attackers 1.1.1.1 timeout 300 -exist", "add attackers 2.2.2.2 timeout 60 -exist",
+            "del attackers 3.3.3.3 -exist"), Files.readAllLines(directory.resolve(names.get(0)), StandardCharsets.US_ASCII));
+    }
+}
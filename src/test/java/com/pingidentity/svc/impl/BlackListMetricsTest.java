@@ -0,0 +1,99 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the metrics surface: histogram, pull API and MBean.
+ */
+public class BlackListMetricsTest {
+
+    private final BlackListSvcImpl bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    @Test
+    public void testHistogram() {
+        for (long value = 0; value < 1_000_000L; value += 7) {
+            assertTrue(LatencyHistogram.lowest(LatencyHistogram.index(value)) <= value);
+            assertTrue(LatencyHistogram.lowest(LatencyHistogram.index(value) + 1) > value);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.percentile(99.0));
+        for (long value = 1; value <= 1_000; value++) {
+            histogram.record(value * 1_000L);
+        }
+        assertEquals(1_000L, histogram.count());
+        assertEquals(1_000_000L, histogram.max());
+        assertEquals(500_000L, histogram.percentile(50.0), 500_000L / 8);
+        assertEquals(990_000L, histogram.percentile(99.0), 990_000L / 8);
+    }
+
+    @Test
+    public void testMetrics() {
+        bl.setMax(2);
+        for (int i = 0; i < 1_000; i++) {
+            bl.track(i % 10);
+            bl.isBlackListed(i);
+            bl.get(i);
+        }
+        bl.getTopN(3);
+        Map<String, Number> metrics = bl.getMetrics();
+        assertEquals(1_000L, metrics.get("track.count"));
+        long estimated = metrics.get("isBlackListed.count").longValue(); // about 15 of 1000 calls sampled
+        assertTrue(estimated > 0 && estimated % BlackListMetrics.SAMPLE_RATE == 0);
+        assertEquals(1_000L, metrics.get("get.count"));
+        assertEquals(1L, metrics.get("getTopN.count"));
+        assertEquals(10, metrics.get("ips.tracked"));
+        assertEquals(10, metrics.get("ips.blacklisted"));
+        assertEquals(10L, metrics.get("blacklist.joined"));
+        assertTrue(metrics.get("track.max.nanos").longValue() > 0L);
+        assertTrue(metrics.get("track.p99.nanos").longValue() <= metrics.get("track.max.nanos").longValue());
+
+        bl.cleanup();
+        assertEquals(1L, bl.getMetrics().get("cleanup.runs"));
+    }
+
+    @Test
+    public void testMBean() throws JMException {
+        bl.track(1);
+        ObjectName name = bl.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1L, server.getAttribute(name, "track.count"));
+        assertEquals(1, server.getAttribute(name, "ips.tracked"));
+        assertEquals(bl.getMetrics().size(), server.getMBeanInfo(name).getAttributes().length);
+
+        bl.shutdown();
+        assertFalse(server.isRegistered(name));
+    }
+}
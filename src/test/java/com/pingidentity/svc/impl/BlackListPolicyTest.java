@@ -0,0 +1,263 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test named policies: their own thresholds and windows, escalating durations and reloads.
+ */
+public class BlackListPolicyTest {
+
+    private final String ip = "1.1.1.1";
+    private BlackListSvcImpl bl;
+
+    @Before
+    public void setUp() {
+        bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
+        bl.setPolicies(BlackListPolicies.none()
+            .with("login", BlackListPolicy.of(3, 60L, 300L, 1800L, 86400L).withMemory(100_000L)
+                .withWindows(WindowStrategy.exact()))
+            .with("api", BlackListPolicy.of(100, 10L, 60L).withWindows(WindowStrategy.exact())));
+    }
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    void fastForward(long seconds) {
+        bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(seconds)));
+    }
+
+    /**
+     * Each policy counts in its own window of the ip, with its own threshold.
+     */
+    @Test
+    public void testSeparateCounts() {
+        for (int i = 0; i < 50; i++) {
+            assertFalse(bl.track(ip, "api"));
+        }
+        assertFalse(bl.track(ip, "login"));
+        assertFalse(bl.track(ip, "login"));
+        assertFalse(bl.track(ip));
+        assertEquals(50L, bl.get(0x01010101, "api"));
+        assertEquals(2L, bl.get(0x01010101, "login"));
+        assertEquals(1L, bl.get(ip));
+        assertEquals(1, bl.getDb().size());
+
+        fastForward(11L); // out of the api window, not the login one
+        assertEquals(0L, bl.get(0x01010101, "api"));
+        assertTrue(bl.track(ip, "login"));
+        assertTrue(bl.isBlackListed(ip));
+        assertEquals(1, bl.getDb().get(0x01010101).getStrikes());
+    }
+
+    /**
+     * 5 minutes, then 30 minutes, then a day; renewals keep the current duration.
+     */
+    @Test
+    public void testEscalation() {
+        long[] durations = {300L, 1800L, 86400L, 86400L};
+        for (int strike = 0; strike < durations.length; strike++) {
+            bl.track(ip, "login");
+            bl.track(ip, "login");
+            assertTrue(bl.track(ip, "login"));
+            assertEquals(strike + 1, bl.getDb().get(0x01010101).getStrikes());
+            fastForward(durations[strike] - 1);
+            assertTrue(bl.isBlackListed(ip));
+            fastForward(1L);
+            assertFalse(bl.isBlackListed(ip));
+            fastForward(60L); // the window is clear
+        }
+        // renewing a third strike blacklisting keeps it at a day
+        bl.track(ip, "login");
+        bl.track(ip, "login");
+        assertTrue(bl.track(ip, "login"));
+        fastForward(86000L);
+        assertTrue(bl.track(ip, "login"));
+        fastForward(86399L);
+        assertTrue(bl.isBlackListed(ip));
+        fastForward(1L);
+        assertFalse(bl.isBlackListed(ip));
+    }
+
+    /**
+     * Strikes are forgotten after the policy's memory, and the entry is kept until then.
+     */
+    @Test
+    public void testMemory() {
+        // the fast forwards land a second from the memory's end, the wall clock mustn't move
+        bl.setClock(Clock.fixed(bl.getClock().instant(), ZoneOffset.UTC));
+        for (int i = 0; i < 3; i++) {
+            bl.track(ip, "login");
+        }
+        fastForward(300L + 99_999L);
+        bl.cleanup();
+        assertEquals(1, bl.getDb().size()); // still remembered
+        for (int i = 0; i < 3; i++) {
+            bl.track(ip, "login");
+        }
+        assertEquals(2, bl.getDb().get(0x01010101).getStrikes());
+        fastForward(1800L + 100_000L);
+        bl.cleanup();
+        assertEquals(0, bl.getDb().size());
+        for (int i = 0; i < 3; i++) {
+            bl.track(ip, "login");
+        }
+        assertEquals(1, bl.getDb().get(0x01010101).getStrikes());
+        fastForward(299L);
+        assertTrue(bl.isBlackListed(ip));
+        fastForward(1L);
+        assertFalse(bl.isBlackListed(ip));
+    }
+
+    /**
+     * A reload keeps the counts of a policy with the same window, a different window starts
+     * afresh, removed policies fall back to the service's own limits.
+     */
+    @Test
+    public void testReload() {
+        bl.track(ip, "login");
+        bl.track(ip, "api");
+        bl.setPolicies(bl.getPolicies()
+            .with("login", BlackListPolicy.of(2, 60L, 600L).withWindows(WindowStrategy.exact()))
+            .with("api", BlackListPolicy.of(100, 20L, 60L).withWindows(WindowStrategy.exact())));
+        assertEquals(1L, bl.get(0x01010101, "login"));
+        assertEquals(0L, bl.get(0x01010101, "api"));
+        assertTrue(bl.track(ip, "login")); // the new threshold
+        fastForward(599L);
+        assertTrue(bl.isBlackListed(ip));
+
+        bl.setPolicies(bl.getPolicies().without("login"));
+        assertEquals(0L, bl.get(0x01010101, "login"));
+        bl.track("2.2.2.2", "login");
+        assertEquals(1L, bl.get("2.2.2.2"));
+    }
+
+    /**
+     * The slot of a removed or replaced policy goes to the next new one, which doesn't see the
+     * counts left there: the ip's array stays the size of the policies however many reloads.
+     */
+    @Test
+    public void testReloadReusesSlots() {
+        for (int i = 0; i < 50; i++) {
+            bl.track(ip, "api");
+        }
+        bl.setPolicies(bl.getPolicies().without("api")
+            .with("search", BlackListPolicy.of(100, 10L, 60L).withWindows(WindowStrategy.exact())));
+        assertEquals(0L, bl.get(0x01010101, "search"));
+        bl.track(ip, "search");
+        assertEquals(1L, bl.get(0x01010101, "search"));
+        for (int i = 0; i < 100; i++) {
+            bl.setPolicies(bl.getPolicies()
+                .with("search", BlackListPolicy.of(100, 11L - i % 2, 60L).withWindows(WindowStrategy.exact())));
+            bl.track(ip, "search");
+            assertEquals(1L, bl.get(0x01010101, "search"));
+        }
+        assertEquals(2, bl.getDb().get(0x01010101).policySlots());
+    }
+
+    /**
+     * In bounded memory mode the failures of a policy go through the sketch too: one-off ips get no
+     * entry, the others get one at half the policy's threshold, holding the estimate in its window.
+     */
+    @Test
+    public void testSketched() {
+        bl.shutdown();
+        bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact(), PrefixLevels.none(), 1 << 10);
+        bl.setPolicies(BlackListPolicies.none()
+            .with("login", BlackListPolicy.of(6, 60L, 300L).withWindows(WindowStrategy.exact())));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(bl.track(0x0A000000 + i, "login"));
+        }
+        assertEquals(0, bl.getDb().size());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(bl.track(ip, "login"));
+        }
+        assertEquals(5L, bl.get(0x01010101, "login"));
+        assertEquals(0L, bl.get(ip));
+        assertTrue(bl.track(ip, "login"));
+        assertEquals(1, bl.getDb().size());
+    }
+
+    /**
+     * Threads racing on an ip under a policy: once their requests add up to the policy's max the
+     * ip is blacklisted, with a single strike.
+     */
+    @Test
+    public void testConcurrentTrackReachesMax() throws Exception {
+        int threads = 8;
+        bl.setPolicies(BlackListPolicies.none()
+            .with("login", BlackListPolicy.of(threads, 60L, 300L).withWindows(BlackListSvcImplTest.yielding())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<?>> done = new ArrayList<>();
+        int ips = 2_000;
+        for (int t = 0; t < threads; t++) {
+            done.add(executor.submit(() -> {
+                start.await();
+                for (int ip = 0; ip < ips; ip++) {
+                    bl.track(ip, "login");
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        executor.shutdown();
+        for (int ip = 0; ip < ips; ip++) {
+            assertTrue("ip " + ip, bl.isBlackListed(ip));
+            assertEquals("ip " + ip, 1, bl.getDb().get(ip).getStrikes());
+        }
+    }
+
+    @Test
+    public void testSharded() {
+        ShardedBlackListSvc sharded = new ShardedBlackListSvc(4);
+        sharded.setPolicies(BlackListPolicies.none().with("login", BlackListPolicy.of(2, 60L, 300L)));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(sharded.track(i, "login"));
+            assertTrue(sharded.track(i, "login"));
+            assertEquals(2L, sharded.get(i, "login"));
+        }
+        assertEquals(1, sharded.getPolicies().asMap().size());
+        sharded.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoDurations() {
+        BlackListPolicy.of(3, 60L);
+    }
+}
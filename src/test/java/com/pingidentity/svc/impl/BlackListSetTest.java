@@ -0,0 +1,75 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the copy-on-write set of blacklisted ips.
+ */
+public class BlackListSetTest {
+
+    private final BlackListSet set = new BlackListSet();
+
+    Tracking blackListed(long until) {
+        Tracking tracking = new Tracking(WindowStrategy.exact());
+        tracking.updateBlackList(until, 0L);
+        return tracking;
+    }
+
+    @Test
+    public void testAdd() {
+        assertEquals(0, set.size());
+        Random random = new Random(42);
+        Tracking[] trackings = new Tracking[1_000];
+        for (int ip = 0; ip < trackings.length; ip++) {
+            trackings[ip] = blackListed(100L);
+            set.add(ip * 0x01000194, trackings[ip]);
+        }
+        assertEquals(1_000, set.size());
+        for (int ip = 0; ip < trackings.length; ip++) {
+            assertSame(trackings[ip], set.get(ip * 0x01000194));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            int ip = random.nextInt() | 1; // members are even
+            assertNull(set.get(ip));
+        }
+
+        Tracking renewed = blackListed(200L);
+        set.add(0x01000194, renewed); // a new db entry for the same ip
+        assertSame(renewed, set.get(0x01000194));
+        assertEquals(1_000, set.size());
+    }
+
+    @Test
+    public void testRemoveExpired() {
+        set.add(1, blackListed(100L));
+        set.add(2, blackListed(200L));
+        set.add(1, blackListed(100L)); // replaced by a new db entry
+        assertEquals(0, set.removeExpired(99L));
+        assertEquals(1, set.removeExpired(100L));
+        assertNull(set.get(1));
+        assertEquals(1, set.removeExpired(300L));
+        assertEquals(0, set.size());
+    }
+}
@@ -20,20 +20,35 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.time.Clock;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.pingidentity.svc.Ipv4;
 import com.pingidentity.svc.impl.BlackListSvcImpl;
 
 import lombok.extern.slf4j.Slf4j;
@@ -55,7 +70,8 @@ public class BlackListSvcImplTest {
     @Before
     public void setUp() {
         log.debug("In before...");
-        bl = new BlackListSvcImpl();
+        // the tests shrink the window, so count exactly
+        bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
     }
 
     // Some helper methods:
@@ -253,14 +269,398 @@ public class BlackListSvcImplTest {
         assertOrderedMaps(Collections.emptyMap(), bl.getTopN(-1));
     }
     
+    /**
+     * The default, approximate, index only lists offenders.
+     */
+    @Test
+    public void testTopNApproximate() {
+        bl = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.approximate(2));
+        bl.setMax(2);
+
+        for (int i = 0; i < 4; i++) {
+            bl.track(ip1);
+        }
+        for (int i = 0; i < 3; i++) {
+            bl.track(ip2);
+        }
+        bl.track(ip3);
+        assertOrderedMaps(getTopMap(ip1, "3", ip2, "2"), bl.getTopN(3));
+        bl.track(ip3);
+        bl.track(ip3); // not above the lowest member (ip2), doesn't get in
+        assertOrderedMaps(getTopMap(ip1, "3", ip2, "2"), bl.getTopN(3));
+        bl.track(ip3);
+        assertOrderedMaps(getTopMap(ip1, "3", ip3, "3"), bl.getTopN(3));
+    }
+
+    /**
+     * The String methods are adapters over the int ones, so both views must agree.
+     */
+    @Test
+    public void testIntAndStringAddressesAreTheSameEntry() {
+        bl.setMax(2);
+        int ip = Ipv4.parse(ip1);
+
+        assertFalse(bl.track(ip1));
+        assertTrue(bl.track(ip));
+
+        assertEquals(2L, bl.get(ip));
+        assertTrue(bl.isBlackListed(ip));
+        assertIp(ip1, 2L, true);
+        assertEquals(1, bl.getDb().size());
+    }
+
+    /**
+     * A batch is the same as tracking its requests one by one, at the same time.
+     */
+    @Test
+    public void testTrackAll() {
+        Clock clock = Clock.fixed(bl.getClock().instant(), bl.getClock().getZone());
+        bl.setClock(clock);
+        bl.setMax(5);
+        BlackListSvcImpl sequential = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
+        sequential.setClock(clock);
+        sequential.setMax(5);
+        Random random = new Random(42);
+        for (int batch = 0; batch < 20; batch++) {
+            int[] ips = new int[500];
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < ips.length; i++) {
+                ips[i] = random.nextInt(200);
+                boolean wasBlackListed = sequential.isBlackListed(ips[i]);
+                if (sequential.track(ips[i]) && !wasBlackListed) {
+                    expected.add(ips[i]);
+                }
+            }
+            Set<Integer> actual = new HashSet<>();
+            for (int ip : bl.trackAll(ips)) {
+                assertTrue(actual.add(ip));
+            }
+            assertEquals(expected, actual);
+        }
+        for (int ip = 0; ip < 200; ip++) {
+            assertEquals(sequential.get(ip), bl.get(ip));
+            assertEquals(sequential.isBlackListed(ip), bl.isBlackListed(ip));
+        }
+        assertOrderedMaps(sequential.getTopN(50), bl.getTopN(50));
+        assertEquals(Collections.singleton(ip1), bl.trackAll(new String[] {ip1, ip1, ip1, ip1, ip1, ip1}));
+        sequential.shutdown();
+    }
+
+    /**
+     * Concurrent requests from a single ip, none of them may be lost.
+     */
+    @Test
+    public void testConcurrentTrackOnOneIp() throws InterruptedException {
+        bl = new BlackListSvcImpl(); // bucketed windows
+        bl.setMax(Integer.MAX_VALUE);
+        int threads = 4;
+        int requestsPerThread = 50_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    bl.track(ip1);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        assertIp(ip1, threads * requestsPerThread, false);
+
+        bl.setMax(threads * requestsPerThread + 1);
+        assertTrue(bl.track(ip1));
+        assertIp(ip1, threads * requestsPerThread + 1, true);
+    }
+
+    /**
+     * Exact windows that yield after counting, so that threads tracking an ip interleave between
+     * the count and what they do with it, even on a single core.
+     */
+    static WindowStrategy yielding() {
+        return () -> {
+            RequestWindow exact = WindowStrategy.exact().newWindow();
+            return new RequestWindow() {
+                @Override
+                public void add(long now) {
+                    exact.add(now);
+                }
+
+                @Override
+                public long count(long from) {
+                    long count = exact.count(from);
+                    Thread.yield();
+                    return count;
+                }
+
+                @Override
+                public void forEach(long from, TimeCountConsumer action) {
+                    exact.forEach(from, action);
+                }
+            };
+        };
+    }
+
+    /**
+     * Threads racing on each ip at a finite max, a request or a batch at a time: once their
+     * requests add up to max the ip is blacklisted, whatever the interleaving.
+     */
+    @Test
+    public void testConcurrentTrackReachesMax() throws Exception {
+        bl = new BlackListSvcImpl(yielding());
+        int threads = 8;
+        int requestsPerThread = 2; // few, so the threads reach max together
+        int ips = 2_000;
+        bl.setMax(threads * requestsPerThread);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean batched = (t & 1) == 0;
+            done.add(executor.submit(() -> {
+                start.await();
+                for (int ip = 0; ip < ips; ip++) {
+                    if (batched) {
+                        bl.trackAll(new int[] {ip, ip});
+                    } else {
+                        bl.track(ip);
+                        bl.track(ip);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        executor.shutdown();
+        for (int ip = 0; ip < ips; ip++) {
+            assertTrue("ip " + ip, bl.isBlackListed(ip));
+            assertTrue("ip " + ip, bl.get(ip) >= threads * requestsPerThread);
+        }
+    }
+
+    /**
+     * Threads hammering a few hot ips never wait on a monitor (which would pin a virtual thread's
+     * carrier): the worker threads are sampled and none may be BLOCKED.
+     */
+    @Test
+    public void testHotIpsDontBlock() throws InterruptedException {
+        bl = new BlackListSvcImpl();
+        bl.setMax(5); // so they join the blacklist, the offender index, etc
+        int[] ips = new int[10];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = Ipv4.parse("10.0.0." + i);
+        }
+        Thread[] threads = new Thread[32];
+        CountDownLatch done = new CountDownLatch(threads.length);
+        AtomicIntegerArray finished = new AtomicIntegerArray(threads.length);
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200_000; i++) {
+                    int ip = ips[i % ips.length];
+                    if (!bl.isBlackListed(ip)) {
+                        bl.track(ip);
+                    } else if ((i & 7) == 0) {
+                        bl.track(ip);
+                    }
+                }
+                finished.set(thread, 1);
+                done.countDown();
+            });
+            threads[t].start();
+        }
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long[] ids = Arrays.stream(threads).mapToLong(Thread::getId).toArray();
+        while (!done.await(1L, TimeUnit.MILLISECONDS)) {
+            ThreadInfo[] infos = mx.getThreadInfo(ids);
+            for (int t = 0; t < infos.length; t++) {
+                ThreadInfo info = infos[t];
+                // a thread that's done may block on its ThreadGroup while exiting, that's not ours
+                if (info != null && finished.get(t) == 0) {
+                    assertTrue(info.getThreadName() + " blocked on " + info.getLockName(),
+                        info.getThreadState() != Thread.State.BLOCKED);
+                }
+            }
+        }
+        for (int ip : ips) {
+            assertTrue(bl.isBlackListed(ip));
+        }
+        bl.shutdown();
+    }
+
+    /**
+     * An address that is neither IPv4 nor IPv6 is rejected.
+     */
+    @Test
+    public void testInvalidAddress() {
+        thrown.expect(IllegalArgumentException.class);
+        bl.track("not.an.ip.address");
+    }
+
+    /**
+     * Entries are removed once they expire: when nothing is left in the window and the
+     * blacklist is over, even if the blacklist outlasts the window.
+     */
+    @Test
+    public void testCleanupExpiry() {
+        bl.setMax(2);
+        bl.setWindow(10L);
+        bl.setDuration(100L);
+        assertFalse(bl.track(ip1));
+        assertTrue(bl.track(ip1));
+        assertFalse(bl.track(ip2));
+
+        fastForward(10L);
+        bl.cleanup();
+        assertEquals(1, bl.getDb().size()); // ip2 is gone, ip1 is still blacklisted
+        assertIp(ip1, 0L, true);
+
+        fastForward(80L);
+        assertTrue(bl.track(ip1)); // renewed
+        fastForward(99L);
+        bl.cleanup();
+        assertEquals(1, bl.getDb().size());
+        fastForward(1L);
+        bl.cleanup();
+        assertEquals(0, bl.getDb().size());
+        assertEquals(0, bl.getWheel().size());
+    }
+
+    /**
+     * With decaying scores the threshold applies to the score, getTopN() ranks by the decayed violations.
+     */
+    @Test
+    public void testDecaying() {
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.fixed(bl.getClock().instant(), bl.getClock().getZone()),
+            300L, 60L, WindowStrategy.decaying(60L), OffenderIndex.exact(), 3, 1L, Executors.newSingleThreadScheduledExecutor());
+        assertFalse(bl.track(ip1));
+        assertFalse(bl.track(ip1));
+        fastForward(60L); // 2 / e left
+        assertFalse(bl.track(ip1));
+        assertIp(ip1, 1L, false);
+        assertFalse(bl.track(ip1)); // 2.73
+        assertTrue(bl.track(ip1));
+        assertTrue(bl.track(ip1));
+        for (int i = 0; i < 3; i++) {
+            bl.track(ip2);
+        }
+        assertOrderedMaps(getTopMap(ip1, "2", ip2, "1"), bl.getTopN(2));
+        fastForward(60L);
+        bl.track(ip2);
+        assertOrderedMaps(getTopMap(ip2, "1", ip1, "0"), bl.getTopN(2)); // 1 + 1 / e against 2 / e
+        assertTrue(bl.isBlackListed(ip1));
+    }
+
+    /**
+     * At capacity a blacklisted ip is never evicted, a newcomer that can't find a place is counted
+     * as rejected and isn't blacklisted, whatever its failures.
+     */
+    @Test
+    public void testCapacityKeepsBlackListed() {
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.fixed(bl.getClock().instant(), bl.getClock().getZone()),
+            300L, 300L, WindowStrategy.exact(), OffenderIndex.exact(), 3, 1L, Executors.newSingleThreadScheduledExecutor(),
+            PrefixLevels.none(), 0, 100);
+        for (int ip = 1; ip <= 100; ip++) {
+            for (int i = 0; i < 3; i++) {
+                bl.track(ip);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            assertFalse(bl.track(1000));
+        }
+        assertEquals(100, bl.getDb().size());
+        for (int ip = 1; ip <= 100; ip++) {
+            assertTrue(bl.isBlackListed(ip));
+        }
+        assertEquals(0L, bl.get(1000));
+        Map<String, Number> metrics = bl.getMetrics();
+        assertEquals(100, metrics.get("ips.capacity"));
+        assertEquals(0L, metrics.get("capacity.evicted"));
+        assertEquals(50L, metrics.get("capacity.rejected"));
+    }
+
+    /**
+     * The admission filter: at capacity a one-shot ip doesn't replace another, an ip failing again
+     * takes the place of a one-shot one.
+     */
+    @Test
+    public void testCapacityAdmitsRepeatOffenders() {
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.fixed(bl.getClock().instant(), bl.getClock().getZone()),
+            300L, 300L, WindowStrategy.exact(), OffenderIndex.exact(), 20, 1L, Executors.newSingleThreadScheduledExecutor(),
+            PrefixLevels.none(), 0, 1000);
+        for (int ip = 0; ip < 1000; ip++) {
+            bl.track(ip);
+        }
+        for (int ip = 1000; ip < 1100; ip++) {
+            bl.track(ip);
+        }
+        assertEquals(1000, bl.getDb().size());
+        assertEquals(0L, bl.getMetrics().get("capacity.evicted"));
+        assertEquals(100L, bl.getMetrics().get("capacity.rejected"));
+        bl.track(2000);
+        assertEquals(0L, bl.get(2000));
+        bl.track(2000);
+        bl.track(2000);
+        assertEquals(2L, bl.get(2000)); // counted from the failure that got it in
+        assertEquals(1000, bl.getDb().size());
+        assertEquals(1L, bl.getMetrics().get("capacity.evicted"));
+    }
+
+    /**
+     * A flood of 1M unique ips (100 times the capacity, all in the same window) never takes the db
+     * over its capacity, and neither pushes out the blacklisted ips nor the repeat offenders under
+     * the threshold; see benchmarks/CapacityBenchmark for 100M.
+     */
+    @Test
+    public void testCapacityFlood() {
+        int capacity = 10_000;
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.fixed(bl.getClock().instant(), bl.getClock().getZone()),
+            300L, 300L, WindowStrategy.buckets(300L, 30), OffenderIndex.approximate(64), 20, 1L,
+            Executors.newSingleThreadScheduledExecutor(), PrefixLevels.none(), 0, capacity);
+        int[] offenders = new int[100]; // few enough that a sample of 8 all offenders never happens
+        int[] blackListed = new int[20];
+        for (int i = 0; i < offenders.length; i++) {
+            offenders[i] = 0x0A000000 + i;
+            for (int j = 0; j < 10; j++) {
+                bl.track(offenders[i]);
+            }
+        }
+        for (int i = 0; i < blackListed.length; i++) {
+            blackListed[i] = 0x0B000000 + i;
+            for (int j = 0; j < 20; j++) {
+                bl.track(blackListed[i]);
+            }
+        }
+        int flood = 1_000_000;
+        for (int i = 0; i < flood; i++) {
+            bl.track(0x80000000 + i);
+            if (i % 10_000 == 0) {
+                assertTrue(bl.getDb().size() <= capacity);
+            }
+        }
+        assertTrue(bl.getDb().size() <= capacity);
+        for (int ip : blackListed) {
+            assertTrue(bl.isBlackListed(ip));
+            assertEquals(20L, bl.get(ip));
+        }
+        for (int ip : offenders) {
+            assertEquals(10L, bl.get(ip));
+        }
+        Map<String, Number> metrics = bl.getMetrics();
+        long evicted = metrics.get("capacity.evicted").longValue();
+        long rejected = metrics.get("capacity.rejected").longValue();
+        assertEquals(flood - (capacity - offenders.length - blackListed.length), evicted + rejected);
+    }
+
     /**
      * Testing the cleanup thread.
      */
     @Test
     public void testCleanupThread() throws InterruptedException {
         // threshold = 2, window = duration = cleanupInterval = 1 sec
-        bl = new BlackListSvcImpl(new ConcurrentHashMap<>(), Clock.systemDefaultZone(), 
-            1L, 1L, 2, 1L, Executors.newSingleThreadExecutor()); 
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.systemDefaultZone(), 
+            1L, 1L, WindowStrategy.exact(), OffenderIndex.exact(), 2, 1L, Executors.newSingleThreadScheduledExecutor()); 
         bl.startCleanupThread(); // have to manually call method as we've used the non default constructor
         
         // adding some data
@@ -287,5 +687,7 @@ public class BlackListSvcImplTest {
         assertOrderedMaps(Collections.emptyMap(), bl.getTopN(3)); // no more violations
         // db entries have also been removed
         assertEquals(0, bl.getDb().size());
+        assertEquals(0, bl.getOffenders().size());
+        assertEquals(0, bl.getBlackListSet().size());
     }
 }
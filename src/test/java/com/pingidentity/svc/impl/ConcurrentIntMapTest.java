@@ -0,0 +1,144 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test the primitive int keyed map against a HashMap.
+ */
+public class ConcurrentIntMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<>(1, 2); // single tiny segment, forces resizes
+        assertNull(map.putIfAbsent(0, "zero")); // 0 (0.0.0.0) is a valid key
+        assertNull(map.putIfAbsent(-1, "minus one"));
+        assertEquals("zero", map.putIfAbsent(0, "other"));
+        assertEquals("zero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertNull(map.get(1));
+        assertEquals(2, map.size());
+
+        assertEquals("zero", map.put(0, "replaced"));
+        assertEquals("replaced", map.put(0, "zero"));
+        assertNull(map.put(9, "nine"));
+        assertEquals("nine", map.remove(9));
+
+        assertEquals("x", map.computeIfAbsent(7, k -> "x"));
+        assertEquals("x", map.computeIfAbsent(7, k -> "y"));
+        assertTrue(!map.remove(7, "y"));
+        assertTrue(map.remove(7, "x"));
+        assertEquals("zero", map.remove(0));
+        assertNull(map.remove(0));
+        assertEquals(1, map.size());
+    }
+
+    /**
+     * Random operations checked against a HashMap, exercises probing, backward shift deletes and resizes.
+     */
+    @Test
+    public void testAgainstHashMap() {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(4, 2);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(5_000);
+            int op = random.nextInt(3);
+            if (op == 0) {
+                assertEquals(expected.putIfAbsent(key, i), map.putIfAbsent(key, i));
+            } else if (op == 1) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.get(key), map.get(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        Map<Integer, Integer> actual = new HashMap<>();
+        map.forEach(actual::put);
+        assertEquals(expected, actual);
+
+        int removed = map.removeIf((k, v) -> k % 2 == 0);
+        expected.keySet().removeIf(k -> k % 2 == 0);
+        assertEquals(expected.size(), map.size());
+        assertTrue(removed > 0);
+        for (int key = 0; key < 5_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    /**
+     * Concurrent writers on overlapping keys, every key must end up mapped exactly once.
+     */
+    @Test
+    public void testConcurrentComputeIfAbsent() throws InterruptedException {
+        ConcurrentIntMap<Object> map = new ConcurrentIntMap<>();
+        AtomicInteger created = new AtomicInteger();
+        int threads = 4;
+        int keys = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int k = 0; k < keys; k++) {
+                    Object value = map.computeIfAbsent(k, key -> {
+                        created.incrementAndGet();
+                        return new Object();
+                    });
+                    assertSame(value, map.get(k));
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        assertEquals(keys, created.get());
+        assertEquals(keys, map.size());
+    }
+
+    /**
+     * A sample passes entries of the map from any start, spread over its segments.
+     */
+    @Test
+    public void testSample() {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(4, 16);
+        for (int k = 0; k < 20; k++) {
+            map.putIfAbsent(k, k);
+        }
+        Random random = new Random(42);
+        Map<Integer, Integer> sampled = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(8, map.sample(random.nextInt(), 8, (k, v) -> sampled.merge(k, v, (a, b) -> {
+                assertEquals(a, b);
+                return a;
+            })));
+        }
+        assertEquals(20, sampled.size());
+        assertEquals(0, new ConcurrentIntMap<Integer>(1, 2).sample(7, 8, (k, v) -> { }));
+    }
+}
@@ -0,0 +1,157 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the sketch and the bounded memory mode against exact counting.
+ */
+public class CountMinWindowTest {
+
+    private static final long T0 = 1_500_000_000L;
+
+    @Test
+    public void testSparseIsExact() {
+        CountMinWindow sketch = new CountMinWindow(300L, 1 << 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, sketch.add(42, T0 + i * 30L, T0 + i * 30L - 300L, 1));
+        }
+        assertEquals(0L, sketch.estimate(43, T0 + 299L, T0 - 1L));
+        assertEquals(3, sketch.add(43, T0 + 299L, T0 - 1L, 3));
+        // 60 second sub-windows, the first two have left the window
+        assertEquals(6L, sketch.estimate(42, T0 + 420L, T0 + 120L - 1L));
+        assertEquals(0L, sketch.estimate(42, T0 + 1000L, T0 + 700L));
+    }
+
+    /**
+     * However loaded, an estimate is never below the true count.
+     */
+    @Test
+    public void testNeverUnder() {
+        CountMinWindow sketch = new CountMinWindow(300L, 1 << 8);
+        Random random = new Random(42);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            int ip = random.nextInt(2_000);
+            counts.merge(ip, 1, Integer::sum);
+            int estimate = sketch.add(ip, T0 + i / 100, T0 - 300L, 1);
+            assertTrue(estimate >= counts.get(ip));
+        }
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            assertTrue(sketch.estimate(e.getKey(), T0 + 199L, T0 - 300L) >= e.getValue());
+        }
+    }
+
+    @Test
+    public void testAdvanceClearsAhead() {
+        CountMinWindow sketch = new CountMinWindow(300L, 1 << 4);
+        for (int i = 0; i < 100; i++) {
+            sketch.add(i, T0, T0 - 300L, 1);
+        }
+        // seven sketches in the ring, the one of T0 comes round again 420 seconds later
+        sketch.advance(T0 + 419L);
+        assertEquals(0L, sketch.estimate(7, T0 + 420L, T0 + 120L));
+        assertEquals(1, sketch.add(7, T0 + 420L, T0 + 120L, 1));
+    }
+
+    /**
+     * Clearing ahead doesn't wipe the oldest sub-window while part of it is still in the window.
+     */
+    @Test
+    public void testAdvanceKeepsWindow() {
+        CountMinWindow sketch = new CountMinWindow(300L, 1 << 4);
+        sketch.add(7, T0 + 30L, T0 - 270L, 1);
+        sketch.advance(T0 + 310L);
+        assertEquals(1L, sketch.estimate(7, T0 + 310L, T0 + 10L));
+        assertEquals(2, sketch.add(7, T0 + 310L, T0 + 10L, 1));
+    }
+
+    /**
+     * A flood of spoofed ips (4 times the counters in the window) plus ips just under and over the
+     * threshold: the bounded mode blacklists the same offenders as exact counting, misses none,
+     * and hardly ever blacklists an ip under the threshold, while only tracking the ips that came
+     * close to it.
+     */
+    @Test
+    public void testAgainstExact() {
+        int counters = 1 << 12;
+        BlackListSvcImpl exact = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.systemUTC(), 300L, 300L,
+            WindowStrategy.exact(), OffenderIndex.exact(), 20, 1L, BlackListSvcImpl.newCleanupExecutor(),
+            PrefixLevels.none());
+        BlackListSvcImpl bounded = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.systemUTC(), 300L, 300L,
+            WindowStrategy.exact(), OffenderIndex.exact(), 20, 1L, BlackListSvcImpl.newCleanupExecutor(),
+            PrefixLevels.none(), counters);
+        Random random = new Random(42);
+        int[] under = new int[500]; // 15 failures each
+        int[] over = new int[100]; // 25
+        for (int i = 0; i < under.length; i++) {
+            under[i] = 0x0A000000 + i;
+        }
+        for (int i = 0; i < over.length; i++) {
+            over[i] = 0x0B000000 + i;
+        }
+        int spoofed = 4 * counters;
+        int total = spoofed + 15 * under.length + 25 * over.length;
+        for (int i = 0; i < total; i++) {
+            Clock clock = Clock.fixed(Instant.ofEpochSecond(T0 + i * 299L / total), ZoneOffset.UTC);
+            exact.setClock(clock);
+            bounded.setClock(clock);
+            int pick = random.nextInt(total);
+            int ip;
+            if (pick < spoofed) {
+                ip = random.nextInt() | 0x80000000; // not one of the others
+            } else if (pick < spoofed + 15 * under.length) {
+                ip = under[random.nextInt(under.length)];
+                if (exact.get(ip) >= 15) {
+                    continue;
+                }
+            } else {
+                ip = over[random.nextInt(over.length)];
+            }
+            exact.track(ip);
+            bounded.track(ip);
+        }
+        for (int ip : over) {
+            if (exact.isBlackListed(ip)) {
+                assertTrue(bounded.isBlackListed(ip));
+            }
+        }
+        int falsePositives = 0;
+        for (int ip : under) {
+            assertTrue(!exact.isBlackListed(ip));
+            if (bounded.isBlackListed(ip)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives <= under.length / 100);
+        assertTrue(exact.getDb().size() > spoofed / 2);
+        assertTrue(bounded.getDb().size() <= under.length + over.length + spoofed / 1000);
+        exact.shutdown();
+        bounded.shutdown();
+    }
+}
@@ -0,0 +1,112 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the expiry wheel.
+ */
+public class ExpiryWheelTest {
+
+    private static final long START = 1_500_000_000L;
+
+    /**
+     * Every ip comes due exactly at its expiry, whatever the level it was scheduled in.
+     */
+    @Test
+    public void testExpiresOnTime() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        Map<Integer, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int ip = 0; ip < 10_000; ip++) {
+            long expiry = START + 1 + (random.nextBoolean() ? random.nextInt(100) : random.nextInt(300_000));
+            expected.put(ip, expiry);
+            wheel.schedule(ip, expiry);
+        }
+        Map<Integer, Long> actual = new HashMap<>();
+        long end = START + 300_000;
+        for (long now = START + 1; now <= end; now += 1 + random.nextInt(3)) {
+            assertEquals(0, wheel.advance(now, (ip, t) -> {
+                long expiry = expected.get(ip);
+                if (expiry > t) {
+                    wheel.schedule(ip, expiry); // moved down a level
+                } else {
+                    actual.put(ip, t);
+                }
+                return false;
+            }));
+        }
+        wheel.advance(end + 3, (ip, t) -> actual.put(ip, t) == null);
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<Integer, Long> e : expected.entrySet()) {
+            // advance() may jump up to 3 seconds
+            long late = actual.get(e.getKey()) - e.getValue();
+            assertEquals("ip " + e.getKey() + " late by " + late, true, late >= 0 && late < 3);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Past and too distant expiries are clamped.
+     */
+    @Test
+    public void testClamp() {
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        wheel.schedule(1, START - 10);
+        wheel.schedule(2, Long.MAX_VALUE);
+        assertEquals(2, wheel.size());
+        assertEquals(1, wheel.advance(START + 1, (ip, t) -> true));
+        assertEquals(START + 1, wheel.current());
+        assertEquals(1, wheel.size());
+    }
+
+    /**
+     * An empty wheel goes straight to now, and one more than a span behind fires everything at now;
+     * neither walks the seconds in between.
+     */
+    @Test(timeout = 10_000)
+    public void testGaps() {
+        long century = 100L * 365 * 24 * 3600;
+        ExpiryWheel wheel = new ExpiryWheel(START);
+        assertEquals(0, wheel.advance(START + century, (ip, t) -> true));
+        assertEquals(START + century, wheel.current());
+        wheel.schedule(1, START + century + 10);
+        wheel.schedule(2, Long.MAX_VALUE);
+        long now = START + 2 * century;
+        Map<Integer, Long> expired = new HashMap<>();
+        assertEquals(2, wheel.advance(now, (ip, t) -> expired.put(ip, t) == null));
+        assertEquals(now, wheel.current());
+        assertEquals(Long.valueOf(now), expired.get(1));
+        assertEquals(Long.valueOf(now), expired.get(2));
+        assertEquals(0, wheel.size());
+        // one rescheduled while firing everything lands after now
+        wheel.schedule(3, now + 10);
+        assertEquals(0, wheel.advance(now + century, (ip, t) -> {
+            wheel.schedule(ip, t + 5);
+            return false;
+        }));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.advance(now + century + 5, (ip, t) -> true));
+    }
+}
@@ -0,0 +1,168 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+/**
+ * Test IPv6 tracking, by address and by /64.
+ */
+public class Ipv6TableTest {
+
+    private final BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(),
+        Clock.fixed(Instant.ofEpochSecond(1_500_000_000L), ZoneOffset.UTC), 300L, 60L, WindowStrategy.exact(),
+        OffenderIndex.exact(), 3, 1L, BlackListSvcImpl.newCleanupExecutor());
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    private void fastForward(long seconds) {
+        bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(seconds)));
+    }
+
+    /**
+     * Addresses of a /64 count together, whatever their text.
+     */
+    @Test
+    public void testPrefix64() {
+        assertEquals(64, bl.getIpv6PrefixLength());
+        assertFalse(bl.track("2001:db8:0:1::1"));
+        assertFalse(bl.track("2001:DB8:0:1:0:0:0:2"));
+        assertEquals(2L, bl.get("2001:0db8:0000:0001::ffff"));
+        assertTrue(bl.track("2001:db8:0:1:abcd::3"));
+        assertTrue(bl.isBlackListed("2001:db8:0:1::42"));
+        assertFalse(bl.isBlackListed("2001:db8:0:2::1"));
+        assertEquals(0L, bl.get("2001:db8:0:2::1"));
+        assertEquals(1, bl.getIpv6().size());
+    }
+
+    @Test
+    public void testPrefix128() {
+        BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), this.bl.getClock(), 300L, 60L,
+            WindowStrategy.exact(), OffenderIndex.exact(), 3, 1L, BlackListSvcImpl.newCleanupExecutor(),
+            PrefixLevels.none(), 0, 0, 128);
+        assertEquals(128, bl.getIpv6PrefixLength());
+        for (int i = 0; i < 3; i++) {
+            bl.track("2001:db8::1");
+            bl.track("2001:db8::" + (i + 2));
+        }
+        assertTrue(bl.isBlackListed("2001:db8:0:0:0:0:0:1"));
+        assertFalse(bl.isBlackListed("2001:db8::2"));
+        assertEquals(1L, bl.get("2001:db8::2"));
+        assertEquals(4, bl.getIpv6().size());
+        bl.shutdown();
+    }
+
+    /**
+     * IPv4-mapped addresses are their IPv4 address, getTopN() merges both families.
+     */
+    @Test
+    public void testDualStack() {
+        for (int i = 0; i < 3; i++) {
+            bl.track("::ffff:10.0.0.1");
+        }
+        assertTrue(bl.isBlackListed("10.0.0.1"));
+        assertEquals(3L, bl.get("10.0.0.1"));
+        assertEquals(0, bl.getIpv6().size());
+        bl.track("10.0.0.1");
+        for (int i = 0; i < 5; i++) {
+            bl.track("2001:db8::1");
+            bl.track("fe80::" + i);
+        }
+        bl.track("2001:db8::1");
+        bl.track("2001:db8::2");
+        bl.track("fe80::1");
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        expected.put("2001:db8::/64", 5);
+        expected.put("fe80::/64", 4);
+        expected.put("10.0.0.1", 2);
+        assertEquals(expected.toString(), bl.getTopN(3).toString());
+        assertEquals("{2001:db8::/64=5}", bl.getTopN(1).toString());
+        bl.track("10.0.0.1");
+        bl.track("10.0.0.1");
+        assertEquals("{2001:db8::/64=5, 10.0.0.1=4, fe80::/64=4}", bl.getTopN(5).toString()); // IPv4 first
+        assertEquals(2, bl.getMetrics().get("ipv6.tracked"));
+    }
+
+    /**
+     * A batch of both families: IPv4-mapped addresses count as their IPv4 address, an invalid one
+     * fails the batch before anything is tracked.
+     */
+    @Test
+    public void testTrackAll() {
+        assertEquals("[10.0.0.1, 2001:db8::3]", bl.trackAll(new String[] {"2001:db8::1", "::ffff:10.0.0.1",
+            "2001:db8::2", "10.0.0.1", "fe80::1", "2001:db8::3", "10.0.0.1"}).toString());
+        assertEquals(3L, bl.get("2001:db8::"));
+        assertEquals(1L, bl.get("fe80::1"));
+        assertTrue(bl.trackAll(new String[] {"2001:db8::4", "10.0.0.1"}).isEmpty());
+        try {
+            bl.trackAll(new String[] {"fe80::1", "10.0.0.2", "not.an.ip.address"});
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(1L, bl.get("fe80::1"));
+            assertEquals(0L, bl.get("10.0.0.2"));
+        }
+    }
+
+    @Test
+    public void testCleanup() {
+        for (int i = 0; i < 3; i++) {
+            bl.track("2001:db8::1");
+        }
+        bl.track("2001:db8:1::1");
+        fastForward(61L);
+        bl.cleanup();
+        assertEquals(1, bl.getIpv6().size()); // still blacklisted
+        assertTrue(bl.isBlackListed("2001:db8::1"));
+        fastForward(300L);
+        bl.cleanup();
+        assertEquals(0, bl.getIpv6().size());
+        assertFalse(bl.isBlackListed("2001:db8::1"));
+        assertTrue(bl.getTopN(10).isEmpty());
+    }
+
+    /**
+     * The other implementations track both families too, see ShardedBlackListSvcTest.
+     */
+    @Test
+    public void testSharded() {
+        ShardedBlackListSvc sharded = new ShardedBlackListSvc(1);
+        try {
+            assertFalse(sharded.track("::ffff:1.2.3.4"));
+            assertEquals(1L, sharded.get("1.2.3.4"));
+            assertFalse(sharded.track("2001:db8::1"));
+            assertEquals(1L, sharded.get("2001:db8::2"));
+            assertEquals(1, sharded.getShards()[0].getIpv6().size());
+        } finally {
+            sharded.shutdown();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test tracking at event time, and replaying access logs.
+ */
+public class LogReplayTest {
+
+    private static final long T0 = 1_500_000_000_000L;
+    private static final DateTimeFormatter FORMAT =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService executor = BlackListSvcImpl.newCleanupExecutor();
+    private final BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), new EventTimeClock(T0),
+        300L, 300L, WindowStrategy.exact(), OffenderIndex.exact(), 5, 1L, executor);
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    static String line(String ip, long millis, int status) {
+        return ip + " - - [" + FORMAT.format(Instant.ofEpochMilli(millis)) + "] \"POST /login HTTP/1.1\" "
+            + status + " 512 \"-\" \"curl/7.54\"\n";
+    }
+
+    private Path write(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, String.join("", lines).getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * Cleanups are run by the watermark on the executor, wait for them.
+     */
+    private void awaitCleanup() throws Exception {
+        executor.submit(() -> { }).get();
+    }
+
+    @Test
+    public void testTime() {
+        LogReplay replay = new LogReplay(bl);
+        byte[] pacific = "10/Oct/2000:13:55:36 -0700".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Instant.parse("2000-10-10T20:55:36Z").toEpochMilli(), replay.time(pacific, 0));
+        byte[] india = "29/Feb/2016:05:30:00 +0530".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Instant.parse("2016-02-29T00:00:00Z").toEpochMilli(), replay.time(india, 0));
+        byte[] invalid = "30/Feb/2016:05:30:00 +0530".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Long.MIN_VALUE, replay.time(invalid, 0));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path file = write(
+            line("1.1.1.1", T0, 401),
+            line("2.2.2.2", T0 + 1_000L, 401),
+            line("1.1.1.1", T0 + 10_000L, 403),
+            "\r\n",
+            "1.1.1.1 - - [" + FORMAT.format(Instant.ofEpochMilli(T0 + 20_000L)) + "] \"GET /a\\\" 200 b\" 401 -\r\n",
+            line("3.3.3.3", T0 + 20_000L, 200),
+            "not a log line\n",
+            line("1.1.1.1", T0 + 30_000L, 401),
+            line("3.3.3.3", T0 + 30_000L, 200),
+            line("1.1.1.1", T0 + 40_000L, 401).trim()); // no newline at the end
+        LogReplay replay = new LogReplay(bl);
+        replay.replay(file);
+        assertEquals(9L, replay.getLines());
+        assertEquals(6L, replay.getFailures());
+        assertEquals(1L, replay.getMalformed());
+        assertEquals(Files.size(file), replay.getBytes());
+        assertTrue(bl.isBlackListed("1.1.1.1"));
+        assertEquals(1L, bl.get("2.2.2.2"));
+        assertEquals(0L, bl.get("3.3.3.3"));
+        assertEquals(T0 + 40_000L, bl.getClock().millis());
+    }
+
+    /**
+     * Lines over many blocks, and one too long to be a log line.
+     */
+    @Test
+    public void testBlocks() throws Exception {
+        int lines = 3 * LogReplay.BLOCK / 80;
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (i == lines / 2) {
+                char[] garbage = new char[LogReplay.MAX_LINE * 2];
+                Arrays.fill(garbage, 'x');
+                log.append(garbage).append('\n');
+            }
+            log.append(line(Ipv4.format(0x0A000000 + i), T0 + i, 401));
+        }
+        LogReplay replay = new LogReplay(bl, 401);
+        replay.replay(write(log.toString()));
+        assertEquals(lines, replay.getFailures());
+        assertEquals(1L, replay.getMalformed());
+        assertEquals(lines, bl.getDb().size());
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        assertFalse(bl.track(42, T0 + 100_000L));
+        assertFalse(bl.track(42, T0 + 50_000L)); // within the lateness
+        assertFalse(bl.track(42, T0 + 30_000L)); // too late
+        assertFalse(bl.track(42, T0 + 99_000L));
+        assertEquals(3L, bl.get(42));
+        assertEquals(1L, bl.getMetrics().get("track.late"));
+        bl.setLateness(0L);
+        assertFalse(bl.track(42, T0 + 99_000L));
+        assertEquals(3L, bl.get(42));
+    }
+
+    /**
+     * An event stamped decades ahead is dropped rather than moving the watermark, which would make
+     * every later event late.
+     */
+    @Test
+    public void testOutlier() throws Exception {
+        long y2099 = Instant.parse("2099-01-01T00:00:00Z").toEpochMilli();
+        assertFalse(bl.track(42, T0));
+        assertFalse(bl.track(42, y2099));
+        assertEquals(T0, bl.getClock().millis());
+        assertEquals(1L, bl.getMetrics().get("track.early"));
+        for (int i = 1; i < 5; i++) {
+            bl.track(42, T0 + i * 1_000L);
+        }
+        assertTrue(bl.isBlackListed(42));
+        assertEquals(0L, bl.getMetrics().get("track.late"));
+        assertFalse(bl.track(43, T0 + 3_600_000L)); // a gap within the earliness
+        assertEquals(T0 + 3_600_000L, bl.getClock().millis());
+        bl.setEarliness(100L * 365 * 24 * 3600);
+        assertFalse(bl.track(43, y2099));
+        assertEquals(y2099, bl.getClock().millis());
+        awaitCleanup();
+        assertFalse(bl.isBlackListed(42));
+    }
+
+    /**
+     * The first event moves the watermark however far the clock started from, and the expiry wheel
+     * follows without walking every second in between.
+     */
+    @Test(timeout = 10_000)
+    public void testDistantStart() throws Exception {
+        BlackListSvcImpl distant = new BlackListSvcImpl(new ConcurrentIntMap<>(), new EventTimeClock(0L),
+            300L, 300L, WindowStrategy.exact(), OffenderIndex.exact(), 5, 1L, executor);
+        for (int i = 0; i < 5; i++) {
+            distant.track(42, T0 + i * 1_000L);
+        }
+        assertTrue(distant.isBlackListed(42));
+        assertEquals(0L, distant.getMetrics().get("track.early"));
+        awaitCleanup();
+        assertEquals(T0 / 1000L - distant.getLateness(), distant.getWheel().current(), 5.0);
+        distant.track(1, T0 + 400_000L);
+        awaitCleanup();
+        assertNull(distant.getDb().get(42));
+    }
+
+    /**
+     * Entries expire when the watermark, less the lateness, has moved past them; not with the wall clock.
+     */
+    @Test
+    public void testWatermarkExpiry() throws Exception {
+        int ip = Ipv4.parse("1.1.1.1");
+        for (int i = 0; i < 5; i++) {
+            bl.track(ip, T0 + i * 1_000L);
+        }
+        assertTrue(bl.isBlackListed(ip));
+        bl.track(2, T0 + 350_000L);
+        awaitCleanup();
+        assertTrue(bl.getDb().get(ip) != null);
+        assertFalse(bl.isBlackListed(ip));
+        bl.track(2, T0 + 370_000L);
+        awaitCleanup();
+        assertNull(bl.getDb().get(ip));
+    }
+
+    /**
+     * A view of the clock in another zone shares its watermark.
+     */
+    @Test
+    public void testWithZone() {
+        EventTimeClock clock = new EventTimeClock(T0);
+        assertSame(clock, clock.withZone(ZoneOffset.UTC));
+        Clock paris = clock.withZone(ZoneId.of("Europe/Paris"));
+        assertEquals(ZoneId.of("Europe/Paris"), paris.getZone());
+        assertTrue(clock.advance(T0 + 5_000L));
+        assertEquals(T0 + 5_000L, paris.millis());
+        assertEquals(Instant.ofEpochMilli(T0 + 5_000L), paris.instant());
+    }
+}
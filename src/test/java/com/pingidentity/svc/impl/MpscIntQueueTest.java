@@ -0,0 +1,87 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test the bounded MPSC queue.
+ */
+public class MpscIntQueueTest {
+
+    @Test
+    public void testFifoAndFull() {
+        MpscIntQueue<String> queue = new MpscIntQueue<>(3);
+        assertEquals(4, queue.capacity());
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, "v" + i));
+        }
+        assertFalse(queue.offer(4, "v4"));
+
+        List<String> drained = new ArrayList<>();
+        assertEquals(3, queue.drain((value, attachment) -> drained.add(value + attachment), 3));
+        assertTrue(queue.offer(5, null)); // a slot was freed
+        assertEquals(2, queue.drain((value, attachment) -> drained.add(value + "" + attachment), 10));
+        assertTrue(queue.isEmpty());
+        assertEquals("[0v0, 1v1, 2v2, 3v3, 5null]", drained.toString());
+    }
+
+    /**
+     * Nothing is lost or duplicated, and each producer's elements stay in order.
+     */
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        MpscIntQueue<Object> queue = new MpscIntQueue<>(64);
+        int producers = 4;
+        int perProducer = 100_000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(producer << 24 | i, null)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        long total = 0L;
+        while (total < (long) producers * perProducer) {
+            total += queue.drain((value, attachment) -> {
+                int producer = value >>> 24;
+                assertEquals(next[producer]++, value & 0xFFFFFF);
+            }, 16);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next[p]);
+        }
+    }
+}
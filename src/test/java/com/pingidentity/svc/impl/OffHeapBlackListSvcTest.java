@@ -0,0 +1,188 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test the off heap blacklist against BlackListSvcImpl with the same bucketed windows.
+ */
+public class OffHeapBlackListSvcTest {
+
+    private OffHeapBlackListSvc offHeap;
+    private BlackListSvcImpl onHeap;
+
+    @Before
+    public void setUp() {
+        offHeap = newOffHeap(1L << 20);
+        onHeap = new BlackListSvcImpl(new ConcurrentIntMap<>(), offHeap.getClock(), 300L, 300L,
+            WindowStrategy.buckets(300L, OffHeapBlackListSvc.BUCKETS - 1), OffenderIndex.approximate(10_000), 5,
+            1L, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @After
+    public void tearDown() {
+        offHeap.shutdown();
+        onHeap.shutdown();
+    }
+
+    OffHeapBlackListSvc newOffHeap(long budget) {
+        return new OffHeapBlackListSvc(budget, Clock.systemDefaultZone(), 300L, 300L, 5,
+            Executors.newSingleThreadScheduledExecutor());
+    }
+
+    void fastForward(long seconds) {
+        offHeap.setClock(Clock.offset(offHeap.getClock(), Duration.ofSeconds(seconds)));
+        onHeap.setClock(offHeap.getClock());
+    }
+
+    @Test
+    public void testSimpleTrack() {
+        String ip = "1.1.1.1";
+        for (int i = 0; i < 4; i++) {
+            assertFalse(offHeap.track(ip));
+        }
+        assertTrue(offHeap.track(ip));
+        assertTrue(offHeap.isBlackListed(ip));
+        assertEquals(5L, offHeap.get(ip));
+        assertTrue(offHeap.track(ip));
+        assertEquals(5L, offHeap.get(ip)); // violations aren't requests
+        assertEquals(1, offHeap.getTopN(10).size());
+        assertEquals(Integer.valueOf(2), offHeap.getTopN(10).get(ip));
+        assertEquals(0L, offHeap.get("2.2.2.2"));
+        assertFalse(offHeap.isBlackListed("2.2.2.2"));
+    }
+
+    /**
+     * Random traffic over a few minutes, both implementations must agree on everything.
+     */
+    @Test
+    public void testSameAsOnHeap() {
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            if (random.nextInt(100) == 0) {
+                fastForward(random.nextInt(40));
+            }
+            int ip = random.nextInt(500) * 0x00010001;
+            assertEquals(onHeap.track(ip), offHeap.track(ip));
+            int other = random.nextInt(600) * 0x00010001;
+            assertEquals(onHeap.get(other), offHeap.get(other));
+            assertEquals(onHeap.isBlackListed(other), offHeap.isBlackListed(other));
+            if (i % 1_000 == 0) {
+                assertEquals(onHeap.getTopN(10), offHeap.getTopN(10));
+            }
+        }
+    }
+
+    /**
+     * Batches of random traffic, both implementations must agree on everything.
+     */
+    @Test
+    public void testTrackAllSameAsOnHeap() {
+        Random random = new Random(42);
+        for (int batch = 0; batch < 200; batch++) {
+            fastForward(random.nextInt(20));
+            int[] ips = new int[250];
+            for (int i = 0; i < ips.length; i++) {
+                ips[i] = random.nextInt(500) * 0x00010001;
+            }
+            int[] expected = onHeap.trackAll(ips);
+            int[] actual = offHeap.trackAll(ips);
+            Arrays.sort(expected);
+            assertArrayEquals(expected, actual); // already in ip order
+            assertEquals(onHeap.getTopN(10), offHeap.getTopN(10));
+        }
+        for (int ip = 0; ip < 500; ip++) {
+            assertEquals(onHeap.get(ip * 0x00010001), offHeap.get(ip * 0x00010001));
+            assertEquals(onHeap.isBlackListed(ip * 0x00010001), offHeap.isBlackListed(ip * 0x00010001));
+        }
+    }
+
+    /**
+     * Past the budget new ips aren't tracked, until older ones expire.
+     */
+    @Test
+    public void testBudget() {
+        offHeap = newOffHeap(64L * OffHeapBlackListSvc.RECORD_BYTES); // 64 records, 51 usable
+        for (int ip = 0; ip < 100; ip++) {
+            offHeap.track(ip);
+        }
+        assertEquals(51L, offHeap.size());
+        assertEquals(49L, offHeap.getRejected());
+        assertEquals(1L, offHeap.get(0));
+        assertEquals(0L, offHeap.get(99));
+
+        fastForward(300L); // the first ones expire
+        offHeap.track(Ipv4.parse("10.0.0.1"));
+        assertEquals(1L, offHeap.size());
+        assertEquals(1L, offHeap.get(Ipv4.parse("10.0.0.1")));
+    }
+
+    @Test
+    public void testCleanup() {
+        for (int ip = 0; ip < 1_000; ip++) {
+            offHeap.track(ip);
+        }
+        fastForward(299L);
+        offHeap.cleanup();
+        assertEquals(1_000L, offHeap.size());
+        fastForward(1L);
+        for (int i = 0; i < ConcurrentIntMap.DEFAULT_SEGMENTS; i++) {
+            offHeap.cleanup(); // one segment per run
+        }
+        assertEquals(0L, offHeap.size());
+    }
+
+    /**
+     * IPv6 clients count by their /64, with the same threshold, and are cleaned up after a pass.
+     */
+    @Test
+    public void testIpv6() {
+        for (int i = 0; i < 4; i++) {
+            assertFalse(offHeap.track("2001:db8:0:1::" + i));
+        }
+        assertTrue(offHeap.track("2001:db8:0:1::ffff"));
+        assertTrue(offHeap.isBlackListed("2001:db8:0:1::42"));
+        assertFalse(offHeap.isBlackListed("2001:db8:0:2::1"));
+        assertEquals(5L, offHeap.get("2001:db8:0:1::1"));
+        assertFalse(offHeap.track("::ffff:1.1.1.1"));
+        assertEquals(1L, offHeap.get("1.1.1.1"));
+        assertEquals(Integer.valueOf(1), offHeap.getTopN(10).get("2001:db8:0:1::/64"));
+        assertEquals(2L, offHeap.size());
+
+        fastForward(301L);
+        for (int i = 0; i < ConcurrentIntMap.DEFAULT_SEGMENTS; i++) {
+            offHeap.cleanup();
+        }
+        assertEquals(0L, offHeap.size());
+    }
+}
@@ -0,0 +1,77 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the top offenders index, the approximate one is checked against the exact one.
+ */
+public class OffenderIndexTest {
+
+    private static final long NOW = 1_500_000_000L;
+    private static final long FROM = NOW - 300L;
+
+    /**
+     * Violations for random ips, with a zipf-ish skew so there are a few heavy offenders.
+     */
+    private void offend(Random random, int ips, int violations, OffenderIndex... indexes) {
+        ConcurrentIntMap<Tracking> db = new ConcurrentIntMap<>();
+        for (int i = 0; i < violations; i++) {
+            int ip = (int) (ips * Math.pow(random.nextDouble(), 3));
+            Tracking tracking = db.computeIfAbsent(ip, k -> new Tracking(WindowStrategy.exact()));
+            tracking.updateBlackList(NOW + 300L, NOW);
+            for (OffenderIndex index : indexes) {
+                index.violation(ip, tracking, FROM);
+            }
+        }
+    }
+
+    @Test
+    public void testApproximateIsExactUnderCapacity() {
+        OffenderIndex exact = OffenderIndex.exact();
+        OffenderIndex approximate = OffenderIndex.approximate(100);
+        offend(new Random(42), 100, 10_000, exact, approximate);
+        assertEquals(exact.topN(100, FROM), approximate.topN(100, FROM));
+        assertEquals(exact.topN(10, FROM), approximate.topN(10, FROM));
+    }
+
+    @Test
+    public void testApproximateKeepsHeavyOffenders() {
+        OffenderIndex exact = OffenderIndex.exact();
+        OffenderIndex approximate = OffenderIndex.approximate(100);
+        offend(new Random(42), 100_000, 100_000, exact, approximate);
+        assertEquals(100, approximate.size());
+        Map<String, Integer> expected = exact.topN(10, FROM);
+        assertEquals(expected, approximate.topN(10, FROM));
+    }
+
+    @Test
+    public void testExpiredOffendersAreDropped() {
+        OffenderIndex index = OffenderIndex.approximate(10);
+        offend(new Random(42), 100, 1_000, index);
+        assertTrue(index.size() > 0);
+        assertTrue(index.topN(10, NOW).isEmpty());
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,261 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test replicating counts and blacklists between nodes, over an in-memory transport.
+ */
+public class ReplicatorTest {
+
+    private static final int MAX = 20;
+
+    private final int ip = Ipv4.parse("6.6.6.6");
+    private final Clock clock = Clock.fixed(Instant.ofEpochSecond(1_500_000_000L), ZoneOffset.UTC);
+    private final List<BlackListSvcImpl> services = new ArrayList<>();
+    private final List<Replicator> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        nodes.forEach(Replicator::shutdown);
+        services.forEach(BlackListSvcImpl::shutdown);
+    }
+
+    private void cluster(int size, Replicator.Transport transport, Clock clock) {
+        for (int i = 0; i < size; i++) {
+            BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), clock, 300L, 300L,
+                WindowStrategy.buckets(300L, 30), OffenderIndex.exact(), MAX, 1L, BlackListSvcImpl.newCleanupExecutor());
+            Replicator node = new Replicator(bl, i, transport);
+            if (transport instanceof InMemoryTransport) {
+                ((InMemoryTransport) transport).join(node);
+            }
+            services.add(bl);
+            nodes.add(node);
+        }
+    }
+
+    private void gossip() {
+        nodes.forEach(Replicator::gossip);
+    }
+
+    private void fastForward(long seconds) {
+        for (BlackListSvcImpl bl : services) {
+            bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(seconds)));
+        }
+    }
+
+    /**
+     * An attacker under the threshold on every node is blacklisted once its failures add up.
+     */
+    @Test
+    public void testSpreadAttacker() {
+        cluster(4, new InMemoryTransport(), clock);
+        for (BlackListSvcImpl bl : services) {
+            for (int i = 0; i < 5; i++) {
+                assertFalse(bl.track(ip));
+                fastForward(1L);
+            }
+        }
+        gossip();
+        for (BlackListSvcImpl bl : services) {
+            assertEquals(20L, bl.get(ip));
+            assertFalse(bl.isBlackListed(ip));
+        }
+        assertTrue(services.get(0).track(ip));
+        assertFalse(services.get(1).isBlackListed(ip));
+        nodes.get(0).gossip();
+        for (BlackListSvcImpl bl : services) {
+            assertTrue(bl.isBlackListed(ip));
+        }
+        fastForward(300L);
+        for (BlackListSvcImpl bl : services) {
+            assertFalse(bl.isBlackListed(ip));
+        }
+        fastForward(10L); // the counts of the last bucket have left the window
+        services.forEach(BlackListSvcImpl::cleanup);
+        assertEquals(0, nodes.get(1).getRemoteIps());
+        assertEquals(0, services.get(1).getDb().size());
+    }
+
+    /**
+     * The cleanup drops a remote ip once its newest bucket has left the window, not before.
+     */
+    @Test
+    public void testRemoteCleanup() {
+        cluster(2, new InMemoryTransport(), clock);
+        BlackListSvcImpl sender = services.get(0);
+        sender.track(ip);
+        sender.track(1);
+        gossip();
+        fastForward(100L);
+        sender.track(ip); // a newer bucket
+        gossip();
+        assertEquals(2, nodes.get(1).getRemoteIps());
+        fastForward(210L); // the first requests have left the window
+        services.get(1).cleanup();
+        assertEquals(1, nodes.get(1).getRemoteIps());
+        assertEquals(1L, services.get(1).get(ip));
+        fastForward(100L);
+        services.get(1).cleanup();
+        assertEquals(0, nodes.get(1).getRemoteIps());
+    }
+
+    /**
+     * Merging is idempotent and commutative: deltas repeated or out of order give the same counts.
+     */
+    @Test
+    public void testRepeatedAndReordered() {
+        List<ByteBuffer> deltas = new ArrayList<>();
+        cluster(3, deltas::add, clock);
+        BlackListSvcImpl sender = services.get(0);
+        for (int i = 0; i < 12; i++) {
+            sender.track(ip);
+            sender.track(i);
+            fastForward(5L);
+            nodes.get(0).gossip();
+        }
+        assertEquals(12, deltas.size());
+        for (ByteBuffer delta : deltas) {
+            nodes.get(1).receive(delta);
+            nodes.get(1).receive(delta);
+        }
+        Collections.reverse(deltas);
+        for (ByteBuffer delta : deltas) {
+            nodes.get(2).receive(delta);
+        }
+        for (int i = 1; i < 3; i++) {
+            assertEquals(12L, services.get(i).get(ip));
+            assertEquals(1L, services.get(i).get(11));
+            assertEquals(0L, services.get(i).getDb().size()); // nothing tracked there
+        }
+    }
+
+    /**
+     * Deltas lost during a partition come back with the next full sync.
+     */
+    @Test
+    public void testFullSync() {
+        InMemoryTransport transport = new InMemoryTransport();
+        cluster(2, transport, clock);
+        gossip(); // the first round is a full sync
+        transport.setConnected(false);
+        for (int i = 0; i < 10; i++) {
+            services.get(0).track(ip);
+        }
+        fastForward(1L); // or they'd go in the next gossip as well
+        gossip();
+        transport.setConnected(true);
+        gossip();
+        assertEquals(0L, services.get(1).get(ip));
+        for (int i = 3; i < Replicator.FULL_SYNC_ROUNDS; i++) {
+            gossip();
+        }
+        assertEquals(0L, services.get(1).get(ip));
+        gossip();
+        assertEquals(10L, services.get(1).get(ip));
+    }
+
+    /**
+     * A round only sends the ips tracked since the last one, each once however many requests.
+     */
+    @Test
+    public void testDeltaOnlyTracked() {
+        cluster(2, new InMemoryTransport(), clock);
+        BlackListSvcImpl sender = services.get(0);
+        Replicator node = nodes.get(0);
+        for (int i = 0; i < 1000; i++) {
+            sender.track(i);
+        }
+        node.gossip(); // the first round is a full sync
+        assertEquals(1000L, node.getSentEntries());
+        for (int i = 0; i < 10; i++) {
+            sender.track(ip);
+            sender.track(7);
+        }
+        node.gossip();
+        assertEquals(1002L, node.getSentEntries());
+        assertEquals(10L, services.get(1).get(ip));
+        assertEquals(11L, services.get(1).get(7));
+        node.gossip();
+        assertEquals(1002L, node.getSentEntries());
+        sender.track(ip);
+        node.gossip();
+        assertEquals(1003L, node.getSentEntries());
+        assertEquals(11L, services.get(1).get(ip));
+    }
+
+    /**
+     * Nodes gossiping on their own: how long until they all agree, and what it costs.
+     */
+    @Test
+    public void testConvergence() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        cluster(8, transport, Clock.systemUTC());
+        for (Replicator node : nodes) {
+            node.start(20L);
+        }
+        // 1000 ips failing once on every node, and the attacker
+        for (BlackListSvcImpl bl : services) {
+            for (int i = 0; i < 1000; i++) {
+                bl.track(i);
+            }
+            for (int i = 0; i < 3; i++) {
+                bl.track(ip);
+            }
+        }
+        long start = System.nanoTime();
+        long deadline = start + 10_000_000_000L;
+        while (services.stream().anyMatch(bl -> bl.get(ip) < 24L)) {
+            assertTrue("not converged", System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+        assertTrue(services.get(7).track(ip));
+        while (services.stream().anyMatch(bl -> !bl.isBlackListed(ip))) {
+            assertTrue("not converged", System.nanoTime() < deadline);
+            Thread.sleep(1L);
+        }
+        for (BlackListSvcImpl bl : services) {
+            assertEquals(8L, bl.get(0));
+        }
+        // 8 bytes for an entry with a single bucket: ip, blacklist end, size, bucket and count
+        long sent = 0L;
+        long entries = 0L;
+        for (Replicator node : nodes) {
+            sent += node.getSentBytes() - node.getSentDeltas() * 16;
+            entries += node.getSentEntries();
+        }
+        assertTrue(sent + " bytes for " + entries, sent <= entries * 9);
+        assertTrue(transport.getDeliveredDeltas() >= (nodes.get(0).getSentDeltas() - 1) * 7); // one may be on its way
+    }
+}
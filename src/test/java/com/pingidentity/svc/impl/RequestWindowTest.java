@@ -0,0 +1,156 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the window strategies, the bucketed windows are checked against the exact one.
+ */
+public class RequestWindowTest {
+
+    private static final long START = 1_500_000_000L;
+
+    @Test
+    public void testExact() {
+        RequestWindow window = WindowStrategy.exact().newWindow();
+        window.add(START);
+        window.add(START + 1);
+        window.add(START + 1);
+        assertEquals(3L, window.count(START - 1));
+        assertEquals(2L, window.count(START));
+        assertEquals(0L, window.count(START + 1));
+    }
+
+    /**
+     * One second buckets give the same counts as the exact window.
+     */
+    @Test
+    public void testSecondBucketsAreExact() {
+        long windowSec = 300L;
+        RequestWindow exact = WindowStrategy.exact().newWindow();
+        RequestWindow buckets = WindowStrategy.buckets(windowSec, 300).newWindow();
+        Random random = new Random(42);
+        long now = START;
+        for (int i = 0; i < 100_000; i++) {
+            now += random.nextInt(100) == 0 ? random.nextInt(1_000) : random.nextInt(2);
+            if (random.nextBoolean()) {
+                exact.add(now);
+                buckets.add(now);
+            } else {
+                assertEquals(exact.count(now - windowSec), buckets.count(now - windowSec));
+            }
+        }
+    }
+
+    /**
+     * Wider buckets never under count and over count by at most a bucket's worth of requests.
+     */
+    @Test
+    public void testWideBucketsAreBounded() {
+        long windowSec = 300L;
+        int width = 10;
+        RequestWindow exact = WindowStrategy.exact().newWindow();
+        RequestWindow buckets = WindowStrategy.buckets(windowSec, 30).newWindow();
+        RequestWindow recent = WindowStrategy.exact().newWindow();
+        long now = START;
+        for (int i = 0; i < 10_000; i++) {
+            now++;
+            exact.add(now);
+            buckets.add(now);
+            recent.add(now);
+            long count = buckets.count(now - windowSec);
+            assertTrue(count >= exact.count(now - windowSec));
+            assertTrue(count <= recent.count(now - windowSec - width));
+        }
+    }
+
+    @Test
+    public void testBucketsAfterIdle() {
+        RequestWindow window = WindowStrategy.buckets(300L, 30).newWindow();
+        window.add(START);
+        window.add(START);
+        assertEquals(2L, window.count(START - 300L));
+        window.add(START + 10_000L); // the whole ring is reused
+        assertEquals(1L, window.count(START + 10_000L - 300L));
+        window.add(START); // too old to be kept
+        assertEquals(1L, window.count(START + 10_000L - 300L));
+        assertEquals(0L, window.count(START + 20_000L));
+    }
+
+    /**
+     * A burst scores its size then fades by 1/e per window, a steady rate scores what the window counts.
+     */
+    @Test
+    public void testDecaying() {
+        long windowSec = 60L;
+        RequestWindow burst = WindowStrategy.decaying(windowSec).newWindow();
+        burst.add(START, 100);
+        assertEquals(100L, burst.count(START - windowSec));
+        assertEquals(36L, burst.count(START)); // 100 / e a window later
+        assertEquals(13L, burst.count(START + windowSec));
+        assertEquals(0L, burst.count(START + 100 * windowSec));
+        burst.add(START - windowSec, 100); // late, decayed to the latest request
+        assertEquals(136L, burst.count(START - windowSec));
+
+        RequestWindow exact = WindowStrategy.exact().newWindow();
+        RequestWindow steady = WindowStrategy.decaying(windowSec).newWindow();
+        for (long now = START; now < START + 10 * windowSec; now++) {
+            exact.add(now, 5);
+            steady.add(now, 5);
+        }
+        long now = START + 10 * windowSec - 1;
+        long count = exact.count(now - windowSec);
+        assertEquals(300L, count);
+        assertTrue(steady.count(now - windowSec) >= count && steady.count(now - windowSec) < count + 5);
+
+        int[] restored = new int[1];
+        steady.forEach(now - windowSec, (time, n) -> restored[0] += n);
+        assertEquals(steady.count(now - windowSec), restored[0], 1);
+    }
+
+    /**
+     * Concurrent requests all count, each is a single CAS.
+     */
+    @Test
+    public void testDecayingConcurrent() throws Exception {
+        RequestWindow window = WindowStrategy.decaying(60L).newWindow();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    window.add(START);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000L, window.count(START - 60L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBuckets() {
+        WindowStrategy.buckets(300L, 0);
+    }
+}
@@ -0,0 +1,122 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the sharded blacklist against a single BlackListSvcImpl.
+ */
+public class ShardedBlackListSvcTest {
+
+    private ShardedBlackListSvc sharded;
+    private BlackListSvcImpl single;
+
+    @Before
+    public void setUp() {
+        sharded = new ShardedBlackListSvc(8, WindowStrategy.exact(), OffenderIndex::exact);
+        single = new BlackListSvcImpl(WindowStrategy.exact(), OffenderIndex.exact());
+        for (BlackListSvcImpl shard : sharded.getShards()) {
+            shard.setMax(3);
+        }
+        single.setMax(3);
+    }
+
+    @After
+    public void tearDown() {
+        sharded.shutdown();
+        single.shutdown();
+    }
+
+    @Test
+    public void testSameAsSingle() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            int ip = random.nextInt(2_000) * 0x01010101;
+            assertEquals(single.track(ip), sharded.track(ip));
+        }
+        for (int ip = 0; ip < 2_000; ip++) {
+            assertEquals(single.get(ip * 0x01010101), sharded.get(ip * 0x01010101));
+            assertEquals(single.isBlackListed(ip * 0x01010101), sharded.isBlackListed(ip * 0x01010101));
+        }
+        assertEquals(single.getTopN(10), sharded.getTopN(10));
+        assertEquals(single.getTopN(3_000), sharded.getTopN(3_000));
+        assertEquals(single.getTopN(0), sharded.getTopN(0));
+    }
+
+    @Test
+    public void testTrackAllSameAsSingle() {
+        Random random = new Random(42);
+        for (int batch = 0; batch < 20; batch++) {
+            int[] ips = new int[1_000];
+            for (int i = 0; i < ips.length; i++) {
+                ips[i] = random.nextInt(2_000) * 0x01010101;
+            }
+            int[] expected = single.trackAll(ips);
+            int[] actual = sharded.trackAll(ips);
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(single.getTopN(3_000), sharded.getTopN(3_000));
+    }
+
+    @Test
+    public void testShardsAreUsed() {
+        for (int ip = 0; ip < 1_000; ip++) {
+            sharded.track(ip);
+        }
+        for (BlackListSvcImpl shard : sharded.getShards()) {
+            int size = shard.getDb().size();
+            assertEquals("shard size " + size, true, size > 60 && size < 190);
+        }
+    }
+
+    /**
+     * IPv6 addresses go to the shard of their /64, getTopN() merges both families of every shard.
+     */
+    @Test
+    public void testIpv6SameAsSingle() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5_000; i++) {
+            int ip = random.nextInt(500);
+            String address = "2001:db8:" + Integer.toHexString(ip) + ":1::" + Integer.toHexString(random.nextInt(4));
+            assertEquals(single.track(address), sharded.track(address));
+            assertEquals(single.track(ip * 0x01010101), sharded.track(ip * 0x01010101));
+        }
+        for (int ip = 0; ip < 500; ip++) {
+            String address = "2001:db8:" + Integer.toHexString(ip) + ":1::ffff";
+            assertEquals(single.get(address), sharded.get(address));
+            assertEquals(single.isBlackListed(address), sharded.isBlackListed(address));
+        }
+        assertEquals(single.getTopN(10), sharded.getTopN(10));
+        assertEquals(single.getTopN(2_000), sharded.getTopN(2_000));
+        int used = 0;
+        for (BlackListSvcImpl shard : sharded.getShards()) {
+            used += shard.getIpv6().size() > 0 ? 1 : 0;
+        }
+        assertEquals(8, used);
+    }
+}
@@ -0,0 +1,168 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test saving and restoring the blacklist state.
+ */
+public class SnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Clock clock = Clock.fixed(Clock.systemUTC().instant(), Clock.systemUTC().getZone());
+    private BlackListSvcImpl saved = newBlackList(WindowStrategy.buckets(300L, 30), clock);
+    private BlackListSvcImpl restored;
+
+    @After
+    public void tearDown() {
+        saved.shutdown();
+        if (restored != null) {
+            restored.shutdown();
+        }
+    }
+
+    BlackListSvcImpl newBlackList(WindowStrategy windows, Clock clock) {
+        BlackListSvcImpl bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), clock, 300L, 300L, windows,
+            OffenderIndex.exact(), 5, 1L, BlackListSvcImpl.newCleanupExecutor());
+        return bl;
+    }
+
+    /**
+     * Random traffic over a few minutes.
+     */
+    void track(BlackListSvcImpl bl, int ips) {
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            if (i % 1_000 == 0) {
+                bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(random.nextInt(30))));
+            }
+            bl.track(random.nextInt(ips) * 0x00010001);
+        }
+    }
+
+    void assertSame(BlackListSvcImpl expected, BlackListSvcImpl actual, int ips) {
+        for (int ip = 0; ip < ips; ip++) {
+            assertEquals(expected.get(ip * 0x00010001), actual.get(ip * 0x00010001));
+            assertEquals(expected.isBlackListed(ip * 0x00010001), actual.isBlackListed(ip * 0x00010001));
+        }
+        assertEquals(expected.getTopN(ips), actual.getTopN(ips));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        track(saved, 1_000);
+        Path file = folder.getRoot().toPath().resolve("blacklist.snapshot");
+        long entries = saved.snapshot(file);
+        assertEquals(saved.getDb().size(), entries);
+
+        restored = newBlackList(WindowStrategy.buckets(300L, 30), saved.getClock());
+        assertEquals(entries, restored.restore(file));
+        assertSame(saved, restored, 1_000);
+    }
+
+    @Test
+    public void testStreamExact() throws IOException {
+        saved = newBlackList(WindowStrategy.exact(), clock);
+        track(saved, 1_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long entries = saved.snapshot(out);
+
+        restored = newBlackList(WindowStrategy.exact(), saved.getClock());
+        assertEquals(entries, restored.restore(new ByteArrayInputStream(out.toByteArray())));
+        assertSame(saved, restored, 1_000);
+    }
+
+    /**
+     * Whatever expired during the downtime is dropped, the rest keeps its blacklist.
+     */
+    @Test
+    public void testDowntime() throws IOException {
+        saved.track(2);
+        for (int i = 0; i < 5; i++) {
+            saved.track(1);
+        }
+        saved.setClock(Clock.offset(clock, Duration.ofSeconds(200)));
+        assertTrue(saved.track(1)); // blacklisted until 500
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2L, saved.snapshot(out));
+
+        // 1 is still blacklisted but its requests have left the window, 2 expired
+        restored = newBlackList(WindowStrategy.buckets(300L, 30), Clock.offset(clock, Duration.ofSeconds(450)));
+        assertEquals(1L, restored.restore(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(restored.isBlackListed(1));
+        assertEquals(0L, restored.get(1));
+        assertFalse(restored.isBlackListed(2));
+        assertEquals(1, restored.getDb().size());
+
+        restored.setClock(Clock.offset(clock, Duration.ofSeconds(500)));
+        assertFalse(restored.isBlackListed(1));
+    }
+
+    /**
+     * A snapshot of a single table restores into shards, and back.
+     */
+    @Test
+    public void testSharded() throws IOException {
+        track(saved, 1_000);
+        Path file = folder.getRoot().toPath().resolve("blacklist.snapshot");
+        saved.snapshot(file);
+        ShardedBlackListSvc sharded = new ShardedBlackListSvc(4);
+        try {
+            for (BlackListSvcImpl shard : sharded.getShards()) {
+                shard.setMax(5);
+                shard.setClock(saved.getClock());
+                shard.setWindowStrategy(WindowStrategy.buckets(300L, 30));
+            }
+            sharded.restore(file);
+            sharded.snapshot(file);
+            restored = newBlackList(WindowStrategy.buckets(300L, 30), saved.getClock());
+            restored.restore(file);
+            assertSame(saved, restored, 1_000);
+        } finally {
+            sharded.shutdown();
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws IOException {
+        track(saved, 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saved.snapshot(out);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        newBlackList(WindowStrategy.exact(), clock).restore(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,114 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pingidentity.svc.Ipv4;
+
+/**
+ * Test counting and blacklisting subnets, see PrefixLevels.
+ */
+public class SubnetTableTest {
+
+    private BlackListSvcImpl bl;
+
+    @Before
+    public void setUp() {
+        bl = new BlackListSvcImpl(new ConcurrentIntMap<>(), Clock.systemDefaultZone(), 300L, 300L,
+            WindowStrategy.exact(), OffenderIndex.exact(), 5, 1L, BlackListSvcImpl.newCleanupExecutor(),
+            PrefixLevels.none().with(24, 20).with(16, 50));
+    }
+
+    @After
+    public void tearDown() {
+        bl.shutdown();
+    }
+
+    void fastForward(long seconds) {
+        bl.setClock(Clock.offset(bl.getClock(), Duration.ofSeconds(seconds)));
+    }
+
+    /**
+     * Rotating through a /24, no address reaches the ip threshold but the subnet gets blacklisted.
+     */
+    @Test
+    public void testRotatingThroughSubnet() {
+        for (int i = 0; i < 19; i++) {
+            assertFalse(bl.track("10.0.0." + i));
+        }
+        assertTrue(bl.track("10.0.0.19"));
+        assertTrue(bl.isBlackListed("10.0.0.200"));
+        assertFalse(bl.isBlackListed("10.0.1.1"));
+        assertEquals(0L, bl.get("10.0.0.200"));
+        assertEquals(20L, bl.getSubnets().count(Ipv4.parse("10.0.0.200"), 24, 0L));
+        assertEquals(20L, bl.getSubnets().count(Ipv4.parse("10.0.1.1"), 16, 0L));
+        assertEquals(0L, bl.getSubnets().count(Ipv4.parse("10.0.1.1"), 8, 0L));
+        assertEquals(Integer.valueOf(0), bl.getTopN(1).values().iterator().next()); // ips only
+
+        fastForward(300);
+        assertFalse(bl.isBlackListed("10.0.0.200"));
+    }
+
+    /**
+     * Spread over the /16, only the /16 threshold is reached.
+     */
+    @Test
+    public void testWiderSubnet() {
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i == 49, bl.track("10.1." + i + ".1"));
+        }
+        assertTrue(bl.isBlackListed("10.1.255.255"));
+        assertFalse(bl.isBlackListed("10.2.0.1"));
+    }
+
+    @Test
+    public void testTrackAll() {
+        int[] ips = new int[20];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = Ipv4.parse("10.0.0." + i);
+        }
+        assertEquals(1, bl.trackAll(ips).length); // the last one tracked
+        assertTrue(bl.isBlackListed("10.0.0.100"));
+    }
+
+    @Test
+    public void testCleanup() {
+        for (int i = 0; i < 100; i++) {
+            bl.track(Ipv4.parse("10.0." + i + ".1"));
+        }
+        assertEquals(101, bl.getSubnets().size()); // 100 /24 and one /16
+        fastForward(301);
+        bl.cleanup();
+        assertEquals(0, bl.getSubnets().size());
+        assertEquals(0, bl.getDb().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrefixLength() {
+        PrefixLevels.none().with(32, 10);
+    }
+}
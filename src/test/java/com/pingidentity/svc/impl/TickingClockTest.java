@@ -0,0 +1,63 @@
+/***************************************************************************
+ * Copyright (C) 2016 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ *     Ping Identity Corporation
+ *     1001 17th Street Suite 100
+ *     Denver, CO 80202
+ *     303.468.2900
+ *     http://www.pingidentity.com
+ *
+ **************************************************************************/
+package com.pingidentity.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+/**
+ * Test the cached system clock.
+ */
+public class TickingClockTest {
+
+    @Test
+    public void testTicks() throws InterruptedException {
+        Clock clock = TickingClock.systemUTC();
+        long before = System.currentTimeMillis();
+        long millis = clock.millis();
+        assertTrue(millis + " vs " + before, Math.abs(millis - before) <= 1_000L);
+        Thread.sleep(50L + TickingClock.TICK_MILLIS);
+        assertTrue(clock.millis() > millis);
+        assertEquals(clock.millis() / 1000L, clock.instant().getEpochSecond(), 1L);
+    }
+
+    @Test
+    public void testZone() {
+        Clock clock = TickingClock.systemUTC();
+        assertSame(clock, clock.withZone(ZoneOffset.UTC));
+        Clock paris = clock.withZone(ZoneId.of("Europe/Paris"));
+        assertEquals(ZoneId.of("Europe/Paris"), paris.getZone());
+        assertTrue(!clock.equals(paris));
+        assertEquals(paris, clock.withZone(ZoneId.of("Europe/Paris")));
+    }
+
+    @Test
+    public void testEpochSecond() {
+        Clock fixed = Clock.fixed(Instant.ofEpochMilli(-1L), ZoneOffset.UTC);
+        assertEquals(-1L, TickingClock.epochSecond(fixed)); // floor, like Instant
+        assertEquals(41L, TickingClock.epochSecond(Clock.offset(fixed, Duration.ofMillis(42_000L))));
+    }
+}